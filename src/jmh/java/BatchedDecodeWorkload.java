@@ -0,0 +1,51 @@
+import benchmark.BatchedDecodeBenchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Нагрузка {@link BatchedDecodeBenchmark}: batchSize клиентов одновременно обращаются к SmolLM2
+ * с включённым непрерывным пакетированием.
+ */
+public class BatchedDecodeWorkload implements BatchedDecodeBenchmark.Workload {
+
+    private final LocalONNXSmolLM2Model model;
+    private final ExecutorService clients;
+    private final String prompt;
+    private final int batchSize;
+    private final int decodeTokens;
+
+    public BatchedDecodeWorkload(int batchSize, int promptTokens, int decodeTokens) throws Exception {
+        this.batchSize = batchSize;
+        this.decodeTokens = decodeTokens;
+        model = (LocalONNXSmolLM2Model) BenchmarkModels.load(BenchmarkModels.SMOLLM2, 1);
+        model.setContinuousBatching(batchSize);
+        model.warmup(2);
+        clients = Executors.newFixedThreadPool(batchSize);
+        prompt = BenchmarkModels.promptOfTokens(model.getTokenizer(), promptTokens);
+    }
+
+    @Override
+    public Object decodeBatch() throws Exception {
+        List<Future<String>> requests = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            // Жадный выбор: все запросы декодируют ровно decodeTokens токенов, если не встретят EOS
+            requests.add(clients.submit(() -> model.generate(prompt, decodeTokens,
+                    new TokenSampler(SamplingParams.greedy()))));
+        }
+        List<String> answers = new ArrayList<>(batchSize);
+        for (Future<String> request : requests) {
+            answers.add(request.get());
+        }
+        return answers;
+    }
+
+    @Override
+    public void close() {
+        clients.shutdownNow();
+        model.close();
+    }
+}
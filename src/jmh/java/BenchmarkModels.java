@@ -0,0 +1,98 @@
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Модели для бенчмарков.
+ * <p>
+ * Модели ищутся в каталоге из переменной окружения BENCH_MODELS (по умолчанию src/main/resources)
+ * в тех же поддиректориях, что и в проекте: GPT2, SmolLM2-135M-Instruct, Llama-32-1B, allmpnetbasev2.
+ * Книги для загрузки документов – в BENCH_BOOKS (по умолчанию src/main/resources/books). Переменная
+ * окружения, а не системное свойство – потому что её наследуют форки JMH. Для запуска без доступа
+ * к полноразмерным весам туда можно положить уменьшенные ONNX-модели с теми же именами входов и
+ * выходов: размеры Llama читаются из config.json, размеры SmolLM2 заданы в коде и должны совпадать.
+ */
+final class BenchmarkModels {
+
+    static final String GPT2 = "gpt2";
+    static final String SMOLLM2 = "smollm2";
+    static final String LLAMA = "llama";
+    static final String EMBEDDING = "embedding";
+
+    // Текст, из которого нарезаются prompt-ы заданной длины
+    private static final String FILLER = "The history of beer is as old as the history of bread, and every "
+            + "region of the world has brewed its own version of the drink from local grain. ";
+
+    private BenchmarkModels() {
+    }
+
+    static Path modelsRoot() {
+        String root = System.getenv().getOrDefault("BENCH_MODELS", "src/main/resources");
+        return Paths.get(root).toAbsolutePath();
+    }
+
+    static Path booksDir() {
+        String dir = System.getenv().getOrDefault("BENCH_BOOKS", "src/main/resources/books");
+        return Paths.get(dir).toAbsolutePath();
+    }
+
+    /**
+     * Абсолютный путь к директории модели по её имени в бенчмарках.
+     */
+    static String modelDir(String name) {
+        String dir;
+        switch (name) {
+            case GPT2:
+                dir = "GPT2";
+                break;
+            case SMOLLM2:
+                dir = "SmolLM2-135M-Instruct";
+                break;
+            case LLAMA:
+                dir = "Llama-32-1B";
+                break;
+            case EMBEDDING:
+                dir = "allmpnetbasev2";
+                break;
+            default:
+                dir = name;
+        }
+        Path path = modelsRoot().resolve(dir);
+        if (!Files.isDirectory(path)) {
+            throw new IllegalStateException("Нет директории модели " + path + " (см. BENCH_MODELS)");
+        }
+        return path.toString();
+    }
+
+    /**
+     * Загружает чат-модель с пулом из poolSize предикторов.
+     */
+    static LocalChatModel load(String name, int poolSize) throws Exception {
+        switch (name) {
+            case GPT2:
+                return new LocalONNXGPT2Model(modelDir(name), poolSize);
+            case SMOLLM2:
+                return new LocalONNXSmolLM2Model(modelDir(name), poolSize);
+            case LLAMA:
+                return new LocalONNXLlamaModel(modelDir(name), null, poolSize);
+            default:
+                throw new IllegalArgumentException("Неизвестная модель: " + name);
+        }
+    }
+
+    /**
+     * Текст, который токенизатор модели переводит ровно в tokens токенов (без специальных).
+     */
+    static String promptOfTokens(HuggingFaceTokenizer tokenizer, int tokens) {
+        StringBuilder text = new StringBuilder(FILLER);
+        long[] ids = tokenizer.encode(text.toString(), false, false).getIds();
+        while (ids.length < tokens) {
+            text.append(FILLER);
+            ids = tokenizer.encode(text.toString(), false, false).getIds();
+        }
+        return tokenizer.decode(Arrays.copyOf(ids, tokens), true);
+    }
+}
@@ -0,0 +1,54 @@
+import benchmark.DecodeBenchmark;
+
+import java.util.List;
+
+/**
+ * Нагрузка {@link DecodeBenchmark}: декодер с KV-кэшем и контекст из contextTokens токенов.
+ */
+public class DecodeWorkload implements DecodeBenchmark.Workload {
+
+    private final LocalChatModel chatModel;
+    private final DecoderModel decoder;
+    private final List<Long> context;
+
+    public DecodeWorkload(String model, int contextTokens, int poolSize) throws Exception {
+        chatModel = BenchmarkModels.load(model, poolSize);
+        if (!(chatModel instanceof DecoderModel)) {
+            chatModel.close();
+            throw new IllegalArgumentException("Модель без KV-кэша: " + model);
+        }
+        chatModel.warmup(2);
+        decoder = (DecoderModel) chatModel;
+        context = decoder.encodePrompt(BenchmarkModels.promptOfTokens(chatModel.getTokenizer(), contextTokens));
+    }
+
+    @Override
+    public DecodeBenchmark.Sequence newSequence() throws Exception {
+        KVCache cache = decoder.newKVCache();
+        float[] logits = decoder.forward(context, cache);
+        int vocab = decoder.getVocabSize();
+        List<Long> nextToken = List.of((long) TokenSampler.argMax(logits, logits.length - vocab, vocab));
+        int contextLength = cache.length();
+        return new DecodeBenchmark.Sequence() {
+            @Override
+            public void rewind() {
+                cache.truncate(contextLength);
+            }
+
+            @Override
+            public Object decodeToken() throws Exception {
+                return decoder.forward(nextToken, cache);
+            }
+
+            @Override
+            public void close() {
+                cache.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        chatModel.close();
+    }
+}
@@ -0,0 +1,48 @@
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import benchmark.EmbeddingBenchmark;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Нагрузка {@link EmbeddingBenchmark}: модель эмбеддингов и batchSize текстов по textTokens токенов.
+ */
+public class EmbeddingWorkload implements EmbeddingBenchmark.Workload {
+
+    private final LocalONNXEmbeddingModel model;
+    private final String text;
+    private final List<TextSegment> batch;
+
+    public EmbeddingWorkload(int textTokens, int batchSize, int poolSize) throws Exception {
+        String modelDir = BenchmarkModels.modelDir(BenchmarkModels.EMBEDDING);
+        model = new LocalONNXEmbeddingModel(modelDir, poolSize);
+        // embedAll считает всю пачку одним пакетным проходом
+        model.setBatchSize(batchSize);
+        model.warmup(2);
+        try (HuggingFaceTokenizer tokenizer = HuggingFaceTokenizer.newInstance(Paths.get(modelDir))) {
+            text = BenchmarkModels.promptOfTokens(tokenizer, textTokens);
+        }
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(TextSegment.from(text));
+        }
+    }
+
+    @Override
+    public Embedding embed() {
+        return model.embed(text);
+    }
+
+    @Override
+    public List<Embedding> embedAll() {
+        return model.embedAll(batch);
+    }
+
+    @Override
+    public void close() {
+        model.close();
+    }
+}
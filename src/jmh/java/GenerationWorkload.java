@@ -0,0 +1,37 @@
+import benchmark.GenerationBenchmark;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+
+import java.util.List;
+
+/**
+ * Нагрузка {@link GenerationBenchmark}: чат-модель и prompt из promptTokens токенов.
+ */
+public class GenerationWorkload implements GenerationBenchmark.Workload {
+
+    private final LocalChatModel chatModel;
+    private final String prompt;
+    private final List<ChatMessage> history;
+
+    public GenerationWorkload(String model, int promptTokens, int poolSize) throws Exception {
+        chatModel = BenchmarkModels.load(model, poolSize);
+        chatModel.warmup(2);
+        prompt = BenchmarkModels.promptOfTokens(chatModel.getTokenizer(), promptTokens);
+        history = List.of(new UserMessage(prompt));
+    }
+
+    @Override
+    public Object prefill() throws Exception {
+        return chatModel.generate(prompt, 1, new TokenSampler(SamplingParams.greedy()));
+    }
+
+    @Override
+    public Object chat() throws Exception {
+        return chatModel.chat(history, null);
+    }
+
+    @Override
+    public void close() {
+        chatModel.close();
+    }
+}
@@ -0,0 +1,45 @@
+import benchmark.IngestionBenchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Нагрузка {@link IngestionBenchmark}: DocumentProcessor и книга из BENCH_BOOKS.
+ * Без кэша эмбеддингов каждый вызов прогоняет все фрагменты через модель; с кэшем после
+ * первого вызова фрагменты берутся из него.
+ */
+public class IngestionWorkload implements IngestionBenchmark.Workload {
+
+    private final DocumentProcessor processor;
+    private final String path;
+
+    public IngestionWorkload(String book, boolean cached) throws Exception {
+        Path file = BenchmarkModels.booksDir().resolve(book);
+        if (!Files.isRegularFile(file)) {
+            throw new IllegalStateException("Нет книги " + file + " (см. BENCH_BOOKS)");
+        }
+        path = file.toString();
+        processor = new DocumentProcessor(BenchmarkModels.modelDir(BenchmarkModels.EMBEDDING));
+        processor.warmup(2);
+        if (!cached) {
+            processor.getEmbeddingModel().setCache(null);
+        }
+    }
+
+    @Override
+    public void reset() {
+        processor.resetStore();
+    }
+
+    @Override
+    public Object processDocument() {
+        processor.processDocument(path);
+        return processor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        processor.closeModel();
+    }
+}
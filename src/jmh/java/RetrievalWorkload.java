@@ -0,0 +1,113 @@
+import benchmark.RetrievalBenchmark;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Нагрузка {@link RetrievalBenchmark}: DocumentProcessor, хранилище которого заполнено
+ * storeSize случайными единичными векторами. Хранилище hnsw ({@link benchmark.HnswRetrievalBenchmark})
+ * заполняется вместе с точной копией (те же идентификаторы и массивы векторов), по которой печатается
+ * отчёт recall против задержки; efSearch используется только для hnsw.
+ */
+public class RetrievalWorkload implements RetrievalBenchmark.Workload {
+
+    private static final String QUERY = "Who is the sea girl?";
+    // Векторы добавляются порциями, чтобы не держать второй полный список при заполнении
+    private static final int ADD_CHUNK = 10_000;
+    private static final int REPORT_QUERIES = 100;
+
+    private final DocumentProcessor processor;
+    private final Embedding queryEmbedding;
+    private final int k;
+
+    public RetrievalWorkload(int storeSize, int k, String store, int efSearch) throws Exception {
+        this.k = k;
+        processor = new DocumentProcessor(BenchmarkModels.modelDir(BenchmarkModels.EMBEDDING));
+        processor.warmup(2);
+        // retrieve измеряет эмбеддинг запроса моделью, а не попадание в кэш
+        processor.getEmbeddingModel().setCache(null);
+        queryEmbedding = processor.getEmbeddingModel().embed(QUERY);
+        int dimension = queryEmbedding.dimension();
+
+        HnswEmbeddingStore hnsw = null;
+        FlatEmbeddingStore exact = null;
+        switch (store) {
+            case "flat":
+                processor.setVectorStoreFactory(FlatEmbeddingStore::new);
+                break;
+            case "offheap":
+                processor.setVectorStoreFactory(OffHeapEmbeddingStore::new);
+                break;
+            case "hnsw":
+                hnsw = new HnswEmbeddingStore(true, HnswEmbeddingStore.DEFAULT_M,
+                        HnswEmbeddingStore.DEFAULT_EF_CONSTRUCTION, efSearch);
+                exact = new FlatEmbeddingStore(true);
+                processor.setVectorStore(hnsw);
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестное хранилище: " + store);
+        }
+
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int offset = 0; offset < storeSize; offset += ADD_CHUNK) {
+            int count = Math.min(ADD_CHUNK, storeSize - offset);
+            List<String> ids = new ArrayList<>(count);
+            List<Embedding> embeddings = new ArrayList<>(count);
+            List<TextSegment> segments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ids.add(String.valueOf(offset + i));
+                embeddings.add(randomUnitVector(random, dimension));
+                segments.add(TextSegment.from("synthetic segment " + (offset + i)));
+            }
+            if (hnsw != null) {
+                hnsw.addAll(ids, embeddings, segments);
+                exact.addAll(ids, embeddings, segments);
+            } else {
+                processor.addEmbeddings(embeddings, segments);
+            }
+        }
+        if (hnsw != null) {
+            System.out.printf("HNSW построен за %d мс%n", (System.nanoTime() - start) / 1_000_000);
+            List<Embedding> queries = new ArrayList<>(REPORT_QUERIES);
+            Random queryRandom = new Random(7);
+            for (int i = 0; i < REPORT_QUERIES; i++) {
+                queries.add(randomUnitVector(queryRandom, dimension));
+            }
+            System.out.print(hnsw.recallReport(exact, queries, k, 16, 32, 64, 128, 256));
+        }
+    }
+
+    private static Embedding randomUnitVector(Random random, int dimension) {
+        float[] vector = new float[dimension];
+        double norm = 0;
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = (float) random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < dimension; i++) {
+            vector[i] *= scale;
+        }
+        return new Embedding(vector);
+    }
+
+    @Override
+    public List<TextSegment> retrieve() {
+        return processor.retrieveRelevantContext(QUERY, k);
+    }
+
+    @Override
+    public List<TextSegment> search() {
+        return processor.findRelevantSegments(queryEmbedding, k);
+    }
+
+    @Override
+    public void close() throws IOException {
+        processor.closeModel();
+    }
+}
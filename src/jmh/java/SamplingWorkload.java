@@ -0,0 +1,40 @@
+import benchmark.SamplingBenchmark;
+
+import java.util.Random;
+
+/**
+ * Нагрузка {@link SamplingBenchmark}: случайные логиты словаря и сэмплер с фиксированным seed.
+ */
+public class SamplingWorkload implements SamplingBenchmark.Workload {
+
+    private final float[] logits;
+    private final TokenSampler sampler;
+
+    public SamplingWorkload(int vocab, String sampling) {
+        Random random = new Random(42);
+        logits = new float[vocab];
+        for (int i = 0; i < vocab; i++) {
+            logits[i] = (float) random.nextGaussian() * 3f;
+        }
+        SamplingParams params;
+        switch (sampling) {
+            case "greedy":
+                params = SamplingParams.greedy();
+                break;
+            case "topP":
+                params = SamplingParams.topP(0.7f, 0.9f);
+                break;
+            case "topK":
+                params = new SamplingParams(0.7f, 50, 1f, 0f);
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный режим сэмплирования: " + sampling);
+        }
+        sampler = new TokenSampler(params, 42);
+    }
+
+    @Override
+    public int sample() {
+        return sampler.sample(logits);
+    }
+}
@@ -0,0 +1,72 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность непрерывного пакетирования SmolLM2: batchSize одновременных запросов
+ * по {@link #DECODE_TOKENS} токенов декодируются общими пакетными проходами.
+ * <p>
+ * Результат – время на весь пакет; токенов в секунду = batchSize * DECODE_TOKENS / время.
+ * batchSize = 1 – тот же планировщик без соседей по пакету, для сравнения.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class BatchedDecodeBenchmark {
+
+    static final int DECODE_TOKENS = 32;
+
+    /**
+     * Нагрузка: SmolLM2 с планировщиком пакетов (реализация – BatchedDecodeWorkload).
+     */
+    public interface Workload extends AutoCloseable {
+
+        /**
+         * Декодирует batchSize одновременных запросов и ждёт их завершения.
+         */
+        Object decodeBatch() throws Exception;
+
+        @Override
+        void close();
+    }
+
+    @Param({"1", "4", "8"})
+    public int batchSize;
+
+    @Param({"16", "128"})
+    public int promptTokens;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create("BatchedDecodeWorkload", Workload.class, batchSize, promptTokens, DECODE_TOKENS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public Object decodeBatch() throws Exception {
+        return workload.decodeBatch();
+    }
+}
@@ -0,0 +1,116 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка одного шага декодирования с KV-кэшем при заданной длине контекста.
+ * <p>
+ * Каждый поток держит собственный кэш с prefill-ом контекста; перед каждым вызовом кэш откатывается
+ * к длине контекста, так что все шаги выполняются при одной и той же длине. GPT2 не участвует:
+ * его ONNX-экспорт без past_key_values, и каждый шаг для него – полный prefill (см. {@link GenerationBenchmark}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class DecodeBenchmark {
+
+    /**
+     * Нагрузка: загруженная модель и токены контекста (реализация – DecodeWorkload).
+     */
+    public interface Workload extends AutoCloseable {
+
+        /**
+         * Новая последовательность с prefill-ом контекста.
+         */
+        Sequence newSequence() throws Exception;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Последовательность с собственным KV-кэшем.
+     */
+    public interface Sequence extends AutoCloseable {
+
+        /**
+         * Откатывает кэш к длине контекста.
+         */
+        void rewind();
+
+        /**
+         * Один шаг декодирования; возвращает логиты.
+         */
+        Object decodeToken() throws Exception;
+
+        @Override
+        void close();
+    }
+
+    @Param({"smollm2", "llama"})
+    public String model;
+
+    @Param({"16", "512"})
+    public int contextTokens;
+
+    @Param({"1"})
+    public int poolSize;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create("DecodeWorkload", Workload.class, model, contextTokens, poolSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    /**
+     * Последовательность потока.
+     */
+    @State(Scope.Thread)
+    public static class ThreadSequence {
+
+        private Sequence sequence;
+
+        @Setup(Level.Trial)
+        public void prefill(DecodeBenchmark benchmark) throws Exception {
+            sequence = benchmark.workload.newSequence();
+        }
+
+        @Setup(Level.Invocation)
+        public void rewind() {
+            sequence.rewind();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            sequence.close();
+        }
+    }
+
+    @Benchmark
+    public Object decodeToken(ThreadSequence thread) throws Exception {
+        return thread.sequence.decodeToken();
+    }
+}
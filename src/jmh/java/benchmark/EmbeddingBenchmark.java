@@ -0,0 +1,75 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка эмбеддинга одного текста (embed) и пачки из batchSize текстов (embedAll)
+ * в зависимости от длины текста в токенах модели эмбеддингов.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EmbeddingBenchmark {
+
+    /**
+     * Нагрузка: модель эмбеддингов и тексты заданной длины (реализация – EmbeddingWorkload).
+     */
+    public interface Workload extends AutoCloseable {
+
+        Object embed();
+
+        Object embedAll();
+
+        @Override
+        void close();
+    }
+
+    // Тексты обрезаются до max_seq_length из sentence_bert_config.json (256 токенов)
+    @Param({"16", "64", "128", "256"})
+    public int textTokens;
+
+    @Param({"1", "8", "32"})
+    public int batchSize;
+
+    @Param({"1"})
+    public int poolSize;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create("EmbeddingWorkload", Workload.class, textTokens, batchSize, poolSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public Object embed() {
+        return workload.embed();
+    }
+
+    @Benchmark
+    public Object embedAll() {
+        return workload.embedAll();
+    }
+}
@@ -0,0 +1,78 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка prefill и полного ответа chat трёх чат-моделей в зависимости от длины prompt-а.
+ * <p>
+ * prefill – generate с одним новым токеном: токенизация, один проход модели по всему prompt-у
+ * и жадный выбор токена. chat – ответ на одну реплику пользователя целиком (до 90 токенов или
+ * стоп-последовательности). Число потоков задаётся опцией JMH -t, а poolSize – число предикторов
+ * модели и, соответственно, intra-op потоков ONNX Runtime на каждый из них.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class GenerationBenchmark {
+
+    /**
+     * Нагрузка: загруженная модель и prompt заданной длины (реализация – GenerationWorkload).
+     */
+    public interface Workload extends AutoCloseable {
+
+        Object prefill() throws Exception;
+
+        Object chat() throws Exception;
+
+        @Override
+        void close();
+    }
+
+    @Param({"smollm2", "llama", "gpt2"})
+    public String model;
+
+    @Param({"16", "128", "512"})
+    public int promptTokens;
+
+    @Param({"1"})
+    public int poolSize;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create("GenerationWorkload", Workload.class, model, promptTokens, poolSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public Object prefill() throws Exception {
+        return workload.prefill();
+    }
+
+    @Benchmark
+    public Object chat() throws Exception {
+        return workload.chat();
+    }
+}
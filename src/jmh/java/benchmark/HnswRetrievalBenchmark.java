@@ -0,0 +1,69 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка поиска по графу HNSW с шириной поиска efSearch (например, -p efSearch=16,32,64,128
+ * даёт кривую задержки). Нагрузка та же, что у {@link RetrievalBenchmark}.
+ * <p>
+ * При подготовке хранилище заполняется вместе с точной копией тех же векторов, и печатается отчёт
+ * recall@k против точного поиска. Случайные векторы – худший случай для HNSW: у реальных эмбеддингов
+ * внутренняя размерность ниже и recall при том же efSearch выше.
+ * <p>
+ * Миллион векторов по умолчанию не измеряется: построение графа вместе с точной копией занимает
+ * основную часть прогона и почти всю кучу форка. Включается явно: -p storeSize=1000000.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class HnswRetrievalBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int storeSize;
+
+    @Param({"5"})
+    public int k;
+
+    @Param({"64"})
+    public int efSearch;
+
+    private RetrievalBenchmark.Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create("RetrievalWorkload", RetrievalBenchmark.Workload.class,
+                storeSize, k, "hnsw", efSearch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public Object retrieve() {
+        return workload.retrieve();
+    }
+
+    @Benchmark
+    public Object search() {
+        return workload.search();
+    }
+}
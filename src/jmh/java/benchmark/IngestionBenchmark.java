@@ -0,0 +1,73 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время загрузки одной книги через DocumentProcessor.processDocument: чтение, разбиение на фрагменты,
+ * эмбеддинги и добавление в хранилище. Перед каждым вызовом хранилище очищается.
+ * cached=true – повторная загрузка неизменившейся книги: эмбеддинги берутся из кэша.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class IngestionBenchmark {
+
+    /**
+     * Нагрузка: DocumentProcessor и путь к книге (реализация – IngestionWorkload).
+     */
+    public interface Workload extends AutoCloseable {
+
+        void reset();
+
+        Object processDocument();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    @Param({"The sea girl.txt", "the_adventure_of_the_blue_carbuncle.txt"})
+    public String book;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create("IngestionWorkload", Workload.class, book, cached);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        workload.reset();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public Object processDocument() {
+        return workload.processDocument();
+    }
+}
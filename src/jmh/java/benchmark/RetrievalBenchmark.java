@@ -0,0 +1,84 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка поиска контекста в зависимости от размера хранилища.
+ * <p>
+ * Хранилище заполняется storeSize синтетическими единичными векторами размерности модели эмбеддингов.
+ * retrieve – DocumentProcessor.retrieveRelevantContext целиком (эмбеддинг запроса и поиск),
+ * search – только поиск по готовому эмбеддингу запроса. Миллион векторов размерности 768 занимает
+ * около 3 ГБ кучи, поэтому форк запускается с -Xmx8g.
+ * <p>
+ * store – хранилище: flat – точный перебор, offheap – точный перебор матрицы вне кучи параллельно
+ * и на Vector API (форк подключает jdk.incubator.vector). Граф HNSW измеряется отдельно
+ * в {@link HnswRetrievalBenchmark}: его построение на миллионе векторов занимает большую часть прогона.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "--add-modules=jdk.incubator.vector"})
+public class RetrievalBenchmark {
+
+    /**
+     * Нагрузка: DocumentProcessor с синтетическим хранилищем (реализация – RetrievalWorkload).
+     */
+    public interface Workload extends AutoCloseable {
+
+        Object retrieve();
+
+        Object search();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int storeSize;
+
+    @Param({"5"})
+    public int k;
+
+    @Param({"flat", "offheap"})
+    public String store;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // efSearch (последний аргумент) нужен только графу HNSW
+        workload = Workloads.create("RetrievalWorkload", Workload.class, storeSize, k, store, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        workload.close();
+    }
+
+    @Benchmark
+    public Object retrieve() {
+        return workload.retrieve();
+    }
+
+    @Benchmark
+    public Object search() {
+        return workload.search();
+    }
+}
@@ -0,0 +1,57 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость выбора токена по логитам без модели: работает без файлов моделей.
+ * <p>
+ * Логиты – случайные, с нормальным распределением, как у обученной модели до softmax.
+ * vocab – размеры словарей SmolLM2 и Llama 3.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamplingBenchmark {
+
+    /**
+     * Нагрузка: логиты и сэмплер (реализация – SamplingWorkload).
+     */
+    public interface Workload {
+
+        int sample();
+    }
+
+    @Param({"49152", "128256"})
+    public int vocab;
+
+    @Param({"greedy", "topP", "topK"})
+    public String sampling;
+
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workload = Workloads.create("SamplingWorkload", Workload.class, vocab, sampling);
+    }
+
+    @Benchmark
+    public int sample() {
+        return workload.sample();
+    }
+}
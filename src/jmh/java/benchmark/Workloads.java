@@ -0,0 +1,42 @@
+package benchmark;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Создание нагрузок бенчмарков.
+ * <p>
+ * Классы проекта лежат в пакете по умолчанию, а JMH не принимает бенчмарки из него; из именованного
+ * пакета классы пакета по умолчанию не видны. Поэтому сама нагрузка пишется в пакете по умолчанию
+ * (src/jmh/java/*Workload.java) и реализует интерфейс, объявленный в бенчмарке, а бенчмарк создаёт её
+ * по имени класса. Рефлексия используется только при создании: замеряемые вызовы идут напрямую
+ * через интерфейс.
+ */
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    /**
+     * Создаёт нагрузку единственным публичным конструктором её класса.
+     *
+     * @param className имя класса нагрузки в пакете по умолчанию.
+     * @param type      интерфейс нагрузки.
+     * @param args      аргументы конструктора.
+     */
+    static <T> T create(String className, Class<T> type, Object... args) throws Exception {
+        Class<?> clazz = Class.forName(className);
+        Constructor<?>[] constructors = clazz.getConstructors();
+        if (constructors.length != 1) {
+            throw new IllegalStateException("У " + className + " должен быть один публичный конструктор");
+        }
+        try {
+            return type.cast(constructors[0].newInstance(args));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * KV-кэш пакета последовательностей разной длины для пакетного декодирования.
+ * <p>
+ * Тензоры past_key_values имеют форму [batch, numHeads, padded, headDim]; последовательности выровнены
+ * по правому краю (left padding), так что строка длины L занимает позиции [padded - L, padded),
+ * а лишние позиции слева закрываются нулями в attention_mask.
+ * <p>
+ * Между изменениями состава пакета выходы present.* передаются на следующий шаг без копирования.
+ * Перекладка памяти ({@link #rebuild}) происходит только когда строки добавляются или удаляются.
+ */
+public class BatchKVCache implements AutoCloseable {
+
+    private final NDManager manager;
+    private final int numLayers;
+    private final int numHeads;
+    private final int headDim;
+    private NDList past;
+    private int[] lengths = new int[0];
+    private int padded;
+    private float[] staging = new float[0];
+
+    public BatchKVCache(NDManager parentManager, int numLayers, int numHeads, int headDim) {
+        this.manager = parentManager.newSubManager();
+        this.numLayers = numLayers;
+        this.numHeads = numHeads;
+        this.headDim = headDim;
+    }
+
+    /**
+     * Число строк в пакете.
+     */
+    public int batchSize() {
+        return lengths.length;
+    }
+
+    /**
+     * Ширина тензоров кэша с учётом выравнивания.
+     */
+    public int paddedLength() {
+        return padded;
+    }
+
+    /**
+     * Фактическая длина закэшированной части строки.
+     */
+    public int length(int row) {
+        return lengths[row];
+    }
+
+    public NDList pastKeyValues() {
+        return past;
+    }
+
+    /**
+     * Запоминает present.* после пакетного шага: каждая строка выросла на одну позицию.
+     */
+    public void update(NDList presents) {
+        presents.attach(manager);
+        if (past != null) {
+            past.close();
+        }
+        past = presents;
+        padded = (int) presents.get(0).getShape().get(2);
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i]++;
+        }
+    }
+
+    /**
+     * Пересобирает пакет под новый состав строк.
+     *
+     * @param oldRows для каждой строки нового пакета – её индекс в текущем пакете или -1 для новой строки.
+     * @param fresh   для новых строк – их KV-кэш после prefill (иначе null на той же позиции).
+     *                При ошибке пакет остаётся прежним.
+     */
+    public void rebuild(int[] oldRows, List<KVCache> fresh) {
+        int batch = oldRows.length;
+        if (batch == 0) {
+            if (past != null) {
+                past.close();
+                past = null;
+            }
+            lengths = new int[0];
+            padded = 0;
+            return;
+        }
+        int[] newLengths = new int[batch];
+        int newPadded = 0;
+        for (int b = 0; b < batch; b++) {
+            newLengths[b] = oldRows[b] >= 0 ? lengths[oldRows[b]] : fresh.get(b).length();
+            newPadded = Math.max(newPadded, newLengths[b]);
+        }
+        int tensorFloats = batch * numHeads * newPadded * headDim;
+        if (staging.length < tensorFloats) {
+            staging = new float[tensorFloats];
+        }
+        Shape shape = new Shape(batch, numHeads, newPadded, headDim);
+        NDList rebuilt = new NDList(numLayers * 2);
+        try {
+            fill(rebuilt, oldRows, fresh, newLengths, newPadded, tensorFloats, shape);
+        } catch (RuntimeException e) {
+            // Прежний кэш не тронут: освобождаем только уже созданные тензоры
+            rebuilt.close();
+            throw e;
+        }
+        if (past != null) {
+            past.close();
+        }
+        past = rebuilt;
+        lengths = newLengths;
+        padded = newPadded;
+    }
+
+    private void fill(NDList rebuilt, int[] oldRows, List<KVCache> fresh, int[] newLengths, int newPadded,
+                      int tensorFloats, Shape shape) {
+        int batch = oldRows.length;
+        for (int j = 0; j < numLayers * 2; j++) {
+            Arrays.fill(staging, 0, tensorFloats, 0f);
+            FloatBuffer oldData = past == null ? null : read(past.get(j));
+            for (int b = 0; b < batch; b++) {
+                int len = newLengths[b];
+                FloatBuffer src;
+                int srcRow;
+                int srcPadded;
+                if (oldRows[b] >= 0) {
+                    src = oldData;
+                    srcRow = oldRows[b];
+                    srcPadded = padded;
+                } else {
+                    src = read(fresh.get(b).pastKeyValues(manager).get(j));
+                    srcRow = 0;
+                    srcPadded = len;
+                }
+                for (int h = 0; h < numHeads; h++) {
+                    int from = ((srcRow * numHeads + h) * srcPadded + (srcPadded - len)) * headDim;
+                    int to = ((b * numHeads + h) * newPadded + (newPadded - len)) * headDim;
+                    src.get(from, staging, to, len * headDim);
+                }
+            }
+            rebuilt.add(manager.create(FloatBuffer.wrap(staging, 0, tensorFloats), shape));
+        }
+    }
+
+    private static FloatBuffer read(NDArray array) {
+        return array.toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @Override
+    public void close() {
+        manager.close();
+        past = null;
+        lengths = new int[0];
+        padded = 0;
+    }
+}
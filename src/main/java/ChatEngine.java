@@ -6,24 +6,59 @@ import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.model.chat.response.ChatResponse;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 
 public class ChatEngine {
-    // private final LocalONNXGPT2Model chatModel;
-    //private LocalONNXLlamaModel chatModel;
-    private final LocalONNXSmolLM2Model chatModel;
+    // chat models available by name; each one is loaded on first use
+    public static final String GPT2 = "gpt2";
+    public static final String LLAMA = "llama-3.2-1b";
+    public static final String SMOLLM2 = "smollm2-135m";
+    // native memory budget for loaded chat models; least recently used models are unloaded beyond it
+    private static final long MODEL_MEMORY_BUDGET = 3L * 1024 * 1024 * 1024;
+    private final ModelRegistry<LocalChatModel> chatModels;
+    private String defaultModel = SMOLLM2;
     private final String systemMessage;
     private final List<ChatMessage> conversationHistory;
     private final String promptTemplate;
     private final String tfModelDirGPT2 = "/home/acer/IdeaProjects/DJI/src/main/resources/GPT2";
     private final String tfModelDirLLama = "/home/acer/IdeaProjects/DJI/src/main/resources/Llama-32-1B";
     private final String tfModelDirSmoILM = "/home/acer/IdeaProjects/DJI/src/main/resources/SmolLM2-135M-Instruct";
+    // memory budget for KV states of shared prompt prefixes (instruction template, earlier turns)
+    private static final long PREFIX_CACHE_BUDGET = 256L * 1024 * 1024;
+    // prompt budget in model tokens and number of latest turns kept verbatim
+    private static final int MAX_PROMPT_TOKENS = 2048;
+    private static final int KEEP_RECENT_TURNS = 2;
+    private final ContextWindowManager contextWindow;
+    // generation telemetry per model name; kept here so it survives unloading of the model
+    private final Map<String, GenerationTelemetry> telemetry = new LinkedHashMap<>();
 
     public ChatEngine() throws Exception {
-        // this.chatModel = new LocalONNXGPT2Model(tfModelDirGPT2);
-        // this.chatModel = new LocalONNXLlamaModel(tfModelDirLLama);
-        this.chatModel = new LocalONNXSmolLM2Model(tfModelDirSmoILM);
+        this.chatModels = new ModelRegistry<>(MODEL_MEMORY_BUDGET);
+        for (String name : List.of(GPT2, LLAMA, SMOLLM2)) {
+            telemetry.put(name, new GenerationTelemetry(name));
+        }
+        this.chatModels.register(GPT2, tfModelDirGPT2, () -> {
+            LocalONNXGPT2Model model = new LocalONNXGPT2Model(tfModelDirGPT2);
+            model.setTelemetry(telemetry.get(GPT2));
+            return model;
+        });
+        // Every turn resends the whole history; the prefix cache lets prefill run only over the new tokens
+        this.chatModels.register(LLAMA, tfModelDirLLama, () -> {
+            LocalONNXLlamaModel model = new LocalONNXLlamaModel(tfModelDirLLama);
+            model.setPrefixCache(new PrefixCache(PREFIX_CACHE_BUDGET));
+            model.setTelemetry(telemetry.get(LLAMA));
+            return model;
+        });
+        this.chatModels.register(SMOLLM2, tfModelDirSmoILM, () -> {
+            LocalONNXSmolLM2Model model = new LocalONNXSmolLM2Model(tfModelDirSmoILM);
+            model.setPrefixCache(new PrefixCache(PREFIX_CACHE_BUDGET));
+            model.setTelemetry(telemetry.get(SMOLLM2));
+            return model;
+        });
         this.systemMessage =
                "You are a helpful assistant that ONLY answers questions based on the "
                         + "provided context. If no relevant context is provided, politely inform "
@@ -36,6 +71,10 @@ public class ChatEngine {
         this.conversationHistory = new ArrayList<>();
         this.conversationHistory.add(new SystemMessage(systemMessage));
 
+        // The model sees a token-budgeted view of the history, conversationHistory keeps the full log
+        this.contextWindow = new ContextWindowManager(MAX_PROMPT_TOKENS, KEEP_RECENT_TURNS);
+        this.contextWindow.setSystemMessage(systemMessage);
+
         // Define the prompt template that instructs the model to answer questions
         // based only on the provided context, with placeholders for context and question
 
@@ -53,6 +92,33 @@ public class ChatEngine {
         return conversationHistory;
     }
 
+    public ModelRegistry<LocalChatModel> getChatModels() {
+        return chatModels;
+    }
+
+    public String getDefaultModel() {
+        return defaultModel;
+    }
+
+    // model used by sendMessage when the caller does not pick one
+    public void setDefaultModel(String defaultModel) {
+        this.defaultModel = defaultModel;
+    }
+
+    // TTFT, prefill/decode latency, tokens/sec and stop reasons of the model registered under modelName
+    public GenerationTelemetry getTelemetry(String modelName) {
+        return telemetry.get(modelName);
+    }
+
+    public ContextWindowManager getContextWindow() {
+        return contextWindow;
+    }
+
+    // number of prompt tokens sent to the model on the last turn
+    public int getLastPromptTokens() {
+        return contextWindow.getLastPromptTokens();
+    }
+
     // method to format the prompt template with context and question parameters
     public String formatMessage(String userMessage, String context) {
         String formattedUserMessage = String.format(this.promptTemplate, context, userMessage);
@@ -61,24 +127,62 @@ public class ChatEngine {
     }
 
     public String sendMessage(String userMessage, String context) throws TranslateException {
+        return sendMessage(userMessage, context, null);
+    }
+
+    // streaming variant: response pieces are passed to onToken as soon as they are decoded
+    public String sendMessage(String userMessage, String context, Consumer<String> onToken) throws TranslateException {
+        return sendMessage(userMessage, context, defaultModel, onToken);
+    }
+
+    // same as above, answered by the chat model registered under modelName
+    public String sendMessage(String userMessage, String context, String modelName, Consumer<String> onToken)
+            throws TranslateException {
 
         // Format the message using the prompt template
         String promt = formatMessage(context, userMessage);
         // Add the current message to the conversation history
         this.conversationHistory.add(new UserMessage(promt));
-        // Get the response from the model
-        ChatResponse aiMessage = chatModel.chat(this.conversationHistory);
-        String responseContent = aiMessage.aiMessage().text();
+        String responseContent;
+        // The lease keeps the model loaded until the answer is complete
+        try (ModelRegistry.Lease<LocalChatModel> lease = leaseModel(modelName)) {
+            LocalChatModel chatModel = lease.get();
+            // Fit the history into the token budget of this model; old context and turns are dropped first
+            contextWindow.setTokenizer(chatModel.getTokenizer());
+            List<ChatMessage> window = contextWindow.nextPrompt(promt, userMessage);
+            // Get the response from the model
+            ChatResponse aiMessage = chatModel.chat(window, onToken);
+            responseContent = aiMessage.aiMessage().text();
+        }
         // Add the response to conversation history
         this.conversationHistory.add(new AiMessage(responseContent));
+        contextWindow.completeTurn(responseContent);
         // Return the response content
         return responseContent;
     }
 
+    // runs synthetic prefill/decode passes so the first real request does not pay lazy initialization
+    public void warmup(int iterations) throws TranslateException {
+        try (ModelRegistry.Lease<LocalChatModel> lease = leaseModel(defaultModel)) {
+            lease.get().warmup(iterations);
+        }
+    }
+
+    private ModelRegistry.Lease<LocalChatModel> leaseModel(String modelName) throws TranslateException {
+        try {
+            return chatModels.acquire(modelName);
+        } catch (TranslateException | IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TranslateException("Failed to load chat model " + modelName, e);
+        }
+    }
+
     public void resetConversation() {
         // Reset the conversation history
         this.conversationHistory.clear();
         this.conversationHistory.add(new SystemMessage(systemMessage));
+        this.contextWindow.reset();
     }
 
 }
\ No newline at end of file
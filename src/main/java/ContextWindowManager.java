@@ -0,0 +1,260 @@
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.huggingface.tokenizers.jni.CharSpan;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Окно контекста диалога с бюджетом в токенах.
+ * <p>
+ * Хранит реплики диалога и перед каждым запросом собирает из них историю, prompt которой укладывается
+ * в maxPromptTokens токенов модели. Токены считаются токенизатором модели в том же формате,
+ * в котором модели собирают prompt ("User: ...\n", "Assistant: ...\n", "Assistant:").
+ * <p>
+ * Если бюджет превышен, история сокращается по шагам, пока не уложится:
+ * <ol>
+ *     <li>у старых реплик (за пределами keepRecentTurns последних) убирается найденный RAG-контекст,
+ *     остаётся только вопрос пользователя;</li>
+ *     <li>старые реплики удаляются целиком, начиная с самых ранних;</li>
+ *     <li>то же самое для последних реплик, кроме текущей;</li>
+ *     <li>у текущей реплики убирается контекст;</li>
+ *     <li>если и сам вопрос длиннее бюджета, от него остаётся конец, который укладывается в бюджет.</li>
+ * </ol>
+ * Реплики из последних keepRecentTurns до шага 3 передаются модели дословно. Prompt после сокращения
+ * всегда укладывается в бюджет; если в бюджет не помещается даже пустая реплика, nextPrompt бросает
+ * IllegalArgumentException.
+ */
+public class ContextWindowManager {
+
+    private HuggingFaceTokenizer tokenizer;
+    private final int maxPromptTokens;
+    private final int keepRecentTurns;
+    private final List<Turn> turns = new ArrayList<>();
+    private final List<Integer> promptTokenCounts = new ArrayList<>();
+    private String systemMessage;
+
+    /**
+     * @param tokenizer       токенизатор чат-модели.
+     * @param maxPromptTokens бюджет prompt-а в токенах (без учёта генерируемого ответа).
+     * @param keepRecentTurns сколько последних завершённых реплик сохранять дословно.
+     */
+    public ContextWindowManager(HuggingFaceTokenizer tokenizer, int maxPromptTokens, int keepRecentTurns) {
+        if (maxPromptTokens <= 0) {
+            throw new IllegalArgumentException("maxPromptTokens должно быть положительным: " + maxPromptTokens);
+        }
+        this.tokenizer = tokenizer;
+        this.maxPromptTokens = maxPromptTokens;
+        this.keepRecentTurns = keepRecentTurns;
+    }
+
+    /**
+     * Окно без токенизатора: его нужно задать через {@link #setTokenizer} до первого {@link #nextPrompt}.
+     */
+    public ContextWindowManager(int maxPromptTokens, int keepRecentTurns) {
+        this(null, maxPromptTokens, keepRecentTurns);
+    }
+
+    /**
+     * Меняет токенизатор, например когда следующий ход диалога обслуживает другая модель.
+     * Токены реплик будут пересчитаны новым токенизатором.
+     */
+    public void setTokenizer(HuggingFaceTokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Системное сообщение передаётся модели первым; модели текущего проекта его не токенизируют,
+     * поэтому в бюджете оно не учитывается.
+     */
+    public void setSystemMessage(String systemMessage) {
+        this.systemMessage = systemMessage;
+    }
+
+    /**
+     * Начинает новую реплику и возвращает историю для модели, уложенную в бюджет.
+     *
+     * @param prompt   полное сообщение пользователя вместе с найденным контекстом.
+     * @param question то же сообщение без контекста – на него заменяется prompt при сокращении.
+     * @throws IllegalArgumentException если бюджет меньше prompt-а с пустой репликой.
+     */
+    public List<ChatMessage> nextPrompt(String prompt, String question) {
+        turns.add(new Turn(prompt, question));
+        try {
+            return fit();
+        } catch (IllegalArgumentException e) {
+            turns.remove(turns.size() - 1);
+            throw e;
+        }
+    }
+
+    /**
+     * Запоминает ответ модели на текущую реплику.
+     */
+    public void completeTurn(String answer) {
+        Turn current = turns.get(turns.size() - 1);
+        current.answer = answer;
+        if (current.countedWith == tokenizer) {
+            current.answerTokens = count("Assistant: " + answer + "\n");
+        }
+    }
+
+    /**
+     * Число токенов prompt-а, отправленного модели на последнем ходу.
+     */
+    public int getLastPromptTokens() {
+        return promptTokenCounts.isEmpty() ? 0 : promptTokenCounts.get(promptTokenCounts.size() - 1);
+    }
+
+    /**
+     * Число токенов prompt-а на каждом ходу диалога.
+     */
+    public List<Integer> getPromptTokenCounts() {
+        return Collections.unmodifiableList(promptTokenCounts);
+    }
+
+    public int getMaxPromptTokens() {
+        return maxPromptTokens;
+    }
+
+    public void reset() {
+        turns.clear();
+        promptTokenCounts.clear();
+    }
+
+    private List<ChatMessage> fit() {
+        int last = turns.size() - 1;
+        // BOS и завершающий "Assistant:"
+        int total = 1 + count("Assistant:");
+        // Сокращения необратимы: реплика, у которой уже убран контекст, так и остаётся короткой,
+        // поэтому начало prompt-а между ходами стабильно (это важно для кэша префиксов)
+        for (Turn turn : turns) {
+            total += turn.tokens();
+        }
+        int first = 0;
+        int oldEnd = Math.max(0, last - keepRecentTurns);
+
+        // 1. Контекст старых реплик
+        for (int i = first; i < oldEnd && total > maxPromptTokens; i++) {
+            total -= turns.get(i).tokens();
+            turns.get(i).withContext = false;
+            total += turns.get(i).tokens();
+        }
+        // 2. Старые реплики целиком
+        while (first < oldEnd && total > maxPromptTokens) {
+            total -= turns.get(first++).tokens();
+        }
+        // 3. Последние реплики, кроме текущей: сначала контекст, затем целиком
+        for (int i = first; i < last && total > maxPromptTokens; i++) {
+            total -= turns.get(i).tokens();
+            turns.get(i).withContext = false;
+            total += turns.get(i).tokens();
+        }
+        while (first < last && total > maxPromptTokens) {
+            total -= turns.get(first++).tokens();
+        }
+        // 4. Контекст текущей реплики
+        if (total > maxPromptTokens) {
+            total -= turns.get(last).tokens();
+            turns.get(last).withContext = false;
+            total += turns.get(last).tokens();
+        }
+        // 5. Конец вопроса текущей реплики
+        if (total > maxPromptTokens) {
+            Turn current = turns.get(last);
+            total -= current.tokens();
+            current.truncateQuestion(maxPromptTokens - total);
+            total += current.tokens();
+        }
+        // Удалённые реплики больше не понадобятся: следующие ходы только длиннее
+        turns.subList(0, first).clear();
+        promptTokenCounts.add(total);
+
+        List<ChatMessage> history = new ArrayList<>();
+        if (systemMessage != null) {
+            history.add(new SystemMessage(systemMessage));
+        }
+        for (Turn turn : turns) {
+            history.add(new UserMessage(turn.withContext ? turn.prompt : turn.question));
+            if (turn.answer != null) {
+                history.add(new AiMessage(turn.answer));
+            }
+        }
+        return history;
+    }
+
+    private int count(String text) {
+        return tokenizer.encode(text, false, false).getIds().length;
+    }
+
+    /**
+     * Реплика диалога: сообщение пользователя в двух вариантах и ответ модели.
+     * Число токенов каждой части считается один раз для каждого токенизатора.
+     */
+    private class Turn {
+
+        private final String prompt;
+        private String question;
+        private int promptTokens;
+        private int questionTokens;
+        private String answer;
+        private int answerTokens;
+        private HuggingFaceTokenizer countedWith;
+        private boolean withContext = true;
+
+        private Turn(String prompt, String question) {
+            this.prompt = prompt;
+            this.question = question;
+        }
+
+        private int tokens() {
+            if (countedWith != tokenizer) {
+                promptTokens = count("User: " + prompt + "\n");
+                questionTokens = count("User: " + question + "\n");
+                answerTokens = answer == null ? 0 : count("Assistant: " + answer + "\n");
+                countedWith = tokenizer;
+            }
+            return (withContext ? promptTokens : questionTokens) + answerTokens;
+        }
+
+        /**
+         * Оставляет от вопроса самый длинный конец, который вместе с "User: ...\n" занимает не больше
+         * budget токенов. Граница ищется бинарным поиском по токенам вопроса: после обрезки токенизатор
+         * может склеить символы на стыке иначе, поэтому каждый вариант пересчитывается целиком.
+         */
+        private void truncateQuestion(int budget) {
+            if (count("User: \n") > budget) {
+                throw new IllegalArgumentException("Бюджет prompt-а " + maxPromptTokens
+                        + " токенов меньше служебной части prompt-а");
+            }
+            CharSpan[] spans = tokenizer.encode(question, false, false).getCharTokenSpans();
+            // Первый токен, с которого конец вопроса укладывается; spans.length – пустой вопрос
+            int low = 0;
+            int high = spans.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (count("User: " + question.substring(start(spans, mid)) + "\n") <= budget) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            question = question.substring(start(spans, low));
+            countedWith = null;
+        }
+
+        private int start(CharSpan[] spans, int token) {
+            // У токенов без позиции в тексте (например, добавленных нормализацией) берётся следующий
+            for (int i = token; i < spans.length; i++) {
+                if (spans[i] != null) {
+                    return spans[i].getStart();
+                }
+            }
+            return question.length();
+        }
+    }
+}
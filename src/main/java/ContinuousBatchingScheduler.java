@@ -0,0 +1,467 @@
+import ai.djl.inference.Predictor;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.Batchifier;
+import ai.djl.translate.TranslateException;
+import ai.djl.translate.Translator;
+import ai.djl.translate.TranslatorContext;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Планировщик непрерывного пакетирования (continuous batching) для генерации.
+ * <p>
+ * Активные последовательности разных запросов декодируются общими пакетными проходами модели:
+ * один шаг – по одному новому токену для каждой строки пакета. Новые запросы принимаются между шагами
+ * (их prompt проходит prefill отдельно и вливается в пакет), завершившиеся удаляются сразу после шага.
+ * Длины выравниваются через {@link BatchKVCache} и attention_mask, position_ids у каждой строки свои.
+ * <p>
+ * Все проходы модели выполняет один фоновый поток, поэтому {@link #submit} можно вызывать из любого потока.
+ * Обратные вызовы запросов выполняются в отдельных потоках: медленный или упавший обработчик одного запроса
+ * не задерживает шаги пакета и не затрагивает остальные запросы.
+ */
+public class ContinuousBatchingScheduler implements AutoCloseable {
+
+    private final int maxBatchSize;
+    private final long eosId;
+    private final Predictor<DecoderStep, List<Long>> prefillPredictor;
+    private final Predictor<BatchStep, long[]> decodePredictor;
+    private final NDManager manager;
+    private final BatchKVCache batchCache;
+    private final KVCacheFactory cacheFactory;
+    private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+    private final List<Request> active = new ArrayList<>();
+    private final Thread worker;
+    private final ExecutorService callbacks;
+    // Меняется только под монитором планировщика, вместе с постановкой в pending (см. submit и close)
+    private volatile boolean running = true;
+
+    private long decodeSteps;
+    private long decodedTokens;
+
+    /**
+     * Фабрика пустого KV-кэша для prefill одного запроса.
+     */
+    public interface KVCacheFactory {
+        KVCache newCache(NDManager parentManager);
+    }
+
+    /**
+     * @param model        загруженная модель декодера; её транслятор используется для prefill.
+     * @param cacheFactory создаёт KV-кэш для prefill одного запроса.
+     * @param numLayers    число слоёв декодера.
+     * @param numHeads     число key/value голов внимания.
+     * @param headDim      размерность одной головы.
+     * @param eosId        токен конца генерации.
+     * @param maxBatchSize максимальное число одновременно декодируемых последовательностей.
+     */
+    public ContinuousBatchingScheduler(ZooModel<DecoderStep, List<Long>> model, KVCacheFactory cacheFactory,
+                                       int numLayers, int numHeads, int headDim, long eosId, int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        this.eosId = eosId;
+        this.cacheFactory = cacheFactory;
+        this.manager = model.getNDManager().newSubManager();
+        this.prefillPredictor = model.newPredictor();
+        this.decodePredictor = model.newPredictor(new BatchDecodeTranslator());
+        this.batchCache = new BatchKVCache(manager, numLayers, numHeads, headDim);
+        AtomicInteger callbackThreads = new AtomicInteger();
+        this.callbacks = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "continuous-batching-callback-" + callbackThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.worker = new Thread(this::run, "continuous-batching");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Ставит запрос в очередь генерации.
+     *
+     * @param promptTokens токены prompt-а.
+     * @param maxNewTokens максимум новых токенов.
+     * @param sampler      сэмплер запроса.
+     * @param onToken      вызывается после каждого нового токена со всей последовательностью (может быть null);
+     *                     false – досрочно остановить запрос, например по стоп-последовательности.
+     *                     Вызовы идут по порядку токенов, но не в потоке планировщика, поэтому к моменту
+     *                     остановки он может успеть сгенерировать ещё несколько токенов – они отбрасываются.
+     *                     Исключение из onToken завершает с этой ошибкой только данный запрос.
+     * @return future со всей последовательностью: prompt и сгенерированные токены.
+     */
+    public CompletableFuture<List<Long>> submit(List<Long> promptTokens, int maxNewTokens, TokenSampler sampler,
+                                                Predicate<List<Long>> onToken) {
+        Request request = new Request(promptTokens, maxNewTokens, sampler, onToken, callbacks);
+        // Проверка и постановка в очередь под тем же монитором, что и остановка в close:
+        // запрос либо попадёт в pending до остановки и будет завершён там, либо получит отказ здесь
+        synchronized (this) {
+            if (running) {
+                pending.add(request);
+                return request.future;
+            }
+        }
+        request.future.completeExceptionally(new IllegalStateException("Планировщик остановлен"));
+        return request.future;
+    }
+
+    public synchronized long getDecodeSteps() {
+        return decodeSteps;
+    }
+
+    public synchronized long getDecodedTokens() {
+        return decodedTokens;
+    }
+
+    /**
+     * Средний размер пакета на шаг декодирования.
+     */
+    public synchronized double getAverageBatchSize() {
+        return decodeSteps == 0 ? 0 : (double) decodedTokens / decodeSteps;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (active.isEmpty()) {
+                    Request first = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    admit(List.of(first));
+                } else {
+                    List<Request> admitted = new ArrayList<>();
+                    pending.drainTo(admitted, maxBatchSize - active.size());
+                    admit(admitted);
+                }
+                if (!active.isEmpty()) {
+                    decodeStep();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                failActive(e);
+            }
+        }
+    }
+
+    /**
+     * Prefill новых запросов по одному и пересборка пакета вместе с уже активными строками.
+     * Ошибка prefill или пересборки завершает только тот запрос, на котором она произошла:
+     * активные строки и пакетный кэш остаются прежними.
+     */
+    private void admit(List<Request> admitted) {
+        List<Request> joined = new ArrayList<>();
+        for (Request request : admitted) {
+            try {
+                request.cache = cacheFactory.newCache(manager);
+                List<Long> first = prefillPredictor.predict(
+                        new DecoderStep(request.tokens, request.cache, request.sampler));
+                if (request.accept(first.get(0), eosId)) {
+                    joined.add(request);
+                } else {
+                    request.finish();
+                }
+            } catch (TranslateException | RuntimeException e) {
+                // fail закрывает кэш запроса
+                request.fail(e);
+            }
+        }
+        if (joined.isEmpty()) {
+            return;
+        }
+        try {
+            relayout(withActive(joined));
+        } catch (RuntimeException e) {
+            // Пакетный кэш не изменился; вливаем по одному, чтобы найти запрос, на котором сбой
+            for (Request request : joined) {
+                try {
+                    relayout(withActive(List.of(request)));
+                } catch (RuntimeException single) {
+                    request.fail(single);
+                }
+            }
+        }
+    }
+
+    private List<Request> withActive(List<Request> joined) {
+        List<Request> next = new ArrayList<>(active.size() + joined.size());
+        next.addAll(active);
+        next.addAll(joined);
+        return next;
+    }
+
+    /**
+     * Один пакетный шаг: по новому токену для каждой активной строки.
+     */
+    private void decodeStep() throws TranslateException {
+        BatchStep step = new BatchStep(active, batchCache);
+        long[] nextTokens = decodePredictor.predict(step);
+        synchronized (this) {
+            decodeSteps++;
+            decodedTokens += nextTokens.length;
+        }
+        List<Request> next = new ArrayList<>(active.size());
+        for (int b = 0; b < nextTokens.length; b++) {
+            Request request = active.get(b);
+            if (request.accept(nextTokens[b], eosId)) {
+                next.add(request);
+            } else {
+                request.finish();
+            }
+        }
+        if (next.size() != active.size()) {
+            relayout(next);
+        }
+    }
+
+    private void relayout(List<Request> next) {
+        int[] oldRows = new int[next.size()];
+        List<KVCache> fresh = new ArrayList<>(next.size());
+        for (int b = 0; b < next.size(); b++) {
+            Request request = next.get(b);
+            oldRows[b] = request.row;
+            fresh.add(request.row < 0 ? request.cache : null);
+        }
+        batchCache.rebuild(oldRows, fresh);
+        for (int b = 0; b < next.size(); b++) {
+            Request request = next.get(b);
+            request.row = b;
+            if (request.cache != null) {
+                request.cache.close();
+                request.cache = null;
+            }
+        }
+        active.clear();
+        active.addAll(next);
+    }
+
+    /**
+     * Завершает с ошибкой все активные строки; только для сбоя пакетного шага, после которого
+     * состояние пакетного кэша неизвестно.
+     */
+    private void failActive(Exception e) {
+        for (Request request : active) {
+            request.fail(e);
+        }
+        active.clear();
+        batchCache.rebuild(new int[0], List.of());
+    }
+
+    /**
+     * Останавливает поток планировщика; незавершённые запросы завершаются с ошибкой.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            running = false;
+        }
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IllegalStateException stopped = new IllegalStateException("Планировщик остановлен");
+        for (Request request : active) {
+            request.fail(stopped);
+        }
+        Request request;
+        while ((request = pending.poll()) != null) {
+            request.fail(stopped);
+        }
+        callbacks.shutdown();
+        prefillPredictor.close();
+        decodePredictor.close();
+        batchCache.close();
+        manager.close();
+    }
+
+    /**
+     * Состояние одного запроса в планировщике.
+     */
+    private static class Request {
+        final List<Long> tokens;
+        final int maxNewTokens;
+        final TokenSampler sampler;
+        final Predicate<List<Long>> onToken;
+        final ExecutorService callbacks;
+        final CompletableFuture<List<Long>> future = new CompletableFuture<>();
+        int generated;
+        // Индекс строки в текущем пакете, -1 – ещё не в пакете
+        int row = -1;
+        // KV-кэш после prefill до вливания в пакет
+        KVCache cache;
+        // Цепочка вызовов onToken: каждый следующий начинается после предыдущего
+        private CompletableFuture<Void> delivery = CompletableFuture.completedFuture(null);
+        // Выставляются потоком обратных вызовов: длина последовательности в момент остановки и ошибка onToken
+        private volatile int stopAt = -1;
+        private volatile Throwable callbackError;
+
+        Request(List<Long> promptTokens, int maxNewTokens, TokenSampler sampler, Predicate<List<Long>> onToken,
+                ExecutorService callbacks) {
+            this.tokens = new ArrayList<>(promptTokens);
+            this.maxNewTokens = maxNewTokens;
+            this.sampler = sampler;
+            this.onToken = onToken;
+            this.callbacks = callbacks;
+        }
+
+        /**
+         * Добавляет токен; возвращает true, если генерация продолжается.
+         */
+        boolean accept(long token, long eosId) {
+            if (token == eosId || stopAt >= 0) {
+                return false;
+            }
+            tokens.add(token);
+            generated++;
+            if (onToken != null) {
+                // Обработчик получает снимок: список токенов продолжает расти в потоке планировщика
+                List<Long> snapshot = new ArrayList<>(tokens);
+                delivery = delivery.thenRunAsync(() -> deliver(snapshot), callbacks);
+            }
+            return generated < maxNewTokens;
+        }
+
+        private void deliver(List<Long> snapshot) {
+            if (stopAt >= 0) {
+                return;
+            }
+            try {
+                if (!onToken.test(snapshot)) {
+                    stopAt = snapshot.size();
+                }
+            } catch (Throwable e) {
+                callbackError = e;
+                stopAt = snapshot.size();
+            }
+        }
+
+        /**
+         * Освобождает кэш сразу, а future завершает после всех вызовов onToken.
+         */
+        void finish() {
+            closeCache();
+            delivery.whenComplete((ignored, e) -> {
+                if (callbackError != null) {
+                    future.completeExceptionally(callbackError);
+                } else if (stopAt >= 0) {
+                    future.complete(new ArrayList<>(tokens.subList(0, stopAt)));
+                } else {
+                    future.complete(tokens);
+                }
+            });
+        }
+
+        void fail(Throwable e) {
+            closeCache();
+            stopAt = 0;
+            future.completeExceptionally(e);
+        }
+
+        private void closeCache() {
+            if (cache != null) {
+                cache.close();
+                cache = null;
+            }
+        }
+    }
+
+    /**
+     * Вход пакетного шага: последние токены и сэмплеры строк вместе с пакетным KV-кэшем.
+     */
+    static class BatchStep {
+        final long[] lastTokens;
+        final TokenSampler[] samplers;
+        final BatchKVCache cache;
+
+        BatchStep(List<Request> rows, BatchKVCache cache) {
+            this.lastTokens = new long[rows.size()];
+            this.samplers = new TokenSampler[rows.size()];
+            for (int b = 0; b < rows.size(); b++) {
+                Request request = rows.get(b);
+                lastTokens[b] = request.tokens.get(request.tokens.size() - 1);
+                samplers[b] = request.sampler;
+            }
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * Транслятор пакетного шага декодирования: вход – {@link BatchStep}, выход – следующий токен каждой строки.
+     */
+    static class BatchDecodeTranslator implements Translator<BatchStep, long[]> {
+
+        private static final String STEP_KEY = "batchStep";
+        private float[] logitsBuffer = new float[0];
+
+        @Override
+        public NDList processInput(TranslatorContext ctx, BatchStep step) {
+            NDManager manager = ctx.getNDManager();
+            ctx.setAttachment(STEP_KEY, step);
+            BatchKVCache cache = step.cache;
+            int batch = step.lastTokens.length;
+            int padded = cache.paddedLength();
+
+            // input_ids: [batch, 1]
+            NDArray inputIds = manager.create(step.lastTokens).reshape(batch, 1);
+
+            // attention_mask: [batch, padded + 1]; выравнивающие позиции слева – нули
+            long[] mask = new long[batch * (padded + 1)];
+            long[] positions = new long[batch];
+            for (int b = 0; b < batch; b++) {
+                int length = cache.length(b);
+                for (int p = padded - length; p <= padded; p++) {
+                    mask[b * (padded + 1) + p] = 1;
+                }
+                // position_ids: у каждой строки своя позиция – её фактическая длина
+                positions[b] = length;
+            }
+            NDArray attentionMask = manager.create(mask).reshape(batch, padded + 1);
+            NDArray positionIds = manager.create(positions).reshape(batch, 1);
+
+            NDList ndList = new NDList();
+            ndList.add(inputIds);
+            ndList.add(attentionMask);
+            ndList.add(positionIds);
+            ndList.addAll(cache.pastKeyValues());
+            return ndList;
+        }
+
+        @Override
+        public long[] processOutput(TranslatorContext ctx, NDList list) {
+            BatchStep step = (BatchStep) ctx.getAttachment(STEP_KEY);
+            step.cache.update(list.subNDList(1));
+            // logits: [batch, 1, vocab]
+            NDArray logits = list.get(0);
+            int batch = step.lastTokens.length;
+            int vocab = (int) logits.getShape().get(2);
+            if (logitsBuffer.length < batch * vocab) {
+                logitsBuffer = new float[batch * vocab];
+            }
+            logits.toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer().get(logitsBuffer, 0, batch * vocab);
+            long[] next = new long[batch];
+            for (int b = 0; b < batch; b++) {
+                next[b] = step.samplers[b].sample(logitsBuffer, b * vocab, vocab);
+            }
+            return next;
+        }
+
+        @Override
+        public Batchifier getBatchifier() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.translate.TranslateException;
+
+import java.util.List;
+
+/**
+ * Низкоуровневый доступ к декодерной модели с KV-кэшем: прямой проход по произвольному числу токенов
+ * с логитами всех позиций. Используется там, где шагов generate недостаточно, например
+ * в {@link SpeculativeDecoder}.
+ */
+public interface DecoderModel {
+
+    HuggingFaceTokenizer getTokenizer();
+
+    /**
+     * Токенизирует prompt так же, как generate (с BOS, если он нужен модели).
+     */
+    List<Long> encodePrompt(String prompt);
+
+    long getEosId();
+
+    int getVocabSize();
+
+    /**
+     * Новый пустой KV-кэш последовательности; закрывается вызывающим.
+     */
+    KVCache newKVCache();
+
+    /**
+     * Прогоняет tokens поверх содержимого cache и дописывает их в кэш.
+     *
+     * @return логиты каждой из позиций tokens построчно: [tokens.size() * vocab].
+     */
+    float[] forward(List<Long> tokens, KVCache cache) throws TranslateException;
+}
@@ -0,0 +1,84 @@
+import ai.djl.ndarray.NDArray;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Вход одного шага декодера: токены, которые нужно подать модели, кэш past_key_values
+ * и сэмплер запроса, которым выбирается следующий токен.
+ * Если кэш равен {@code null}, транслятор работает в режиме полного пересчёта:
+ * {@code tokens} – вся последовательность, past_key_values пустые.
+ * Иначе {@code tokens} – только токены, которых ещё нет в кэше.
+ * <p>
+ * Шаг, созданный через {@link #capturing}, дополнительно сохраняет логиты всех позиций –
+ * это нужно для проверки нескольких спекулятивных токенов за один проход модели.
+ */
+public class DecoderStep {
+
+    private final List<Long> tokens;
+    private final KVCache cache;
+    private final TokenSampler sampler;
+    private final boolean captureLogits;
+    private float[] logits;
+
+    public DecoderStep(List<Long> tokens, KVCache cache, TokenSampler sampler) {
+        this(tokens, cache, sampler, false);
+    }
+
+    private DecoderStep(List<Long> tokens, KVCache cache, TokenSampler sampler, boolean captureLogits) {
+        this.tokens = tokens;
+        this.cache = cache;
+        this.sampler = sampler;
+        this.captureLogits = captureLogits;
+    }
+
+    /**
+     * Шаг без сэмплирования, после которого логиты всех позиций доступны через {@link #getLogits()}.
+     */
+    public static DecoderStep capturing(List<Long> tokens, KVCache cache) {
+        return new DecoderStep(tokens, cache, null, true);
+    }
+
+    public List<Long> getTokens() {
+        return tokens;
+    }
+
+    public KVCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Сэмплер запроса; {@code null} для шага, созданного через {@link #capturing}.
+     */
+    public TokenSampler getSampler() {
+        return sampler;
+    }
+
+    public boolean isCaptureLogits() {
+        return captureLogits;
+    }
+
+    /**
+     * Копирует в JVM логиты формы [1, seq_len, vocab] целиком. Вызывается транслятором в processOutput.
+     */
+    public void captureLogits(NDArray output) {
+        FloatBuffer buffer = output.toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        logits = new float[buffer.remaining()];
+        buffer.get(logits);
+    }
+
+    /**
+     * Логиты всех позиций шага построчно: [tokens.size() * vocab].
+     */
+    public float[] getLogits() {
+        return logits;
+    }
+
+    /**
+     * Номер позиции первого токена шага (длина уже закэшированной части).
+     */
+    public int getPastLength() {
+        return cache == null ? 0 : cache.length();
+    }
+}
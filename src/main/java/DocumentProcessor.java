@@ -1,30 +1,66 @@
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
 import dev.langchain4j.data.document.parser.TextDocumentParser;
-import dev.langchain4j.data.document.splitter.DocumentByParagraphSplitter;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
 import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
 import dev.langchain4j.store.embedding.EmbeddingSearchResult;
-import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import dev.langchain4j.store.embedding.EmbeddingStore;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class DocumentProcessor {
     private final int chunkSize = 150;
     private final int chunkOverlap = 50;
+    // In-memory tier of the embedding cache: ~40k vectors of dimension 384
+    private static final long EMBEDDING_CACHE_MEMORY_BYTES = 64L << 20;
+    // runtime data (not part of the sources): the on-disk tier of the embedding cache
+    private static final String DATA_DIRECTORY = "data";
+    private static final String EMBEDDING_CACHE_FILE = "embeddings.cache";
+    // chunks are embedded in groups of several batches so that length bucketing inside embedAll pays off
+    private static final int EMBED_GROUP_BATCHES = 4;
+    private final StreamingDocumentSplitter streamingSplitter = new StreamingDocumentSplitter(chunkSize, chunkOverlap);
     private final LocalONNXEmbeddingModel embeddingModel;
-    private InMemoryEmbeddingStore<TextSegment> vectorStore;
+    private final EmbeddingCache embeddingCache;
+    private volatile EmbeddingStore<TextSegment> vectorStore;
+    // creates the vector store on the first addEmbeddings; the argument tells whether embeddings are unit length
+    private volatile Function<Boolean, EmbeddingStore<TextSegment>> vectorStoreFactory = HnswEmbeddingStore::new;
+    // on-disk index opened by openIndex; when present it is the vector store and survives restarts
+    private volatile PersistentEmbeddingStore index;
+    // share of the last document's chunks that were found in the embedding cache
+    private double lastDocumentHitRate;
 
     public DocumentProcessor() throws Exception {
-        this.embeddingModel = new LocalONNXEmbeddingModel(
-                "/home/acer/IdeaProjects/DJI/src/main/resources/allmpnetbasev2"
-        );
+        this("/home/acer/IdeaProjects/DJI/src/main/resources/allmpnetbasev2");
+    }
+
+    // embeddingModelDir: directory with the ONNX embedding model and its tokenizer
+    public DocumentProcessor(String embeddingModelDir) throws Exception {
+        this.embeddingModel = new LocalONNXEmbeddingModel(embeddingModelDir);
+        this.embeddingCache = openEmbeddingCache(Paths.get(DATA_DIRECTORY));
+        this.embeddingModel.setCache(embeddingCache);
         this.vectorStore = null;
     }
 
+    // the on-disk tier survives restarts; keys include the model id, so one file serves every model
+    private static EmbeddingCache openEmbeddingCache(Path dataDirectory) throws IOException {
+        Files.createDirectories(dataDirectory);
+        return new EmbeddingCache(dataDirectory.resolve(EMBEDDING_CACHE_FILE), EMBEDDING_CACHE_MEMORY_BYTES);
+    }
+
+    public void warmup(int iterations) {
+        embeddingModel.warmup(iterations);
+    }
+
     public Document loadDocument(String filePath) {
         if (filePath.endsWith(".txt")) {
             return FileSystemDocumentLoader.loadDocument(filePath, new TextDocumentParser());
@@ -33,31 +69,124 @@ public class DocumentProcessor {
         }
     }
 
-    public void processDocument(String filePath) {
-        // Load the document
-        Document doc = loadDocument(filePath);
+    // opens a streaming reader of the document's chunks (same chunks as DocumentByParagraphSplitter)
+    public StreamingDocumentSplitter.Segments openDocument(String filePath) throws IOException {
+        if (!filePath.endsWith(".txt")) {
+            throw new IllegalArgumentException("Unsupported file format");
+        }
+        Path path = Paths.get(filePath);
+        if (!Files.isRegularFile(path)) {
+            throw new IllegalArgumentException("'" + filePath + "' is not a file");
+        }
+        return streamingSplitter.open(path);
+    }
 
-        // Split the document into chunks
-        DocumentByParagraphSplitter splitter = new DocumentByParagraphSplitter(chunkSize, chunkOverlap);
-        List<TextSegment> segments = splitter.split(doc);
+    public void processDocument(String filePath) {
+        Path path = Paths.get(filePath);
+        // a document already in the on-disk index is not split and embedded again
+        if (isDocumentIndexed(path)) {
+            lastDocumentHitRate = 0;
+            return;
+        }
+        // the index records the version seen before reading, so a file changed meanwhile is read again next time
+        String documentKey = documentKey(path);
+        long hitsBefore = embeddingCache.getHits();
+        long missesBefore = embeddingCache.getMisses();
 
-        // Generate embeddings for all chunks
-        List<Embedding> embeddings = new ArrayList<>();
-        for (TextSegment segment : segments) {
-            Embedding emb = embeddingModel.embed(segment.text());
-            embeddings.add(emb);
+        // Stream the document: chunks are read lazily and embedded group by group, so heap use does not
+        // depend on the file size; unchanged chunks come from the embedding cache
+        int groupSize = getEmbedGroupSize();
+        try (StreamingDocumentSplitter.Segments segments = openDocument(filePath)) {
+            while (segments.hasNext()) {
+                List<TextSegment> group = new ArrayList<>(groupSize);
+                while (group.size() < groupSize && segments.hasNext()) {
+                    group.add(segments.next());
+                }
+                addEmbeddings(embeddingModel.embedAll(group), group);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        documentIndexed(documentKey);
+
+        long hits = embeddingCache.getHits() - hitsBefore;
+        long lookups = hits + embeddingCache.getMisses() - missesBefore;
+        lastDocumentHitRate = lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    // number of chunks passed to one embedAll call during ingestion
+    public int getEmbedGroupSize() {
+        return embeddingModel.getBatchSize() * EMBED_GROUP_BATCHES;
+    }
 
+    // loads, splits, embeds and stores several files concurrently; progress receives a status line every second
+    public IngestionPipeline.Report processDocuments(List<Path> files, Consumer<String> progress)
+            throws InterruptedException {
+        return new IngestionPipeline(this).ingest(files, progress, 1000);
+    }
 
+    // adds already computed embeddings of the segments, e.g. loaded from disk or synthetic ones in benchmarks
+    public synchronized void addEmbeddings(List<Embedding> embeddings, List<TextSegment> segments) {
         // Create or update the vector store
         if (vectorStore == null) {
-            vectorStore = new InMemoryEmbeddingStore<>();
+            // normalized embeddings are scored by a plain dot product instead of full cosine similarity
+            vectorStore = vectorStoreFactory.apply(embeddingModel.isNormalized());
         }
 
         // Add all embeddings and chunks to the store
         vectorStore.addAll(embeddings, segments);
     }
 
+    // opens (or creates) the on-disk index in the directory and makes it the vector store.
+    // Opening costs the same for any corpus size: the vectors are memory-mapped, not read
+    public synchronized void openIndex(Path directory) throws IOException {
+        // an open index keeps its files locked, so the current one is closed first (it may be the same directory)
+        if (vectorStore == index) {
+            vectorStore = null;
+        }
+        closeIndex();
+        PersistentEmbeddingStore opened = new PersistentEmbeddingStore(directory, embeddingModel.getModelId(),
+                embeddingModel.isNormalized());
+        index = opened;
+        vectorStore = opened;
+    }
+
+    public PersistentEmbeddingStore getIndex() {
+        return index;
+    }
+
+    // whether the file, unchanged since then, has been fully stored in the on-disk index
+    public boolean isDocumentIndexed(Path file) {
+        PersistentEmbeddingStore current = index;
+        try {
+            return current != null && current.containsDocument(file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // identifies the current version of the file (size, modification time, path) for documentIndexed
+    public String documentKey(Path file) {
+        try {
+            return PersistentEmbeddingStore.documentKey(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // records in the on-disk index that all chunks of the file version with this key have been stored
+    public void documentIndexed(String documentKey) {
+        PersistentEmbeddingStore current = index;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.addDocument(documentKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     public List<TextSegment> retrieveRelevantContext(String query, int k) {
         if (vectorStore == null) {
             return List.of();
@@ -65,6 +194,14 @@ public class DocumentProcessor {
 
         // Generate embedding for the query
         Embedding queryEmbedding = embeddingModel.embed(query);
+        return findRelevantSegments(queryEmbedding, k);
+    }
+
+    // k segments closest to an already computed query embedding
+    public List<TextSegment> findRelevantSegments(Embedding queryEmbedding, int k) {
+        if (vectorStore == null) {
+            return List.of();
+        }
 
         // Create a search request
         EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
@@ -88,11 +225,54 @@ public class DocumentProcessor {
     // method to clear the vector store
 
     public void resetStore() {
-        this.vectorStore = null;
+        // the on-disk index is cleared in place and stays the store
+        PersistentEmbeddingStore current = index;
+        if (current != null) {
+            current.removeAll();
+            this.vectorStore = current;
+        } else {
+            this.vectorStore = null;
+        }
+    }
+
+    // approximate HNSW search by default; FlatEmbeddingStore::new or OffHeapEmbeddingStore::new switch to exact search.
+    // Applies to the store created by the next addEmbeddings, so call resetStore to replace a filled one
+    public void setVectorStoreFactory(Function<Boolean, EmbeddingStore<TextSegment>> vectorStoreFactory) {
+        this.vectorStoreFactory = vectorStoreFactory;
+    }
+
+    // replaces the current store with one built elsewhere, e.g. filled directly in a benchmark
+    public synchronized void setVectorStore(EmbeddingStore<TextSegment> vectorStore) {
+        this.vectorStore = vectorStore;
+    }
+
+    public EmbeddingStore<TextSegment> getVectorStore() {
+        return vectorStore;
+    }
+
+    public LocalONNXEmbeddingModel getEmbeddingModel() {
+        return embeddingModel;
     }
 
-    public void closeModel() throws Exception {
+    public EmbeddingCache getEmbeddingCache() {
+        return embeddingCache;
+    }
+
+    public double getLastDocumentHitRate() {
+        return lastDocumentHitRate;
+    }
+
+    public void closeModel() throws IOException {
         this.embeddingModel.close();
+        this.embeddingCache.close();
+        closeIndex();
+    }
+
+    private synchronized void closeIndex() throws IOException {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
     }
 
 }
\ No newline at end of file
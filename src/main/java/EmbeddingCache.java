@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Кэш эмбеддингов с адресацией по содержимому: ключ – SHA-256 от идентификатора модели и текста
+ * фрагмента, поэтому неизменившиеся фрагменты при повторной загрузке документа не прогоняются
+ * через модель, а эмбеддинги другой модели (или другой версии той же) не смешиваются.
+ * <p>
+ * Два уровня:
+ * <ul>
+ *     <li>в памяти – LRU в пределах бюджета памяти;</li>
+ *     <li>на диске – файл, отображённый в память, в который векторы только дописываются.
+ *     Переживает перезапуск: при открытии файл один раз просматривается и строится индекс смещений.</li>
+ * </ul>
+ * Формат файла: заголовок (магическое число, версия формата, длина подтверждённых данных), затем записи
+ * [ключ 32 байта][размерность int][размерность float]. Новые записи подтверждаются в {@link #commit()}:
+ * сначала они сбрасываются на носитель, и только потом длина в заголовке, так что после сбоя заголовок
+ * не указывает на недописанные записи, а неподтверждённый хвост просто игнорируется.
+ * <p>
+ * Дописывает в файл только один процесс – тот, что взял на него блокировку. Остальные открывают
+ * файл только для чтения: видят записи, подтверждённые к моменту открытия, но новых не добавляют.
+ */
+public class EmbeddingCache implements AutoCloseable {
+
+    private static final int MAGIC = 0x454D4243; // "EMBC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int KEY_BYTES = 32;
+    // Начальный размер отображения файла; дальше растёт удвоением
+    private static final int INITIAL_MAPPING = 16 << 20;
+
+    private final long memoryBudgetBytes;
+    // LRU в порядке доступа: самые давно использованные векторы – первые
+    private final LinkedHashMap<ByteBuffer, float[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private final FileChannel channel;
+    // Блокировка файла; null – файл занят другим кэшем, и дисковый уровень открыт только для чтения
+    private final FileLock lock;
+    private MappedByteBuffer mapped;
+    // Смещения записей в файле по ключу
+    private final Map<ByteBuffer, Integer> diskIndex = new HashMap<>();
+    private int diskEnd = HEADER_BYTES;
+    // Длина, записанная в заголовок последним commit
+    private int committedEnd = HEADER_BYTES;
+    private boolean diskFull;
+
+    // Статистика
+    private long memoryHits;
+    private long diskHits;
+    private long misses;
+
+    /**
+     * Кэш только в памяти.
+     *
+     * @param memoryBudgetBytes максимальный объём векторов в памяти, байт.
+     */
+    public EmbeddingCache(long memoryBudgetBytes) {
+        if (memoryBudgetBytes <= 0) {
+            throw new IllegalArgumentException("Бюджет памяти должен быть положительным: " + memoryBudgetBytes);
+        }
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.channel = null;
+        this.lock = null;
+    }
+
+    /**
+     * Кэш в памяти с дисковым уровнем в файле file (создаётся, если его нет).
+     *
+     * @param file              файл дискового уровня.
+     * @param memoryBudgetBytes максимальный объём векторов в памяти, байт.
+     * @throws IOException если файл не удаётся открыть или он не является файлом кэша.
+     */
+    public EmbeddingCache(Path file, long memoryBudgetBytes) throws IOException {
+        if (memoryBudgetBytes <= 0) {
+            throw new IllegalArgumentException("Бюджет памяти должен быть положительным: " + memoryBudgetBytes);
+        }
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileLock acquired = null;
+        try {
+            try {
+                acquired = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Файл уже открыт другим кэшем этой же JVM
+            }
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Файл кэша эмбеддингов слишком велик: " + file);
+            }
+            if (acquired == null) {
+                // Чужой файл не расширяем и заголовок не трогаем: читаем только подтверждённые записи
+                if (size >= HEADER_BYTES) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    checkFormat(file);
+                    loadIndex();
+                }
+            } else {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_MAPPING));
+                if (size < HEADER_BYTES || mapped.getInt(0) == 0) {
+                    mapped.putInt(0, MAGIC).putInt(4, FORMAT_VERSION).putLong(8, HEADER_BYTES);
+                    mapped.force(0, HEADER_BYTES);
+                } else {
+                    checkFormat(file);
+                }
+                loadIndex();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.lock = acquired;
+    }
+
+    private void checkFormat(Path file) throws IOException {
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Неизвестный формат файла кэша эмбеддингов: " + file);
+        }
+    }
+
+    /**
+     * Строит индекс смещений по подтверждённой части файла.
+     */
+    private void loadIndex() throws IOException {
+        long committed = mapped.getLong(8);
+        if (committed < HEADER_BYTES || committed > mapped.capacity()) {
+            throw new IOException("Повреждён заголовок файла кэша эмбеддингов: длина " + committed);
+        }
+        int offset = HEADER_BYTES;
+        while (offset < committed) {
+            byte[] key = new byte[KEY_BYTES];
+            mapped.get(offset, key);
+            int dimension = mapped.getInt(offset + KEY_BYTES);
+            if (dimension <= 0 || offset + (long) recordBytes(dimension) > committed) {
+                throw new IOException("Повреждена запись файла кэша эмбеддингов по смещению " + offset);
+            }
+            diskIndex.put(ByteBuffer.wrap(key), offset);
+            offset += recordBytes(dimension);
+        }
+        diskEnd = offset;
+        committedEnd = offset;
+    }
+
+    private static int recordBytes(int dimension) {
+        return KEY_BYTES + Integer.BYTES + dimension * Float.BYTES;
+    }
+
+    /**
+     * Ключ записи: SHA-256 от идентификатора модели и текста.
+     */
+    private static ByteBuffer key(String modelId, String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+            // Разделитель, чтобы пары ("ab", "c") и ("a", "bc") давали разные ключи
+            digest.update((byte) 0);
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+
+    /**
+     * Возвращает копию закэшированного эмбеддинга текста или null, если его нет ни в одном уровне.
+     * Найденный на диске вектор поднимается в память.
+     */
+    public synchronized float[] get(String modelId, String text) {
+        ByteBuffer key = key(modelId, text);
+        float[] vector = memory.get(key);
+        if (vector != null) {
+            memoryHits++;
+            return vector.clone();
+        }
+        Integer offset = channel == null ? null : diskIndex.get(key);
+        if (offset == null) {
+            misses++;
+            return null;
+        }
+        diskHits++;
+        int dimension = mapped.getInt(offset + KEY_BYTES);
+        vector = new float[dimension];
+        mapped.slice(offset + KEY_BYTES + Integer.BYTES, dimension * Float.BYTES).asFloatBuffer().get(vector);
+        putInMemory(key, vector);
+        return vector.clone();
+    }
+
+    /**
+     * Сохраняет эмбеддинг текста в оба уровня. На диске запись переживёт перезапуск только
+     * после {@link #commit()}.
+     */
+    public synchronized void put(String modelId, String text, float[] vector) {
+        ByteBuffer key = key(modelId, text);
+        putInMemory(key, vector.clone());
+        if (channel != null && !diskIndex.containsKey(key)) {
+            appendToDisk(key, vector);
+        }
+    }
+
+    private void putInMemory(ByteBuffer key, float[] vector) {
+        float[] previous = memory.put(key, vector);
+        if (previous != null) {
+            memoryBytes -= (long) previous.length * Float.BYTES;
+        }
+        memoryBytes += (long) vector.length * Float.BYTES;
+        Iterator<float[]> it = memory.values().iterator();
+        while (memoryBytes > memoryBudgetBytes && it.hasNext()) {
+            memoryBytes -= (long) it.next().length * Float.BYTES;
+            it.remove();
+        }
+    }
+
+    private void appendToDisk(ByteBuffer key, float[] vector) {
+        if (lock == null || diskFull) {
+            return;
+        }
+        int size = recordBytes(vector.length);
+        if ((long) diskEnd + size > mapped.capacity()) {
+            long capacity = Math.max((long) mapped.capacity() * 2, (long) diskEnd + size);
+            if (capacity > Integer.MAX_VALUE) {
+                // Одно отображение ограничено 2 ГБ: дальше новые векторы хранятся только в памяти
+                diskFull = true;
+                return;
+            }
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Не удалось расширить файл кэша эмбеддингов", e);
+            }
+        }
+        mapped.put(diskEnd, key.array());
+        mapped.putInt(diskEnd + KEY_BYTES, vector.length);
+        mapped.slice(diskEnd + KEY_BYTES + Integer.BYTES, vector.length * Float.BYTES).asFloatBuffer().put(vector);
+        diskIndex.put(key, diskEnd);
+        diskEnd += size;
+    }
+
+    /**
+     * Подтверждает дописанные с прошлого вызова записи: сбрасывает их на носитель и только затем
+     * публикует новую длину в заголовке. Вызывается после пакета {@link #put}, а не после каждого
+     * вектора, чтобы сброс на диск не стоил больше самого эмбеддинга.
+     */
+    public synchronized void commit() {
+        if (lock == null || diskEnd == committedEnd) {
+            return;
+        }
+        mapped.force(committedEnd, diskEnd - committedEnd);
+        mapped.putLong(8, diskEnd);
+        mapped.force(8, Long.BYTES);
+        committedEnd = diskEnd;
+    }
+
+    /**
+     * true, если файл достиг предельного размера одного отображения (2 ГБ) и новые векторы
+     * сохраняются только в памяти.
+     */
+    public synchronized boolean isDiskFull() {
+        return diskFull;
+    }
+
+    /**
+     * false, если файл занят другим кэшем и дисковый уровень открыт только для чтения.
+     */
+    public boolean isDiskWritable() {
+        return lock != null;
+    }
+
+    public synchronized long getMemoryHits() {
+        return memoryHits;
+    }
+
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getHits() {
+        return memoryHits + diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Доля запросов, найденных в кэше (в памяти или на диске).
+     */
+    public synchronized double getHitRate() {
+        long lookups = memoryHits + diskHits + misses;
+        return lookups == 0 ? 0 : (double) (memoryHits + diskHits) / lookups;
+    }
+
+    public synchronized int getMemoryEntries() {
+        return memory.size();
+    }
+
+    public synchronized int getDiskEntries() {
+        return diskIndex.size();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * Подтверждает дописанные записи, снимает блокировку и закрывает файл.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            if (lock != null) {
+                commit();
+                // Файл отображается с запасом; лишний хвост обрезается, чтобы на диске не лежали нули
+                mapped = null;
+                try {
+                    channel.truncate(diskEnd);
+                } catch (IOException e) {
+                    // Не все ОС позволяют обрезать отображённый файл; хвост за подтверждённой длиной не читается
+                }
+                lock.release();
+            }
+            mapped = null;
+            channel.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("EmbeddingCache{hitRate=%.1f%%, memoryHits=%d, diskHits=%d, misses=%d, "
+                        + "memoryEntries=%d, memoryBytes=%d, diskEntries=%d, diskFull=%b}",
+                getHitRate() * 100, memoryHits, diskHits, misses, memory.size(), memoryBytes, diskIndex.size(),
+                diskFull);
+    }
+}
@@ -0,0 +1,164 @@
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Хранилище эмбеддингов с точным поиском полным перебором.
+ * <p>
+ * В отличие от InMemoryEmbeddingStore, который для каждой пары считает косинусную близость вместе
+ * с нормами обоих векторов, здесь векторы могут быть помечены как единичные (unitLength): тогда
+ * близость – просто скалярное произведение. Для векторов произвольной длины обратная норма
+ * считается один раз при добавлении, а не при каждом запросе.
+ * <p>
+ * Оценка совпадения – {@link RelevanceScore#fromCosineSimilarity(double)}, как у InMemoryEmbeddingStore,
+ * поэтому minScore запросов означает то же самое. Фильтры по метаданным не поддерживаются.
+ */
+public class FlatEmbeddingStore implements EmbeddingStore<TextSegment> {
+
+    private final boolean unitLength;
+    private final List<String> ids = new ArrayList<>();
+    private final List<float[]> vectors = new ArrayList<>();
+    private final List<TextSegment> segments = new ArrayList<>();
+    // Обратные нормы векторов; при unitLength не хранятся
+    private float[] inverseNorms = new float[0];
+
+    /**
+     * @param unitLength все добавляемые векторы и запросы имеют единичную длину
+     *                   (например, эмбеддинги {@link LocalONNXEmbeddingModel#isNormalized()}).
+     */
+    public FlatEmbeddingStore(boolean unitLength) {
+        this.unitLength = unitLength;
+    }
+
+    public boolean isUnitLength() {
+        return unitLength;
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        return add(embedding, null);
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        addAll(List.of(id), List.of(embedding), null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        String id = UUID.randomUUID().toString();
+        addAll(List.of(id), List.of(embedding), Collections.singletonList(segment));
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> newIds = generateIds(embeddings.size());
+        addAll(newIds, embeddings, null);
+        return newIds;
+    }
+
+    @Override
+    public synchronized void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> embedded) {
+        if (ids.size() != embeddings.size() || (embedded != null && embedded.size() != embeddings.size())) {
+            throw new IllegalArgumentException("Число идентификаторов, эмбеддингов и фрагментов должно совпадать");
+        }
+        int start = vectors.size();
+        if (!unitLength && inverseNorms.length < start + embeddings.size()) {
+            inverseNorms = Arrays.copyOf(inverseNorms,
+                    Math.max(start + embeddings.size(), inverseNorms.length * 2));
+        }
+        for (int i = 0; i < embeddings.size(); i++) {
+            float[] vector = embeddings.get(i).vector();
+            this.ids.add(ids.get(i));
+            vectors.add(vector);
+            segments.add(embedded == null ? null : embedded.get(i));
+            if (!unitLength) {
+                inverseNorms[start + i] = (float) (1 / Math.max(Math.sqrt(dot(vector, vector)), 1e-12));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeAll() {
+        ids.clear();
+        vectors.clear();
+        segments.clear();
+        inverseNorms = new float[0];
+    }
+
+    public synchronized int size() {
+        return vectors.size();
+    }
+
+    @Override
+    public synchronized EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        if (request.filter() != null) {
+            throw new UnsupportedOperationException("FlatEmbeddingStore не поддерживает фильтры");
+        }
+        float[] query = request.queryEmbedding().vector();
+        float queryScale = unitLength ? 1 : (float) (1 / Math.max(Math.sqrt(dot(query, query)), 1e-12));
+        int k = request.maxResults();
+        if (k <= 0) {
+            return new EmbeddingSearchResult<>(List.of());
+        }
+        // Минимальная куча из k лучших: в вершине худший из отобранных
+        PriorityQueue<Candidate> top = new PriorityQueue<>(k + 1, Comparator.comparingDouble(c -> c.similarity));
+        for (int i = 0; i < vectors.size(); i++) {
+            float similarity = dot(query, vectors.get(i));
+            if (!unitLength) {
+                similarity *= queryScale * inverseNorms[i];
+            }
+            if (top.size() < k) {
+                top.add(new Candidate(i, similarity));
+            } else if (similarity > top.peek().similarity) {
+                top.poll();
+                top.add(new Candidate(i, similarity));
+            }
+        }
+        List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            Candidate candidate = top.poll();
+            double score = RelevanceScore.fromCosineSimilarity(candidate.similarity);
+            if (score >= request.minScore()) {
+                matches.add(new EmbeddingMatch<>(score, ids.get(candidate.index),
+                        new Embedding(vectors.get(candidate.index)), segments.get(candidate.index)));
+            }
+        }
+        Collections.reverse(matches);
+        return new EmbeddingSearchResult<>(matches);
+    }
+
+    static float dot(float[] a, float[] b) {
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("Размерности векторов не совпадают: " + a.length + " и " + b.length);
+        }
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static final class Candidate {
+        final int index;
+        final float similarity;
+
+        Candidate(int index, float similarity) {
+            this.index = index;
+            this.similarity = similarity;
+        }
+    }
+}
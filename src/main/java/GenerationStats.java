@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * Телеметрия одного запроса генерации.
+ * <p>
+ * Моменты времени отмечаются по ходу generate: начало запроса (токенизация prompt-а),
+ * начало prefill, каждый шаг модели и завершение. Из них считаются:
+ * <ul>
+ *     <li>prefill – от начала prefill до первого токена (включая восстановление кэша префиксов);</li>
+ *     <li>time-to-first-token (TTFT) – от начала запроса до первого токена;</li>
+ *     <li>задержки декодирования – интервалы между соседними токенами;</li>
+ *     <li>токенов в секунду – сгенерированные токены за время от начала prefill до завершения.</li>
+ * </ul>
+ * Объект заполняется одним потоком запроса, а после {@link #finish(int, StopReason)} только читается.
+ */
+public class GenerationStats {
+
+    /**
+     * Причина остановки генерации.
+     */
+    public enum StopReason {
+        /** Модель выдала токен конца последовательности. */
+        EOS,
+        /** Текст совпал со стоп-последовательностью. */
+        STOP_SEQUENCE,
+        /** Сгенерировано maxNewTokens токенов. */
+        MAX_TOKENS
+    }
+
+    private final long startNanos;
+    private int promptTokens;
+    private long prefillStartNanos;
+    private long firstTokenNanos;
+    private long lastTokenNanos;
+    private long endNanos;
+    private long[] decodeNanos = new long[64];
+    private int decodeSteps;
+    private int generatedTokens;
+    private StopReason stopReason;
+
+    /**
+     * Создаётся в начале запроса: с этого момента отсчитывается TTFT.
+     */
+    public GenerationStats() {
+        this.startNanos = System.nanoTime();
+        this.prefillStartNanos = startNanos;
+    }
+
+    public void setPromptTokens(int promptTokens) {
+        this.promptTokens = promptTokens;
+    }
+
+    /**
+     * Отмечает начало prefill – перед первым шагом модели.
+     */
+    public void startPrefill() {
+        prefillStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Отмечает получение очередного токена от модели (в том числе EOS).
+     */
+    public void onToken() {
+        long now = System.nanoTime();
+        if (firstTokenNanos == 0) {
+            firstTokenNanos = now;
+        } else {
+            if (decodeSteps == decodeNanos.length) {
+                decodeNanos = Arrays.copyOf(decodeNanos, decodeSteps * 2);
+            }
+            decodeNanos[decodeSteps++] = now - lastTokenNanos;
+        }
+        lastTokenNanos = now;
+    }
+
+    /**
+     * Завершает запрос.
+     *
+     * @param generatedTokens число сгенерированных токенов без prompt-а и EOS.
+     * @param stopReason      причина остановки.
+     */
+    public void finish(int generatedTokens, StopReason stopReason) {
+        this.endNanos = System.nanoTime();
+        this.generatedTokens = generatedTokens;
+        this.stopReason = stopReason;
+    }
+
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getGeneratedTokens() {
+        return generatedTokens;
+    }
+
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * Время prefill, мс; 0, если модель не выдала ни одного токена.
+     */
+    public double getPrefillMillis() {
+        return firstTokenNanos == 0 ? 0 : (firstTokenNanos - prefillStartNanos) / 1e6;
+    }
+
+    /**
+     * Время до первого токена от начала запроса, мс; 0, если модель не выдала ни одного токена.
+     */
+    public double getTimeToFirstTokenMillis() {
+        return firstTokenNanos == 0 ? 0 : (firstTokenNanos - startNanos) / 1e6;
+    }
+
+    /**
+     * Задержки шагов декодирования после первого токена, мс.
+     */
+    public double[] getDecodeLatenciesMillis() {
+        double[] latencies = new double[decodeSteps];
+        for (int i = 0; i < decodeSteps; i++) {
+            latencies[i] = decodeNanos[i] / 1e6;
+        }
+        return latencies;
+    }
+
+    /**
+     * Суммарное время декодирования после первого токена, мс.
+     */
+    public double getDecodeMillis() {
+        return firstTokenNanos == 0 ? 0 : (lastTokenNanos - firstTokenNanos) / 1e6;
+    }
+
+    public double getTotalMillis() {
+        return (endNanos - startNanos) / 1e6;
+    }
+
+    /**
+     * Сгенерированных токенов в секунду от начала prefill до завершения запроса.
+     */
+    public double getTokensPerSecond() {
+        long nanos = endNanos - prefillStartNanos;
+        return nanos <= 0 ? 0 : generatedTokens * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GenerationStats{promptTokens=%d, generatedTokens=%d, prefill=%.1f ms, "
+                        + "ttft=%.1f ms, decode=%.1f ms, tokensPerSecond=%.2f, stopReason=%s}",
+                promptTokens, generatedTokens, getPrefillMillis(), getTimeToFirstTokenMillis(), getDecodeMillis(),
+                getTokensPerSecond(), stopReason);
+    }
+}
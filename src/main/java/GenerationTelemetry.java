@@ -0,0 +1,183 @@
+import ai.djl.metric.Dimension;
+import ai.djl.metric.Metric;
+import ai.djl.metric.Metrics;
+import ai.djl.metric.Unit;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Телеметрия генерации одной модели.
+ * <p>
+ * Каждый завершённый запрос ({@link GenerationStats}) записывается в {@link Metrics} DJL под именами
+ * из констант этого класса с измерением "Model", в гистограмму задержек декодирования и счётчики причин
+ * остановки, а затем передаётся подключённым получателям (например, экспортёру в систему мониторинга).
+ * <p>
+ * Metrics хранит скользящее окно последних {@link #DEFAULT_WINDOW} значений каждой метрики,
+ * по которому считаются перцентили; гистограмма и счётчики накапливаются за всё время работы.
+ */
+public class GenerationTelemetry {
+
+    public static final String PROMPT_TOKENS = "PromptTokens";
+    public static final String GENERATED_TOKENS = "GeneratedTokens";
+    public static final String PREFILL_LATENCY = "PrefillLatency";
+    public static final String TIME_TO_FIRST_TOKEN = "TimeToFirstToken";
+    public static final String DECODE_TOKEN_LATENCY = "DecodeTokenLatency";
+    public static final String TOKENS_PER_SECOND = "TokensPerSecond";
+    public static final String STOP_REASON_PREFIX = "StopReason.";
+
+    /**
+     * Размер окна значений каждой метрики в {@link Metrics}.
+     */
+    public static final int DEFAULT_WINDOW = 10_000;
+
+    /**
+     * Верхние границы корзин гистограммы задержек декодирования, мс; последняя корзина – всё, что больше.
+     */
+    private static final double[] DECODE_BUCKETS_MS = {5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private final String modelName;
+    private final Dimension dimension;
+    private final Metrics metrics;
+    private final List<Consumer<GenerationStats>> sinks = new CopyOnWriteArrayList<>();
+    private final long[] decodeHistogram = new long[DECODE_BUCKETS_MS.length + 1];
+    private final Map<GenerationStats.StopReason, Long> stopReasons = new EnumMap<>(GenerationStats.StopReason.class);
+    private long requests;
+    private GenerationStats last;
+
+    public GenerationTelemetry(String modelName) {
+        this(modelName, new Metrics());
+        metrics.setLimit(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param modelName имя модели – значение измерения "Model" всех метрик.
+     * @param metrics   куда записывать метрики, например общий объект нескольких моделей.
+     */
+    public GenerationTelemetry(String modelName, Metrics metrics) {
+        this.modelName = modelName;
+        this.dimension = new Dimension("Model", modelName);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Подключает получателя телеметрии каждого завершённого запроса.
+     * Получатель вызывается в потоке запроса и не должен надолго его задерживать.
+     */
+    public void addSink(Consumer<GenerationStats> sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(Consumer<GenerationStats> sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Записывает завершённый запрос.
+     */
+    public void record(GenerationStats stats) {
+        synchronized (this) {
+            metrics.addMetric(new Metric(PROMPT_TOKENS, stats.getPromptTokens(), Unit.COUNT, dimension));
+            metrics.addMetric(new Metric(GENERATED_TOKENS, stats.getGeneratedTokens(), Unit.COUNT, dimension));
+            metrics.addMetric(new Metric(PREFILL_LATENCY, stats.getPrefillMillis(), Unit.MILLISECONDS, dimension));
+            metrics.addMetric(new Metric(TIME_TO_FIRST_TOKEN, stats.getTimeToFirstTokenMillis(), Unit.MILLISECONDS,
+                    dimension));
+            for (double latency : stats.getDecodeLatenciesMillis()) {
+                metrics.addMetric(new Metric(DECODE_TOKEN_LATENCY, latency, Unit.MILLISECONDS, dimension));
+                decodeHistogram[bucket(latency)]++;
+            }
+            metrics.addMetric(new Metric(TOKENS_PER_SECOND, stats.getTokensPerSecond(), Unit.COUNT_PER_SECOND,
+                    dimension));
+            metrics.addMetric(new Metric(STOP_REASON_PREFIX + stats.getStopReason(), 1, Unit.COUNT, dimension));
+            stopReasons.merge(stats.getStopReason(), 1L, Long::sum);
+            requests++;
+            last = stats;
+        }
+        for (Consumer<GenerationStats> sink : sinks) {
+            sink.accept(stats);
+        }
+    }
+
+    private static int bucket(double latencyMs) {
+        for (int i = 0; i < DECODE_BUCKETS_MS.length; i++) {
+            if (latencyMs <= DECODE_BUCKETS_MS[i]) {
+                return i;
+            }
+        }
+        return DECODE_BUCKETS_MS.length;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    /**
+     * Метрики DJL; при чтении из другого потока синхронизируйтесь на этом объекте телеметрии.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Перцентиль метрики по окну последних значений или 0, если значений ещё нет.
+     *
+     * @param name       имя метрики, например {@link #TIME_TO_FIRST_TOKEN}.
+     * @param percentile перцентиль от 0 до 100.
+     */
+    public synchronized double percentile(String name, int percentile) {
+        if (!metrics.hasMetric(name) || metrics.getMetric(name).isEmpty()) {
+            return 0;
+        }
+        return metrics.percentile(name, percentile).getValue().doubleValue();
+    }
+
+    /**
+     * Верхние границы корзин гистограммы задержек декодирования, мс.
+     */
+    public static double[] getDecodeBucketsMillis() {
+        return DECODE_BUCKETS_MS.clone();
+    }
+
+    /**
+     * Число шагов декодирования в каждой корзине; длина на единицу больше числа границ.
+     */
+    public synchronized long[] getDecodeLatencyHistogram() {
+        return decodeHistogram.clone();
+    }
+
+    public synchronized long getStopReasonCount(GenerationStats.StopReason reason) {
+        return stopReasons.getOrDefault(reason, 0L);
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Телеметрия последнего завершённого запроса или null.
+     */
+    public synchronized GenerationStats getLast() {
+        return last;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < decodeHistogram.length; i++) {
+            histogram.append(i < DECODE_BUCKETS_MS.length ? "<=" + (int) DECODE_BUCKETS_MS[i] : ">"
+                    + (int) DECODE_BUCKETS_MS[DECODE_BUCKETS_MS.length - 1]).append("ms=").append(decodeHistogram[i]);
+            if (i < decodeHistogram.length - 1) {
+                histogram.append(", ");
+            }
+        }
+        return String.format("GenerationTelemetry{model=%s, requests=%d, ttftP50=%.1f ms, ttftP90=%.1f ms, "
+                        + "prefillP50=%.1f ms, decodeP50=%.1f ms, decodeP99=%.1f ms, tokensPerSecondP50=%.2f, "
+                        + "stopReasons=%s, decodeHistogram=[%s]}",
+                modelName, requests, percentile(TIME_TO_FIRST_TOKEN, 50), percentile(TIME_TO_FIRST_TOKEN, 90),
+                percentile(PREFILL_LATENCY, 50), percentile(DECODE_TOKEN_LATENCY, 50),
+                percentile(DECODE_TOKEN_LATENCY, 99), percentile(TOKENS_PER_SECOND, 50), stopReasons, histogram);
+    }
+}
@@ -0,0 +1,620 @@
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Хранилище эмбеддингов с приближённым поиском ближайших соседей по графу HNSW
+ * (Hierarchical Navigable Small World, Malkov &amp; Yashunin).
+ * <p>
+ * Векторы – вершины многоуровневого графа: на нулевом уровне все вершины, на каждом следующем –
+ * экспоненциально меньше. Поиск спускается жадно с верхнего уровня и на нулевом просматривает лишь
+ * окрестность запроса, поэтому время поиска растёт примерно логарифмически от размера хранилища,
+ * а не линейно, как у полного перебора ({@link FlatEmbeddingStore}). Цена – результат приближённый.
+ * <p>
+ * Параметры:
+ * <ul>
+ *     <li>M – число соседей вершины на уровнях выше нулевого (на нулевом – 2M): больше M – выше точность,
+ *     больше память и время вставки;</li>
+ *     <li>efConstruction – ширина поиска соседей при вставке: качество графа против времени построения;</li>
+ *     <li>efSearch – ширина поиска при запросе (не меньше k): точность против задержки,
+ *     меняется на ходу через {@link #setEfSearch(int)}.</li>
+ * </ul>
+ * Вставки из нескольких потоков безопасны и выполняются параллельно: списки соседей вершины защищены
+ * её монитором, массив вершин растёт под блокировкой записи. {@link #addAll} больших пачек сам
+ * распределяет вставки по ядрам. Близость – скалярное произведение; векторы не единичной длины
+ * нормализуются при добавлении. Удаление отдельных записей и фильтры не поддерживаются.
+ */
+public class HnswEmbeddingStore implements EmbeddingStore<TextSegment> {
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+    // Пачки меньше этого вставляются в вызывающем потоке
+    private static final int PARALLEL_INSERT_THRESHOLD = 64;
+
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private volatile int efSearch;
+    private final boolean unitLength;
+    // Множитель уровня: уровень вершины = floor(-ln(U) / ln(M))
+    private final double levelMultiplier;
+
+    // Массив вершин заменяется при росте под блокировкой записи; вставки и поиск держат блокировку чтения
+    private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+    private Node[] nodes = new Node[1024];
+    // Выданные номера вершин и вершины, уже связанные с графом
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger linked = new AtomicInteger();
+    // Точка входа – вершина с наибольшим уровнем
+    private final Object entryLock = new Object();
+    private volatile Node entry;
+    private final ThreadLocal<VisitedSet> visited = ThreadLocal.withInitial(VisitedSet::new);
+
+    /**
+     * Хранилище с параметрами по умолчанию.
+     *
+     * @param unitLength добавляемые векторы и запросы имеют единичную длину
+     *                   (например, эмбеддинги {@link LocalONNXEmbeddingModel#isNormalized()}).
+     */
+    public HnswEmbeddingStore(boolean unitLength) {
+        this(unitLength, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+    }
+
+    /**
+     * @param unitLength     добавляемые векторы и запросы имеют единичную длину.
+     * @param m              число соседей вершины на верхних уровнях (на нулевом – 2m).
+     * @param efConstruction ширина поиска соседей при вставке.
+     * @param efSearch       ширина поиска при запросе.
+     */
+    public HnswEmbeddingStore(boolean unitLength, int m, int efConstruction, int efSearch) {
+        if (m < 2 || efConstruction < 1 || efSearch < 1) {
+            throw new IllegalArgumentException("Неверные параметры HNSW: M=" + m + ", efConstruction="
+                    + efConstruction + ", efSearch=" + efSearch);
+        }
+        this.unitLength = unitLength;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(m);
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    /**
+     * Ширина поиска при запросе; действует на следующие запросы.
+     */
+    public void setEfSearch(int efSearch) {
+        if (efSearch < 1) {
+            throw new IllegalArgumentException("efSearch должен быть положительным: " + efSearch);
+        }
+        this.efSearch = efSearch;
+    }
+
+    public boolean isUnitLength() {
+        return unitLength;
+    }
+
+    public int size() {
+        return linked.get();
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        return add(embedding, null);
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        addAll(List.of(id), List.of(embedding), null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        String id = UUID.randomUUID().toString();
+        addAll(List.of(id), List.of(embedding), Collections.singletonList(segment));
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> newIds = generateIds(embeddings.size());
+        addAll(newIds, embeddings, null);
+        return newIds;
+    }
+
+    /**
+     * Добавляет пачку; большие пачки вставляются параллельно в общем пуле ForkJoin.
+     */
+    @Override
+    public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> embedded) {
+        if (ids.size() != embeddings.size() || (embedded != null && embedded.size() != embeddings.size())) {
+            throw new IllegalArgumentException("Число идентификаторов, эмбеддингов и фрагментов должно совпадать");
+        }
+        ensureCapacity(allocated.get() + ids.size());
+        IntStream indices = IntStream.range(0, ids.size());
+        if (ids.size() >= PARALLEL_INSERT_THRESHOLD) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> insert(ids.get(i), embeddings.get(i), embedded == null ? null : embedded.get(i)));
+    }
+
+    @Override
+    public void removeAll() {
+        resizeLock.writeLock().lock();
+        try {
+            nodes = new Node[1024];
+            allocated.set(0);
+            linked.set(0);
+            entry = null;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        resizeLock.readLock().lock();
+        try {
+            if (capacity <= nodes.length) {
+                return;
+            }
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+        resizeLock.writeLock().lock();
+        try {
+            if (capacity > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(capacity, nodes.length * 2));
+            }
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    private void insert(String embeddingId, Embedding embedding, TextSegment segment) {
+        float[] vector = unitLength ? embedding.vector() : normalized(embedding.vector());
+        int level = (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelMultiplier);
+        int id = allocated.getAndIncrement();
+        Node node = new Node(id, embeddingId, vector, unitLength ? null : embedding, segment, level, m, maxM0);
+        ensureCapacity(id + 1);
+        resizeLock.readLock().lock();
+        try {
+            nodes[id] = node;
+            link(node);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+        linked.incrementAndGet();
+    }
+
+    /**
+     * Связывает новую вершину с графом (алгоритм 1 статьи HNSW).
+     */
+    private void link(Node node) {
+        Node ep = entry;
+        if (ep == null) {
+            synchronized (entryLock) {
+                if (entry == null) {
+                    entry = node;
+                    return;
+                }
+                ep = entry;
+            }
+        }
+        float[] query = node.vector;
+        int current = ep.id;
+        float currentScore = dot(query, ep.vector);
+        // Жадный спуск по уровням выше уровня новой вершины
+        for (int layer = ep.level; layer > node.level; layer--) {
+            long best = greedy(query, current, currentScore, layer);
+            current = (int) (best >>> 32);
+            currentScore = Float.intBitsToFloat((int) best);
+        }
+        int[] entryPoints = {current};
+        for (int layer = Math.min(node.level, ep.level); layer >= 0; layer--) {
+            Heap found = searchLayer(query, entryPoints, efConstruction, layer);
+            int[] neighbours = selectNeighbours(found.ids, found.scores, found.size, m);
+            synchronized (node) {
+                System.arraycopy(neighbours, 0, node.links[layer], 0, neighbours.length);
+                node.linkCounts[layer] = neighbours.length;
+            }
+            for (int neighbour : neighbours) {
+                addLink(nodes[neighbour], node.id, layer);
+            }
+            entryPoints = Arrays.copyOf(found.ids, found.size);
+        }
+        if (node.level > ep.level) {
+            synchronized (entryLock) {
+                if (node.level > entry.level) {
+                    entry = node;
+                }
+            }
+        }
+    }
+
+    /**
+     * Добавляет обратную связь neighbour → id; переполненный список соседей прореживается эвристикой.
+     */
+    private void addLink(Node neighbour, int id, int layer) {
+        int maxLinks = layer == 0 ? maxM0 : m;
+        synchronized (neighbour) {
+            int count = neighbour.linkCounts[layer];
+            int[] links = neighbour.links[layer];
+            if (count < maxLinks) {
+                links[count] = id;
+                neighbour.linkCounts[layer] = count + 1;
+                return;
+            }
+            int[] candidates = Arrays.copyOf(links, count + 1);
+            candidates[count] = id;
+            float[] scores = new float[candidates.length];
+            for (int i = 0; i < candidates.length; i++) {
+                scores[i] = dot(neighbour.vector, nodes[candidates[i]].vector);
+            }
+            int[] kept = selectNeighbours(candidates, scores, candidates.length, maxLinks);
+            System.arraycopy(kept, 0, links, 0, kept.length);
+            neighbour.linkCounts[layer] = kept.length;
+        }
+    }
+
+    /**
+     * Эвристика выбора соседей (алгоритм 4 статьи): кандидаты берутся по убыванию близости к вершине,
+     * кандидат пропускается, если он ближе к уже выбранному соседу, чем к самой вершине. Так у вершины
+     * остаются связи в разных направлениях, а не кластер почти одинаковых соседей.
+     */
+    private int[] selectNeighbours(int[] candidates, float[] scores, int count, int max) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(scores[b], scores[a]));
+        int[] selected = new int[Math.min(max, count)];
+        int size = 0;
+        for (int i = 0; i < count && size < selected.length; i++) {
+            int candidate = candidates[order[i]];
+            float[] vector = nodes[candidate].vector;
+            boolean diverse = true;
+            for (int j = 0; j < size; j++) {
+                if (dot(vector, nodes[selected[j]].vector) > scores[order[i]]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[size++] = candidate;
+            }
+        }
+        return Arrays.copyOf(selected, size);
+    }
+
+    /**
+     * Жадный переход к ближайшему соседу на уровне layer, пока близость растёт.
+     *
+     * @return номер вершины в старших 32 битах и биты её близости в младших.
+     */
+    private long greedy(float[] query, int current, float currentScore, int layer) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int neighbour : links(nodes[current], layer)) {
+                float score = dot(query, nodes[neighbour].vector);
+                if (score > currentScore) {
+                    current = neighbour;
+                    currentScore = score;
+                    changed = true;
+                }
+            }
+        }
+        return ((long) current << 32) | (Float.floatToRawIntBits(currentScore) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Поиск ef ближайших к запросу вершин на одном уровне (алгоритм 2 статьи).
+     *
+     * @return куча найденных вершин, в вершине кучи – наименее близкая.
+     */
+    private Heap searchLayer(float[] query, int[] entryPoints, int ef, int layer) {
+        VisitedSet seen = visited.get();
+        seen.reset(nodes.length);
+        // candidates – кого ещё раскрыть, самый близкий первым; results – лучшие ef, худший первым
+        Heap candidates = new Heap(ef, true);
+        Heap results = new Heap(ef + 1, false);
+        for (int ep : entryPoints) {
+            if (seen.add(ep)) {
+                float score = dot(query, nodes[ep].vector);
+                candidates.push(ep, score);
+                results.push(ep, score);
+                if (results.size > ef) {
+                    results.pop();
+                }
+            }
+        }
+        while (candidates.size > 0) {
+            float candidateScore = candidates.topScore();
+            if (results.size >= ef && candidateScore < results.topScore()) {
+                break;
+            }
+            int candidate = candidates.pop();
+            for (int neighbour : links(nodes[candidate], layer)) {
+                if (!seen.add(neighbour)) {
+                    continue;
+                }
+                float score = dot(query, nodes[neighbour].vector);
+                if (results.size < ef || score > results.topScore()) {
+                    candidates.push(neighbour, score);
+                    results.push(neighbour, score);
+                    if (results.size > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private static int[] links(Node node, int layer) {
+        synchronized (node) {
+            return Arrays.copyOf(node.links[layer], node.linkCounts[layer]);
+        }
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        if (request.filter() != null) {
+            throw new UnsupportedOperationException("HnswEmbeddingStore не поддерживает фильтры");
+        }
+        int k = request.maxResults();
+        resizeLock.readLock().lock();
+        try {
+            Node ep = entry;
+            if (ep == null || k <= 0) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+            float[] query = unitLength ? request.queryEmbedding().vector() : normalized(request.queryEmbedding().vector());
+            int current = ep.id;
+            float currentScore = dot(query, ep.vector);
+            for (int layer = ep.level; layer > 0; layer--) {
+                long best = greedy(query, current, currentScore, layer);
+                current = (int) (best >>> 32);
+                currentScore = Float.intBitsToFloat((int) best);
+            }
+            Heap found = searchLayer(query, new int[]{current}, Math.max(efSearch, k), 0);
+            while (found.size > k) {
+                found.pop();
+            }
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(found.size);
+            while (found.size > 0) {
+                double score = RelevanceScore.fromCosineSimilarity(found.topScore());
+                Node node = nodes[found.pop()];
+                if (score >= request.minScore()) {
+                    Embedding embedding = node.embedding != null ? node.embedding : new Embedding(node.vector);
+                    matches.add(new EmbeddingMatch<>(score, node.embeddingId, embedding, node.segment));
+                }
+            }
+            Collections.reverse(matches);
+            return new EmbeddingSearchResult<>(matches);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Сравнение с точным поиском: для каждого efSearch – recall@k (доля точных k ближайших, найденных
+     * HNSW) и средняя задержка запроса. exact должен содержать те же записи с теми же идентификаторами.
+     * Текущий efSearch после замеров восстанавливается.
+     */
+    public String recallReport(EmbeddingStore<TextSegment> exact, List<Embedding> queries, int k,
+                               int... efSearchValues) {
+        List<Set<String>> truth = new ArrayList<>(queries.size());
+        long exactNanos = 0;
+        for (Embedding query : queries) {
+            long start = System.nanoTime();
+            EmbeddingSearchResult<TextSegment> result = exact.search(request(query, k));
+            exactNanos += System.nanoTime() - start;
+            Set<String> ids = new HashSet<>();
+            result.matches().forEach(match -> ids.add(match.embeddingId()));
+            truth.add(ids);
+        }
+        double exactMicros = exactNanos / 1e3 / queries.size();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("HNSW M=%d, efConstruction=%d, %d векторов, %d запросов, k=%d%n",
+                m, efConstruction, size(), queries.size(), k));
+        sb.append(String.format("  точный поиск: %.1f мкс/запрос%n", exactMicros));
+        int saved = efSearch;
+        try {
+            for (int ef : efSearchValues) {
+                setEfSearch(ef);
+                long nanos = 0;
+                long hits = 0;
+                long expected = 0;
+                for (int q = 0; q < queries.size(); q++) {
+                    long start = System.nanoTime();
+                    EmbeddingSearchResult<TextSegment> result = search(request(queries.get(q), k));
+                    nanos += System.nanoTime() - start;
+                    for (EmbeddingMatch<TextSegment> match : result.matches()) {
+                        if (truth.get(q).contains(match.embeddingId())) {
+                            hits++;
+                        }
+                    }
+                    expected += truth.get(q).size();
+                }
+                double micros = nanos / 1e3 / queries.size();
+                sb.append(String.format("  efSearch=%d: recall@%d=%.3f, %.1f мкс/запрос, быстрее точного в %.1f раз%n",
+                        ef, k, expected == 0 ? 1.0 : (double) hits / expected, micros, exactMicros / micros));
+            }
+        } finally {
+            setEfSearch(saved);
+        }
+        return sb.toString();
+    }
+
+    private static EmbeddingSearchRequest request(Embedding query, int k) {
+        return EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(k).build();
+    }
+
+    private static float[] normalized(float[] vector) {
+        float scale = (float) (1 / Math.max(Math.sqrt(dot(vector, vector)), 1e-12));
+        float[] result = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = vector[i] * scale;
+        }
+        return result;
+    }
+
+    private static float dot(float[] a, float[] b) {
+        return FlatEmbeddingStore.dot(a, b);
+    }
+
+    /**
+     * Вершина графа: вектор, запись хранилища и списки соседей по уровням.
+     */
+    private static final class Node {
+        final int id;
+        final String embeddingId;
+        final float[] vector;
+        // Исходный эмбеддинг, если vector – его нормализованная копия
+        final Embedding embedding;
+        final TextSegment segment;
+        final int level;
+        final int[][] links;
+        final int[] linkCounts;
+
+        Node(int id, String embeddingId, float[] vector, Embedding embedding, TextSegment segment, int level,
+             int m, int maxM0) {
+            this.id = id;
+            this.embeddingId = embeddingId;
+            this.vector = vector;
+            this.embedding = embedding;
+            this.segment = segment;
+            this.level = level;
+            this.links = new int[level + 1][];
+            for (int layer = 0; layer <= level; layer++) {
+                links[layer] = new int[layer == 0 ? maxM0 : m];
+            }
+            this.linkCounts = new int[level + 1];
+        }
+    }
+
+    /**
+     * Двоичная куча пар (вершина, близость); max – в вершине самая близкая, иначе наименее близкая.
+     */
+    private static final class Heap {
+        private final boolean max;
+        int[] ids;
+        float[] scores;
+        int size;
+
+        Heap(int capacity, boolean max) {
+            this.max = max;
+            this.ids = new int[Math.max(capacity, 1)];
+            this.scores = new float[Math.max(capacity, 1)];
+        }
+
+        private boolean above(float a, float b) {
+            return max ? a > b : a < b;
+        }
+
+        float topScore() {
+            return scores[0];
+        }
+
+        void push(int id, float score) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!above(score, scores[parent])) {
+                    break;
+                }
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = ids[0];
+            size--;
+            int id = ids[size];
+            float score = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!above(scores[child], score)) {
+                    break;
+                }
+                ids[i] = ids[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            ids[i] = id;
+            scores[i] = score;
+            return top;
+        }
+    }
+
+    /**
+     * Множество посещённых вершин одного поиска: метки поколений вместо очистки массива.
+     */
+    private static final class VisitedSet {
+        private int[] marks = new int[0];
+        private int generation;
+
+        void reset(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[capacity];
+                generation = 0;
+            }
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        boolean add(int id) {
+            if (marks[id] == generation) {
+                return false;
+            }
+            marks[id] = generation;
+            return true;
+        }
+    }
+}
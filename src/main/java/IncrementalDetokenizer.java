@@ -0,0 +1,72 @@
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+
+import java.util.List;
+
+/**
+ * Пошаговое декодирование сгенерированных токенов в текст для стриминга.
+ * <p>
+ * Отдельный BPE-токен не всегда декодируется в целый символ: многобайтовый UTF-8 символ может быть
+ * разрезан между токенами, а пробелы SentencePiece зависят от соседей. Поэтому декодируется короткое
+ * окно [prefixOffset, конец) и сравнивается с уже выданным окном [prefixOffset, readOffset).
+ * Текст выдаётся, только если он не заканчивается незавершённым символом (U+FFFD).
+ */
+public class IncrementalDetokenizer {
+
+    private static final char REPLACEMENT_CHAR = '�';
+
+    private final HuggingFaceTokenizer tokenizer;
+    private int prefixOffset;
+    private int readOffset;
+
+    /**
+     * @param tokenizer    токенизатор модели.
+     * @param promptLength число токенов prompt-а, которые не нужно выдавать.
+     */
+    public IncrementalDetokenizer(HuggingFaceTokenizer tokenizer, int promptLength) {
+        this.tokenizer = tokenizer;
+        this.prefixOffset = promptLength;
+        this.readOffset = promptLength;
+    }
+
+    /**
+     * Возвращает новый фрагмент текста после добавления очередного токена в tokens.
+     *
+     * @param tokens вся последовательность (prompt и сгенерированные токены).
+     * @return новый текст или пустая строка, если символ ещё не завершён.
+     */
+    public String next(List<Long> tokens) {
+        String prefixText = decode(tokens, prefixOffset, readOffset);
+        String newText = decode(tokens, prefixOffset, tokens.size());
+        if (newText.length() > prefixText.length() && newText.charAt(newText.length() - 1) != REPLACEMENT_CHAR) {
+            prefixOffset = readOffset;
+            readOffset = tokens.size();
+            return newText.substring(prefixText.length());
+        }
+        return "";
+    }
+
+    /**
+     * Выдаёт остаток текста, задержанный из-за незавершённого символа, в конце генерации.
+     */
+    public String flush(List<Long> tokens) {
+        if (readOffset >= tokens.size()) {
+            return "";
+        }
+        String prefixText = decode(tokens, prefixOffset, readOffset);
+        String newText = decode(tokens, prefixOffset, tokens.size());
+        prefixOffset = tokens.size();
+        readOffset = tokens.size();
+        return newText.length() > prefixText.length() ? newText.substring(prefixText.length()) : "";
+    }
+
+    private String decode(List<Long> tokens, int from, int to) {
+        if (from >= to) {
+            return "";
+        }
+        long[] ids = new long[to - from];
+        for (int i = from; i < to; i++) {
+            ids[i - from] = tokens.get(i);
+        }
+        return tokenizer.decode(ids, true);
+    }
+}
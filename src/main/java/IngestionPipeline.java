@@ -0,0 +1,430 @@
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Конвейер загрузки нескольких документов в {@link DocumentProcessor}.
+ * <p>
+ * Три стадии работают одновременно и связаны ограниченными очередями:
+ * <ol>
+ *     <li>split – потоковое чтение файлов ({@link StreamingDocumentSplitter}) и нарезка фрагментов
+ *     на группы для эмбеддинга, по файлу на поток;</li>
+ *     <li>embed – пакетные эмбеддинги групп, по потоку на предиктор модели;</li>
+ *     <li>store – добавление в хранилище одним потоком.</li>
+ * </ol>
+ * Пока модель считает эмбеддинги одного файла, следующие файлы уже читаются и разбиваются.
+ * Файл читается по мере того, как освобождается место в очереди групп: полная очередь блокирует
+ * предыдущую стадию, поэтому в памяти одновременно находится лишь несколько групп фрагментов,
+ * сколько бы файлов ни загружалось и каким бы большим ни был каждый из них.
+ * <p>
+ * Ошибка в одном файле (например, неподдерживаемый формат) не останавливает остальные:
+ * она записывается в {@link Report#getFailures()}. Группы фрагментов файла, посчитанные до ошибки,
+ * остаются в хранилище.
+ * <p>
+ * Если поток стадии падает на необработанной ошибке (например, OutOfMemoryError), он всё равно передаёт
+ * признак конца следующей стадии, а {@link #ingest} останавливает остальные потоки и выбрасывает эту ошибку,
+ * а не ждёт вечно.
+ * <p>
+ * Потоки стадий – обычные потоки фиксированного пула, а не виртуальные: все стадии заняты вычислениями
+ * (разбиение, эмбеддинги в ONNX Runtime), их число и так равно числу предикторов и ядер, а на время
+ * вызова native-кода виртуальный поток всё равно занимает поток-носитель.
+ * <p>
+ * Если у процессора открыт индекс на диске ({@link DocumentProcessor#openIndex}), файлы, уже загруженные
+ * в него, пропускаются, а файл отмечается загруженным, когда в хранилище добавлена последняя из его
+ * групп и ни одна не завершилась ошибкой.
+ */
+public class IngestionPipeline {
+
+    // Признак конца потока в очереди стадии
+    private static final Work END = new Work(null, null);
+
+    private final DocumentProcessor processor;
+    private final int splitWorkers;
+    private final int embedWorkers;
+    private final int queueCapacity;
+
+    /**
+     * Число потоков по умолчанию: чтение и разбиение – два потока, эмбеддинги – по одному
+     * на предиктор модели, очереди – по два элемента на поток следующей стадии.
+     */
+    public IngestionPipeline(DocumentProcessor processor) {
+        this(processor, 2, processor.getEmbeddingModel().getPoolSize());
+    }
+
+    /**
+     * @param processor    загружающий документы процессор; хранилище пополняется в нём.
+     * @param splitWorkers потоки чтения и разбиения файлов.
+     * @param embedWorkers потоки эмбеддингов; больше размера пула предикторов модели смысла нет.
+     */
+    public IngestionPipeline(DocumentProcessor processor, int splitWorkers, int embedWorkers) {
+        if (splitWorkers < 1 || embedWorkers < 1) {
+            throw new IllegalArgumentException("Каждой стадии нужен хотя бы один поток");
+        }
+        this.processor = processor;
+        this.splitWorkers = splitWorkers;
+        this.embedWorkers = embedWorkers;
+        this.queueCapacity = 2 * Math.max(splitWorkers, embedWorkers);
+    }
+
+    /**
+     * Загружает файлы и ждёт окончания.
+     *
+     * @param files          файлы документов.
+     * @param progress       получает строку с ходом загрузки каждые reportMillis мс; может быть null.
+     * @param reportMillis   период отчётов о ходе загрузки.
+     * @return итоговая статистика стадий и ошибки по файлам.
+     */
+    public Report ingest(List<Path> files, Consumer<String> progress, long reportMillis) throws InterruptedException {
+        Report report = new Report(files.size());
+        ConcurrentLinkedQueue<Path> inputs = new ConcurrentLinkedQueue<>(files);
+        BlockingQueue<Work> groups = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Work> embedded = new ArrayBlockingQueue<>(queueCapacity);
+        int groupSize = processor.getEmbedGroupSize();
+
+        ExecutorService executor = Executors.newFixedThreadPool(splitWorkers + embedWorkers + 1,
+                daemonThreads("ingestion"));
+        ScheduledExecutorService reporter = null;
+        if (progress != null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(daemonThreads("ingestion-progress"));
+            reporter.scheduleAtFixedRate(() -> progress.accept(report.progress()), reportMillis, reportMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        CompletionService<Void> workers = new ExecutorCompletionService<>(executor);
+        int submitted = 0;
+        try {
+            AtomicInteger splitters = new AtomicInteger(splitWorkers);
+            for (int i = 0; i < splitWorkers; i++) {
+                workers.submit(() -> {
+                    try {
+                        Path file;
+                        while ((file = inputs.poll()) != null) {
+                            if (processor.isDocumentIndexed(file)) {
+                                report.skipped.incrementAndGet();
+                                continue;
+                            }
+                            FileState state = new FileState(file);
+                            try {
+                                // В индекс попадёт версия, которую видели до чтения: изменённый за это время
+                                // файл будет загружен заново в следующий раз
+                                state.documentKey = processor.documentKey(file);
+                                try (StreamingDocumentSplitter.Segments segments = processor.openDocument(file.toString())) {
+                                    while (segments.hasNext()) {
+                                        long start = System.nanoTime();
+                                        Work group = new Work(file, state);
+                                        group.segments = new ArrayList<>(groupSize);
+                                        while (group.segments.size() < groupSize && segments.hasNext()) {
+                                            group.segments.add(segments.next());
+                                        }
+                                        report.split.record(start, group.segments.size());
+                                        state.pending.incrementAndGet();
+                                        groups.put(group);
+                                    }
+                                }
+                                report.files.incrementAndGet();
+                            } catch (IOException e) {
+                                state.failed = true;
+                                report.fail(file, new UncheckedIOException(e));
+                            } catch (RuntimeException e) {
+                                state.failed = true;
+                                report.fail(file, e);
+                            }
+                            complete(state, report);
+                        }
+                    } finally {
+                        finishStage(splitters, groups);
+                    }
+                    return null;
+                });
+                submitted++;
+            }
+            AtomicInteger embedders = new AtomicInteger(embedWorkers);
+            for (int i = 0; i < embedWorkers; i++) {
+                workers.submit(() -> {
+                    try {
+                        Work work;
+                        while ((work = take(groups)) != END) {
+                            long start = System.nanoTime();
+                            try {
+                                work.embeddings = processor.getEmbeddingModel().embedAll(work.segments);
+                            } catch (RuntimeException e) {
+                                work.state.failed = true;
+                                report.fail(work.file, e);
+                                complete(work.state, report);
+                                continue;
+                            }
+                            report.embed.record(start, work.segments.size());
+                            embedded.put(work);
+                        }
+                    } finally {
+                        finishStage(embedders, embedded);
+                    }
+                    return null;
+                });
+                submitted++;
+            }
+            workers.submit(() -> {
+                Work work;
+                while ((work = take(embedded)) != END) {
+                    long start = System.nanoTime();
+                    try {
+                        processor.addEmbeddings(work.embeddings, work.segments);
+                    } catch (RuntimeException e) {
+                        work.state.failed = true;
+                        report.fail(work.file, e);
+                        complete(work.state, report);
+                        continue;
+                    }
+                    report.store.record(start, work.segments.size());
+                    complete(work.state, report);
+                }
+                return null;
+            });
+            submitted++;
+            // Потоки проверяются в порядке завершения: упавший поток виден сразу, даже если другие
+            // в это время ждут очереди, которую он больше не разгрузит
+            for (int i = 0; i < submitted; i++) {
+                try {
+                    workers.take().get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Ошибка конвейера загрузки", e.getCause());
+                }
+            }
+        } finally {
+            // Прерывает оставшиеся потоки, если конвейер остановлен ошибкой
+            executor.shutdownNow();
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+        report.finish();
+        return report;
+    }
+
+    /**
+     * Берёт элемент из очереди стадии; признак конца возвращается обратно, чтобы его увидели
+     * остальные потоки той же стадии.
+     */
+    private static Work take(BlockingQueue<Work> queue) throws InterruptedException {
+        Work work = queue.take();
+        if (work == END) {
+            queue.put(END);
+        }
+        return work;
+    }
+
+    /**
+     * Завершение потока стадии, в том числе аварийное: последний поток стадии передаёт признак конца
+     * следующей, чтобы её потоки не ждали очередь вечно.
+     */
+    private static void finishStage(AtomicInteger workers, BlockingQueue<Work> next) throws InterruptedException {
+        if (workers.decrementAndGet() == 0) {
+            next.put(END);
+        }
+    }
+
+    /**
+     * Снимает одну незавершённую часть файла (разбиение или группу); последняя снятая часть
+     * отмечает файл загруженным в индексе, если ошибок не было.
+     */
+    private void complete(FileState state, Report report) {
+        if (state.pending.decrementAndGet() == 0 && !state.failed) {
+            try {
+                processor.documentIndexed(state.documentKey);
+            } catch (RuntimeException e) {
+                report.fail(state.file, e);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Элемент, проходящий по стадиям: группа фрагментов файла и их эмбеддинги.
+     */
+    private static final class Work {
+        final Path file;
+        final FileState state;
+        List<TextSegment> segments;
+        List<Embedding> embeddings;
+
+        Work(Path file, FileState state) {
+            this.file = file;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Незавершённые части файла: его разбиение (пока идёт) и группы, ещё не добавленные в хранилище.
+     */
+    private static final class FileState {
+        final Path file;
+        final AtomicInteger pending = new AtomicInteger(1);
+        // Ключ версии файла в индексе, снятый до чтения
+        volatile String documentKey;
+        volatile boolean failed;
+
+        FileState(Path file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Статистика одной стадии: обработанные элементы (файлы или фрагменты) и время работы потоков.
+     */
+    public static final class StageStats {
+        private final String name;
+        private final String unit;
+        private final int workers;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        StageStats(String name, String unit, int workers) {
+            this.name = name;
+            this.unit = unit;
+            this.workers = workers;
+        }
+
+        void record(long startNanos, long count) {
+            busyNanos.addAndGet(System.nanoTime() - startNanos);
+            calls.incrementAndGet();
+            items.addAndGet(count);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getItems() {
+            return items.get();
+        }
+
+        /**
+         * Элементов в секунду за время wallNanos от начала загрузки.
+         */
+        public double getThroughput(long wallNanos) {
+            return wallNanos == 0 ? 0 : items.get() * 1e9 / wallNanos;
+        }
+
+        /**
+         * Доля времени, которую потоки стадии были заняты работой, а не ждали очереди.
+         */
+        public double getUtilization(long wallNanos) {
+            return wallNanos == 0 ? 0 : (double) busyNanos.get() / ((double) wallNanos * workers);
+        }
+
+        String format(long wallNanos) {
+            return String.format("%s: %d %s, %.1f %s/s, %d потоков, занятость %.0f%%", name, items.get(), unit,
+                    getThroughput(wallNanos), unit, workers, getUtilization(wallNanos) * 100);
+        }
+    }
+
+    /**
+     * Итог загрузки: статистика стадий и ошибки по файлам.
+     */
+    public final class Report {
+        private final int totalFiles;
+        private final long startNanos = System.nanoTime();
+        private volatile long wallNanos;
+        // Файлы, прочитанные до конца, и пропущенные, потому что уже есть в индексе
+        private final AtomicInteger files = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final StageStats split = new StageStats("split", "фрагментов", splitWorkers);
+        private final StageStats embed = new StageStats("embed", "фрагментов", embedWorkers);
+        private final StageStats store = new StageStats("store", "фрагментов", 1);
+        private final Map<Path, String> failures = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        Report(int totalFiles) {
+            this.totalFiles = totalFiles;
+        }
+
+        void fail(Path file, RuntimeException e) {
+            failures.put(file, e.getMessage());
+        }
+
+        void finish() {
+            wallNanos = System.nanoTime() - startNanos;
+        }
+
+        private long elapsedNanos() {
+            return wallNanos != 0 ? wallNanos : System.nanoTime() - startNanos;
+        }
+
+        public List<StageStats> getStages() {
+            return List.of(split, embed, store);
+        }
+
+        public long getWallMillis() {
+            return elapsedNanos() / 1_000_000;
+        }
+
+        /**
+         * Файлы, пропущенные, потому что уже загружены в индекс.
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Ошибки по файлам: путь и сообщение.
+         */
+        public Map<Path, String> getFailures() {
+            synchronized (failures) {
+                return new LinkedHashMap<>(failures);
+            }
+        }
+
+        /**
+         * Строка о ходе загрузки: прочитано файлов и фрагменты, дошедшие до каждой стадии.
+         */
+        public String progress() {
+            return String.format("Загрузка: файлов %d/%d, фрагментов разбито %d, посчитано %d, добавлено %d",
+                    files.get() + skipped.get(), totalFiles, split.getItems(), embed.getItems(), store.getItems());
+        }
+
+        @Override
+        public String toString() {
+            long wall = elapsedNanos();
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Загружено файлов %d из %d за %d мс", totalFiles - failures.size() - skipped.get(),
+                    totalFiles, wall / 1_000_000));
+            if (skipped.get() > 0) {
+                sb.append(String.format(", уже в индексе %d", skipped.get()));
+            }
+            for (StageStats stage : getStages()) {
+                sb.append("\n  ").append(stage.format(wall));
+            }
+            getFailures().forEach((file, message) -> sb.append("\n  ошибка ").append(file).append(": ").append(message));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+
+/**
+ * Кэш ключей/значений внимания (past_key_values) одной генерируемой последовательности.
+ * Позволяет на каждом шаге декодирования подавать модели только новые токены,
+ * а не пересчитывать prefill по всему prompt-у заново.
+ */
+public interface KVCache extends AutoCloseable {
+
+    /**
+     * Возвращает тензоры past_key_values для очередного шага в порядке
+     * [layer0.key, layer0.value, layer1.key, ...], форма каждого – [1, numHeads, length(), headDim].
+     *
+     * @param manager менеджер текущего шага, в котором при необходимости создаются временные тензоры.
+     */
+    NDList pastKeyValues(NDManager manager);
+
+    /**
+     * Запоминает выходы present.* модели после шага.
+     *
+     * @param presents тензоры present в том же порядке, что и {@link #pastKeyValues(NDManager)}.
+     */
+    void update(NDList presents);
+
+    /**
+     * Число позиций, уже находящихся в кэше.
+     */
+    int length();
+
+    /**
+     * Откатывает кэш до первых length позиций, например после отклонённых спекулятивных токенов.
+     */
+    void truncate(int length);
+
+    /**
+     * Копирует позиции [from, to) в массив с раскладкой [position][layer][key|value][head][headDim].
+     * Раскладка не зависит от реализации кэша, а позиции в ней идут подряд, поэтому такие
+     * фрагменты легко резать и склеивать (см. {@link PrefixCache}).
+     */
+    float[] readPositions(int from, int to);
+
+    /**
+     * Дописывает в конец кэша count позиций в раскладке {@link #readPositions(int, int)}.
+     */
+    void appendPositions(float[] data, int count);
+
+    /**
+     * Объём native-памяти, занятой кэшем, байт (см. {@link NativeMemoryStats}).
+     */
+    long sizeInBytes();
+
+    @Override
+    void close();
+}
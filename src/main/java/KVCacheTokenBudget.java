@@ -0,0 +1,171 @@
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+
+/**
+ * Ограничение суммарной длины KV-кэшей модели в позициях (токенах): допуск новых токенов,
+ * а не пул памяти.
+ * <p>
+ * Бюджет задаётся в байтах и переводится в число позиций по размеру одной позиции всех слоёв.
+ * Каждая последовательность резервирует позиции перед тем, как кэш вырастет, и возвращает их после
+ * truncate или закрытия; если бюджет исчерпан, шаг завершается IllegalStateException, и кэш остаётся
+ * прежним. Так число одновременно обрабатываемых токенов всех диалогов ограничено заранее.
+ * <p>
+ * Это учёт, а не страничное хранение: ключи и значения лежат в обычных тензорах ONNX Runtime
+ * (см. {@link OrtKVCache}), которые растут вместе с последовательностью и выделяются самим ONNX Runtime.
+ * Блоков фиксированного размера, их переиспользования и заранее выделенного пула нет, поэтому реальный
+ * расход native-памяти (копии при росте, фрагментация аллокатора) бюджетом не ограничивается –
+ * ограничивается только логический объём кэшей. Страничное хранение здесь невозможно: ONNX Runtime
+ * принимает past_key_values лишь непрерывными тензорами, а сборка их из блоков на каждом шаге стоила бы
+ * копии всего кэша через JVM.
+ */
+public class KVCacheTokenBudget {
+
+    private final int numLayers;
+    private final int numHeads;
+    private final int headDim;
+    // Байт на одну позицию: [layer][key|value][head][headDim]
+    private final long positionBytes;
+    private final long maxTokens;
+    private long usedTokens;
+
+    /**
+     * @param numLayers         число слоёв декодера.
+     * @param numHeads          число key/value голов внимания.
+     * @param headDim           размерность одной головы.
+     * @param memoryBudgetBytes логический объём всех кэшей в байтах; переводится в число позиций.
+     */
+    public KVCacheTokenBudget(int numLayers, int numHeads, int headDim, long memoryBudgetBytes) {
+        this.numLayers = numLayers;
+        this.numHeads = numHeads;
+        this.headDim = headDim;
+        this.positionBytes = (long) numLayers * 2 * numHeads * headDim * Float.BYTES;
+        this.maxTokens = memoryBudgetBytes / positionBytes;
+        if (maxTokens == 0) {
+            throw new IllegalArgumentException("Бюджет " + memoryBudgetBytes
+                    + " байт меньше одной позиции (" + positionBytes + " байт)");
+        }
+    }
+
+    /**
+     * Создаёт пустой кэш новой последовательности, растущий в пределах бюджета.
+     * Кэш нужно закрыть после генерации, чтобы вернуть его позиции в бюджет.
+     *
+     * @param parentManager менеджер, от которого кэш создаёт под-менеджер для своих тензоров.
+     */
+    public KVCache newSequence(NDManager parentManager) {
+        return new BudgetedKVCache(new OrtKVCache(parentManager, numLayers, numHeads, headDim));
+    }
+
+    public long getMaxTokens() {
+        return maxTokens;
+    }
+
+    public synchronized long getFreeTokens() {
+        return maxTokens - usedTokens;
+    }
+
+    /**
+     * Логический объём кэшей, соответствующий бюджету, байт.
+     */
+    public long getCapacityBytes() {
+        return maxTokens * positionBytes;
+    }
+
+    /**
+     * Логический объём зарезервированных позиций, байт; фактический расход native-памяти может быть больше.
+     */
+    public synchronized long getUsedBytes() {
+        return usedTokens * positionBytes;
+    }
+
+    private synchronized void reserve(int tokens) {
+        if (usedTokens + tokens > maxTokens) {
+            throw new IllegalStateException("Исчерпан бюджет KV-кэша: занято "
+                    + usedTokens + " из " + maxTokens + " позиций");
+        }
+        usedTokens += tokens;
+    }
+
+    private synchronized void release(int tokens) {
+        usedTokens -= tokens;
+    }
+
+    /**
+     * KV-кэш одной последовательности: данные в {@link OrtKVCache}, длина учтена в общем бюджете.
+     */
+    private class BudgetedKVCache implements KVCache {
+
+        private final KVCache data;
+        private int reserved;
+
+        BudgetedKVCache(KVCache data) {
+            this.data = data;
+        }
+
+        /**
+         * Приводит резерв к длине length. Резерв берётся до записи новых позиций,
+         * так что при исчерпании бюджета кэш остаётся в прежнем состоянии.
+         */
+        private void resize(int length) {
+            if (length > reserved) {
+                reserve(length - reserved);
+            } else if (length < reserved) {
+                release(reserved - length);
+            }
+            reserved = length;
+        }
+
+        @Override
+        public NDList pastKeyValues(NDManager manager) {
+            return data.pastKeyValues(manager);
+        }
+
+        @Override
+        public void update(NDList presents) {
+            if (presents.size() != numLayers * 2) {
+                throw new IllegalArgumentException("Ожидалось " + numLayers * 2
+                        + " тензоров present, получено " + presents.size());
+            }
+            resize((int) presents.get(0).getShape().get(2));
+            data.update(presents);
+        }
+
+        @Override
+        public void truncate(int newLength) {
+            if (newLength >= data.length()) {
+                return;
+            }
+            data.truncate(newLength);
+            // Позиции за новой границей сразу возвращаются в бюджет
+            resize(newLength);
+        }
+
+        @Override
+        public float[] readPositions(int from, int to) {
+            return data.readPositions(from, to);
+        }
+
+        @Override
+        public void appendPositions(float[] positions, int count) {
+            resize(data.length() + count);
+            data.appendPositions(positions, count);
+        }
+
+        @Override
+        public int length() {
+            return data.length();
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return data.sizeInBytes();
+        }
+
+        @Override
+        public void close() {
+            data.close();
+            release(reserved);
+            reserved = 0;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.djl.translate.TranslateException;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.chat.response.ChatResponse;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Общий интерфейс локальных чат-моделей проекта (GPT2, Llama, SmolLM2),
+ * позволяющий выбирать модель по имени в {@link ModelRegistry}.
+ */
+public interface LocalChatModel extends AutoCloseable {
+
+    /**
+     * Отвечает на последнюю реплику истории.
+     *
+     * @param onText получатель фрагментов ответа по мере генерации (может быть null).
+     */
+    ChatResponse chat(List<ChatMessage> history, Consumer<String> onText) throws TranslateException;
+
+    /**
+     * Генерирует до maxNewTokens токенов продолжения prompt-а без шаблона chat.
+     *
+     * @return prompt вместе с продолжением.
+     */
+    String generate(String prompt, int maxNewTokens, TokenSampler sampler) throws TranslateException;
+
+    HuggingFaceTokenizer getTokenizer();
+
+    void warmup(int iterations) throws TranslateException;
+
+    /**
+     * Телеметрия генерации модели (TTFT, prefill, задержки декодирования, причины остановки).
+     */
+    GenerationTelemetry getTelemetry();
+
+    void setTelemetry(GenerationTelemetry telemetry);
+
+    @Override
+    void close();
+}
@@ -1,26 +1,49 @@
 import ai.djl.huggingface.tokenizers.Encoding;
 import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
-import ai.djl.inference.Predictor;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
 import ai.djl.repository.zoo.Criteria;
 import ai.djl.repository.zoo.ZooModel;
 import ai.djl.translate.Batchifier;
 import ai.djl.translate.TranslateException;
 import ai.djl.translate.Translator;
 import ai.djl.translate.TranslatorContext;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LocalONNXEmbeddingModel {
 
     private final ZooModel<String, float[]> model;
-    private final Predictor<String, float[]> predictor;
+    // Пул предикторов: эмбеддинги можно считать из нескольких потоков одновременно
+    private final PredictorPool<String, float[]> predictors;
+    // Пакетные предикторы embedAll поверх той же сессии ONNX Runtime
+    private final PredictorPool<List<Encoding>, List<float[]>> batchPredictors;
+    private final HuggingFaceTokenizer tokenizer;
+    private final BatchONNXTranslator batchTranslator;
+    // Число текстов в одном пакетном проходе embedAll
+    private volatile int batchSize = defaultBatchSize();
+    // Нормализовать ли эмбеддинги до единичной длины (модуль Normalize в modules.json)
+    private final boolean normalize;
+    // Идентификатор модели для ключей кэша эмбеддингов
+    private final String modelId;
+    // Кэш эмбеддингов; null – каждый текст считается моделью
+    private volatile EmbeddingCache cache;
 
     /**
      * Конструктор принимает путь к директории, где лежит ONNX-модель и файлы токенизатора.
@@ -30,44 +53,284 @@ public class LocalONNXEmbeddingModel {
      * @throws Exception если происходит ошибка загрузки модели.
      */
     public LocalONNXEmbeddingModel(String modelDir) throws Exception {
+        this(modelDir, PredictorPool.defaultSize());
+    }
+
+    /**
+     * Конструктор с явным размером пула предикторов.
+     *
+     * @param modelDir абсолютный путь к директории с моделью и токенизатором.
+     * @param poolSize максимальное число одновременных запросов к модели.
+     */
+    public LocalONNXEmbeddingModel(String modelDir, int poolSize) throws Exception {
         String localModelUrl = "file://" + modelDir;
-        Translator<String, float[]> translator = new ONNXTranslator(modelDir);
-        Criteria<String, float[]> criteria = Criteria.builder()
+        // Обработка как в sentence-transformers: длина входа из sentence_bert_config.json,
+        // после усреднения – нормализация, если она есть в конвейере modules.json
+        int maxSeqLength = maxSeqLength(Paths.get(modelDir, "sentence_bert_config.json"));
+        tokenizer = maxSeqLength > 0
+                ? HuggingFaceTokenizer.builder().optTokenizerPath(Paths.get(modelDir)).optMaxLength(maxSeqLength).build()
+                : HuggingFaceTokenizer.newInstance(Paths.get(modelDir));
+        normalize = hasModule(Paths.get(modelDir, "modules.json"), "sentence_transformers.models.Normalize");
+        Translator<String, float[]> translator = new ONNXTranslator(tokenizer, normalize);
+        Criteria.Builder<String, float[]> builder = Criteria.builder()
                 .setTypes(String.class, float[].class)
                 .optEngine("OnnxRuntime")
                 .optModelUrls(localModelUrl)
-                .optModelName("model.onnx")  // Проверяем, что именно этот файл присутствует
-                .optTranslator(translator)
+                // Потоки ONNX Runtime: poolSize одновременных запросов по intraOp потоков занимают все ядра
+                .optOption("interOpNumThreads", "1")
+                .optOption("intraOpNumThreads", String.valueOf(PredictorPool.intraOpThreads(poolSize)))
+                .optTranslator(translator);
+        // Файл модели: сохранённый оптимизированный граф model.onnx (создаётся при первом запуске)
+        Criteria<String, float[]> criteria = OptimizedGraphCache.apply(builder, modelDir, "model.onnx")
                 .build();
         model = criteria.loadModel();
-        predictor = model.newPredictor();
+        predictors = new PredictorPool<>(model, poolSize);
+        batchTranslator = new BatchONNXTranslator(normalize);
+        batchPredictors = new PredictorPool<>(model, batchTranslator, poolSize);
+        modelId = modelId(Paths.get(modelDir, "model.onnx")) + ":" + tokenizer.getMaxLength()
+                + (normalize ? ":mean-l2" : ":mean");
+    }
+
+    /**
+     * Идентификатор модели: имя директории, размер и время изменения файла модели. Заменённая модель
+     * получает новый идентификатор, и старые эмбеддинги в кэше перестают находиться.
+     */
+    private static String modelId(Path modelFile) throws IOException {
+        return modelFile.getParent().getFileName() + "/" + modelFile.getFileName()
+                + ":" + Files.size(modelFile) + ":" + Files.getLastModifiedTime(modelFile).toMillis();
+    }
+
+    /**
+     * max_seq_length из sentence_bert_config.json; 0, если файла или параметра нет.
+     */
+    private static int maxSeqLength(Path configFile) throws IOException {
+        if (!Files.exists(configFile)) {
+            return 0;
+        }
+        try (Reader reader = Files.newBufferedReader(configFile)) {
+            JsonObject config = JsonParser.parseReader(reader).getAsJsonObject();
+            return config.has("max_seq_length") && !config.get("max_seq_length").isJsonNull()
+                    ? config.get("max_seq_length").getAsInt() : 0;
+        }
+    }
+
+    /**
+     * Есть ли в конвейере sentence-transformers (modules.json) модуль заданного типа.
+     */
+    private static boolean hasModule(Path modulesFile, String type) throws IOException {
+        if (!Files.exists(modulesFile)) {
+            return false;
+        }
+        try (Reader reader = Files.newBufferedReader(modulesFile)) {
+            for (JsonElement module : JsonParser.parseReader(reader).getAsJsonArray()) {
+                JsonElement moduleType = module.getAsJsonObject().get("type");
+                if (moduleType != null && type.equals(moduleType.getAsString())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Эмбеддинги имеют единичную длину, и косинусная близость между ними равна скалярному произведению.
+     */
+    public boolean isNormalized() {
+        return normalize;
+    }
+
+    public String getModelId() {
+        return modelId;
+    }
+
+    /**
+     * Подключает кэш эмбеддингов: {@link #embed(String)} и {@link #embedAll(List)} прогоняют через модель
+     * только тексты, которых нет в кэше. null отключает кэш.
+     */
+    public void setCache(EmbeddingCache cache) {
+        this.cache = cache;
+    }
+
+    public EmbeddingCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Размер пакета по умолчанию: по два текста на ядро, чтобы матричные операции одного прохода
+     * загружали все intra-op потоки, но не больше 32 – дальше выигрыш почти не растёт,
+     * а память под активации растёт линейно.
+     */
+    public static int defaultBatchSize() {
+        return Math.max(8, Math.min(32, 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Задаёт число текстов в одном пакетном проходе {@link #embedAll(List)}; 1 – по одному тексту.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Размер пакета должен быть не меньше 1: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Число предикторов пакетного пула – столько вызовов embedAll модель обслуживает одновременно.
+     */
+    public int getPoolSize() {
+        return batchPredictors.getSize();
+    }
+
+    /**
+     * Доля позиций-дополнений среди всех позиций, прошедших через модель в пакетах:
+     * показывает, сколько вычислений тратится впустую на выравнивание длин.
+     */
+    public double getPaddingRatio() {
+        long total = batchTranslator.totalPositions.get();
+        return total == 0 ? 0 : (double) (total - batchTranslator.tokenPositions.get()) / total;
     }
 
     public Embedding embed(String text) {
-        float[] vector;
+        EmbeddingCache cache = this.cache;
+        float[] vector = cache == null ? null : cache.get(modelId, text);
+        if (vector != null) {
+            return new Embedding(vector);
+        }
         try {
-            vector = predictor.predict(text);
+            vector = predictors.predict(text);
         } catch (TranslateException e) {
             throw new RuntimeException("Ошибка при предсказании эмбеддинга", e);
         }
+        if (cache != null) {
+            cache.put(modelId, text, vector);
+            cache.commit();
+        }
         return new Embedding(vector);
     }
 
+    /**
+     * Прогрев модели несколькими синтетическими запросами до первого настоящего.
+     *
+     * @param iterations число прогонов; 0 – без прогрева.
+     */
+    public void warmup(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            embed("warmup query " + i);
+        }
+    }
+
+    /**
+     * Эмбеддинги фрагментов пакетами по {@link #getBatchSize()} текстов.
+     * <p>
+     * Тексты сортируются по длине в токенах, и в один пакет попадают соседние по длине: каждый пакет
+     * дополняется только до своего самого длинного текста, поэтому на дополнение почти не тратится
+     * вычислений. Результат возвращается в исходном порядке фрагментов.
+     * <p>
+     * Если подключён кэш, через модель проходят только фрагменты, которых в нём нет.
+     */
     public List<Embedding> embedAll(List<TextSegment> segments) {
-        List<Embedding> embeddings = new ArrayList<>();
-        for (TextSegment segment : segments) {
-            embeddings.add(embed(segment.text()));
+        EmbeddingCache cache = this.cache;
+        Embedding[] embeddings = new Embedding[segments.size()];
+        // Индексы фрагментов, которые нужно посчитать моделью
+        List<Integer> pending = new ArrayList<>(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            float[] vector = cache == null ? null : cache.get(modelId, segments.get(i).text());
+            if (vector != null) {
+                embeddings[i] = new Embedding(vector);
+            } else {
+                pending.add(i);
+            }
         }
-        return embeddings;
+
+        int count = pending.size();
+        Encoding[] encodings = new Encoding[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            encodings[i] = tokenizer.encode(segments.get(pending.get(i)).text());
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> encodings[i].getIds().length));
+
+        int size = batchSize;
+        for (int start = 0; start < count; start += size) {
+            int end = Math.min(count, start + size);
+            List<Encoding> batch = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                batch.add(encodings[order[i]]);
+            }
+            List<float[]> vectors;
+            try {
+                vectors = batchPredictors.predict(batch);
+            } catch (TranslateException e) {
+                throw new RuntimeException("Ошибка при предсказании эмбеддингов", e);
+            }
+            for (int i = start; i < end; i++) {
+                int index = pending.get(order[i]);
+                float[] vector = vectors.get(i - start);
+                if (cache != null) {
+                    cache.put(modelId, segments.get(index).text(), vector);
+                }
+                embeddings[index] = new Embedding(vector);
+            }
+            if (cache != null) {
+                cache.commit();
+            }
+        }
+        return new ArrayList<>(Arrays.asList(embeddings));
     }
 
-    public void close() throws Exception {
-        if (predictor != null) {
-            predictor.close();
+    public void close() {
+        if (batchPredictors != null) {
+            batchPredictors.close();
+        }
+        if (predictors != null) {
+            predictors.close();
         }
         if (model != null) {
             model.close();
         }
+        tokenizer.close();
+    }
+
+    /**
+     * Эмбеддинг текста b пакета из скрытых состояний [batch, length, hidden]: среднее по позициям
+     * с единичной маской внимания (позиции-дополнения не учитываются) и, если normalize,
+     * деление на L2-норму.
+     */
+    static float[] pool(float[] states, long[] mask, int b, int length, int hidden, boolean normalize) {
+        float[] vector = new float[hidden];
+        int tokens = 0;
+        for (int t = 0; t < length; t++) {
+            if (mask[b * length + t] == 0) {
+                continue;
+            }
+            int offset = (b * length + t) * hidden;
+            for (int h = 0; h < hidden; h++) {
+                vector[h] += states[offset + h];
+            }
+            tokens++;
+        }
+        if (tokens > 0) {
+            for (int h = 0; h < hidden; h++) {
+                vector[h] /= tokens;
+            }
+        }
+        if (normalize) {
+            double norm = 0;
+            for (float v : vector) {
+                norm += v * v;
+            }
+            // Как в sentence-transformers: норма ограничена снизу, чтобы нулевой вектор не дал NaN
+            float scale = (float) (1 / Math.max(Math.sqrt(norm), 1e-12));
+            for (int h = 0; h < hidden; h++) {
+                vector[h] *= scale;
+            }
+        }
+        return vector;
     }
 
     /**
@@ -76,11 +339,16 @@ public class LocalONNXEmbeddingModel {
      * а затем выполняет pooling по токенам для получения фиксированного вектора.
      */
     private static class ONNXTranslator implements Translator<String, float[]> {
+
+        // Ключ маски внимания между processInput и processOutput
+        private static final String MASK_KEY = "attentionMask";
+
         private final HuggingFaceTokenizer tokenizer;
+        private final boolean normalize;
 
-        public ONNXTranslator(String tokenizerDir) throws Exception {
-            // Инициализируем токенизатор из указанной директории
-            this.tokenizer = HuggingFaceTokenizer.newInstance(Paths.get(tokenizerDir));
+        public ONNXTranslator(HuggingFaceTokenizer tokenizer, boolean normalize) {
+            this.tokenizer = tokenizer;
+            this.normalize = normalize;
         }
 
         @Override
@@ -102,6 +370,7 @@ public class LocalONNXEmbeddingModel {
             NDArray idsArray = manager.create(tokenIds);
             NDArray maskArray = manager.create(attentionMask);
             NDArray tokenTypeArray = manager.create(tokenTypeIds);
+            ctx.setAttachment(MASK_KEY, attentionMask);
 
             // Порядок входов: [input_ids, attention_mask, token_type_ids]
             return new NDList(idsArray, maskArray, tokenTypeArray);
@@ -110,15 +379,12 @@ public class LocalONNXEmbeddingModel {
         @Override
         public float[] processOutput(TranslatorContext ctx, NDList list) {
             NDArray output = list.singletonOrThrow();
-            // Если выход имеет форму [batch, seq_length, hidden_dim], усредняем по оси токенов
-            if (output.getShape().dimension() == 3) {
-                output = output.mean(new int[]{1}); // усредняем по оси seq_length
-                output = output.squeeze(0);           // удаляем размер батча, если он равен 1
-            } else if (output.getShape().dimension() == 2) {
-                // Если выхода [seq_length, hidden_dim], усредняем по оси 0
-                output = output.mean(new int[]{0});
-            }
-            return output.toFloatArray();
+            long[] mask = (long[]) ctx.getAttachment(MASK_KEY);
+            // Выход [1, seq_length, hidden_dim] или, после снятия измерения пакета, [seq_length, hidden_dim]
+            Shape shape = output.getShape();
+            int length = (int) shape.get(shape.dimension() - 2);
+            int hidden = (int) shape.get(shape.dimension() - 1);
+            return pool(output.toFloatArray(), mask, 0, length, hidden, normalize);
         }
 
         @Override
@@ -126,4 +392,78 @@ public class LocalONNXEmbeddingModel {
             return Batchifier.STACK;
         }
     }
+
+    /**
+     * Пакетный переводчик: входы нескольких текстов дополняются до самого длинного в пакете,
+     * а эмбеддинг каждого текста считается {@link #pool} только по его настоящим токенам,
+     * так что результат совпадает с эмбеддингом текста по отдельности.
+     */
+    private static class BatchONNXTranslator implements Translator<List<Encoding>, List<float[]>> {
+
+        // Ключ маски внимания пакета [batch * maxLength] между processInput и processOutput
+        private static final String MASK_KEY = "attentionMask";
+
+        // Позиции с настоящими токенами и все позиции пакетов, включая дополнение
+        private final AtomicLong tokenPositions = new AtomicLong();
+        private final AtomicLong totalPositions = new AtomicLong();
+        private final boolean normalize;
+
+        BatchONNXTranslator(boolean normalize) {
+            this.normalize = normalize;
+        }
+
+        @Override
+        public NDList processInput(TranslatorContext ctx, List<Encoding> batch) {
+            NDManager manager = ctx.getNDManager();
+            int maxLength = 0;
+            for (Encoding encoding : batch) {
+                maxLength = Math.max(maxLength, encoding.getIds().length);
+            }
+            // Дополнение нулями: позиции с нулевой маской не влияют на настоящие токены
+            long[] ids = new long[batch.size() * maxLength];
+            long[] mask = new long[batch.size() * maxLength];
+            long[] typeIds = new long[batch.size() * maxLength];
+            int tokens = 0;
+            for (int b = 0; b < batch.size(); b++) {
+                Encoding encoding = batch.get(b);
+                long[] encodingIds = encoding.getIds();
+                long[] encodingMask = encoding.getAttentionMask();
+                long[] encodingTypes = encoding.getTypeIds();
+                System.arraycopy(encodingIds, 0, ids, b * maxLength, encodingIds.length);
+                System.arraycopy(encodingMask, 0, mask, b * maxLength, encodingMask.length);
+                if (encodingTypes != null && encodingTypes.length == encodingIds.length) {
+                    System.arraycopy(encodingTypes, 0, typeIds, b * maxLength, encodingTypes.length);
+                }
+                tokens += encodingIds.length;
+            }
+            tokenPositions.addAndGet(tokens);
+            totalPositions.addAndGet((long) batch.size() * maxLength);
+            ctx.setAttachment(MASK_KEY, mask);
+
+            Shape shape = new Shape(batch.size(), maxLength);
+            // Порядок входов: [input_ids, attention_mask, token_type_ids]
+            return new NDList(manager.create(ids, shape), manager.create(mask, shape), manager.create(typeIds, shape));
+        }
+
+        @Override
+        public List<float[]> processOutput(TranslatorContext ctx, NDList list) {
+            NDArray output = list.singletonOrThrow();
+            long[] mask = (long[]) ctx.getAttachment(MASK_KEY);
+            // Выход [batch, maxLength, hidden]
+            int batch = (int) output.getShape().get(0);
+            int maxLength = (int) output.getShape().get(1);
+            int hidden = (int) output.getShape().get(2);
+            float[] states = output.toFloatArray();
+            List<float[]> vectors = new ArrayList<>(batch);
+            for (int b = 0; b < batch; b++) {
+                vectors.add(pool(states, mask, b, maxLength, hidden, normalize));
+            }
+            return vectors;
+        }
+
+        @Override
+        public Batchifier getBatchifier() {
+            return null;
+        }
+    }
 }
@@ -1,12 +1,9 @@
-import ai.djl.Model;
 import ai.djl.huggingface.tokenizers.Encoding;
 import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
 import ai.djl.inference.Predictor;
-import ai.djl.metric.Metrics;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
-import ai.djl.nn.Block;
 import ai.djl.repository.zoo.Criteria;
 import ai.djl.repository.zoo.ZooModel;
 import ai.djl.translate.Batchifier;
@@ -21,16 +18,31 @@ import dev.langchain4j.model.chat.response.ChatResponse;
 
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-public class LocalONNXGPT2Model {
+public class LocalONNXGPT2Model implements LocalChatModel {
 
     // Для GPT‑2 обычно используется один и тот же токен для завершения генерации.
     // В оригинальной GPT‑2 eos_token_id = 50256.
     private static final long BOS_ID = 50256;
     private static final long EOS_ID = 50256;
+    // Параметры сэмплирования по умолчанию для generate/chat
+    private SamplingParams samplingParams = SamplingParams.topP(0.2f, 0.9f);
+    // Синтетический запрос для прогрева: короткий prefill и несколько шагов декодирования
+    private static final String WARMUP_PROMPT = "User: Hello\nAssistant:";
+    private static final int WARMUP_TOKENS = 8;
+    // Стоп-последовательности chat: модель не должна дописывать реплики за пользователя
+    private static final List<String> CHAT_STOP_SEQUENCES = List.of("\nUser:", "\nAssistant:");
+    // Остановки по стоп-последовательностям и сэкономленные ими токены
+    private final AtomicLong stopSequenceHits = new AtomicLong();
+    private final AtomicLong tokensSavedByStop = new AtomicLong();
+    // Телеметрия запросов: TTFT, prefill, задержки декодирования, токены в секунду, причины остановки
+    private volatile GenerationTelemetry telemetry = new GenerationTelemetry("gpt2");
     // Поля: модель, предиктор и наш Translator
-    private final ZooModel<List<Long>, List<Long>> model;
-    private final Predictor<List<Long>, List<Long>> predictor;
+    private final ZooModel<DecoderStep, List<Long>> model;
+    // Пул предикторов: каждый одновременный запрос получает собственный предиктор
+    private final PredictorPool<DecoderStep, List<Long>> predictors;
     private final GPT2ONNXTranslator translator;
 
     /**
@@ -41,28 +53,144 @@ public class LocalONNXGPT2Model {
      *                 и файлы токенизатора (например, tokenizer.json).
      */
     public LocalONNXGPT2Model(String modelDir) throws Exception {
+        this(modelDir, PredictorPool.defaultSize());
+    }
+
+    /**
+     * Конструктор с явным размером пула предикторов.
+     *
+     * @param modelDir Директория, где находятся ONNX‑модель и файлы токенизатора.
+     * @param poolSize максимальное число одновременных запросов к модели.
+     */
+    public LocalONNXGPT2Model(String modelDir, int poolSize) throws Exception {
         String localModelUrl = "file://" + modelDir;
         translator = new GPT2ONNXTranslator(modelDir);
-        Criteria<List<Long>, List<Long>> criteria = Criteria.builder()
-                .setTypes((Class<List<Long>>) (Class<?>) List.class, (Class<List<Long>>) (Class<?>) List.class)
+        Criteria.Builder<DecoderStep, List<Long>> builder = Criteria.builder()
+                .setTypes(DecoderStep.class, (Class<List<Long>>) (Class<?>) List.class)
                 .optEngine("OnnxRuntime")
                 .optModelUrls(localModelUrl)
-                // Имя файла модели – при необходимости замените на актуальное (например, "model_quantized.onnx")
-                .optModelName("model.onnx")
-                .optTranslator(translator)
+                // Потоки ONNX Runtime: poolSize одновременных запросов по intraOp потоков занимают все ядра
+                .optOption("interOpNumThreads", "1")
+                .optOption("intraOpNumThreads", String.valueOf(PredictorPool.intraOpThreads(poolSize)))
+                .optTranslator(translator);
+        // Файл модели: сохранённый оптимизированный граф model.onnx (создаётся при первом запуске)
+        Criteria<DecoderStep, List<Long>> criteria = OptimizedGraphCache.apply(builder, modelDir, "model.onnx")
                 .build();
 
         model = criteria.loadModel();
-        predictor = model.newPredictor();
+        predictors = new PredictorPool<>(model, poolSize);
+    }
+
+    public void setSamplingParams(SamplingParams samplingParams) {
+        this.samplingParams = samplingParams;
+    }
+
+    public SamplingParams getSamplingParams() {
+        return samplingParams;
+    }
+
+    @Override
+    public HuggingFaceTokenizer getTokenizer() {
+        return translator.tokenizer;
+    }
+
+    /**
+     * Сколько генераций остановлено стоп-последовательностью.
+     */
+    public long getStopSequenceHits() {
+        return stopSequenceHits.get();
+    }
+
+    /**
+     * Сколько токенов из лимита maxNewTokens не пришлось генерировать благодаря стоп-последовательностям.
+     */
+    public long getTokensSavedByStop() {
+        return tokensSavedByStop.get();
+    }
+
+    /**
+     * Счётчики native-памяти модели: открытые под-менеджеры шагов, KV-кэши и их объём.
+     * На длинной серии запросов число открытых под-менеджеров и кэшей в покое должно оставаться нулевым.
+     */
+    public NativeMemoryStats getMemoryStats() {
+        return translator.memoryStats;
+    }
+
+    @Override
+    public GenerationTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Заменяет телеметрию модели, например общей, которая переживает выгрузку модели из {@link ModelRegistry}.
+     */
+    @Override
+    public void setTelemetry(GenerationTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    /**
+     * Прогрев модели: несколько синтетических генераций (prefill и декодирование), чтобы ленивая
+     * инициализация ONNX Runtime (арена памяти, выбор ядер под формы входов) прошла до первого запроса.
+     *
+     * @param iterations число прогонов; 0 – без прогрева.
+     */
+    public void warmup(int iterations) throws TranslateException {
+        for (int i = 0; i < iterations; i++) {
+            // Прогревочные запросы не попадают в телеметрию, иначе они исказят перцентили
+            generate(WARMUP_PROMPT, WARMUP_TOKENS, new TokenSampler(SamplingParams.greedy(), i),
+                    Collections.emptyList(), null, false);
+        }
     }
 
     /**
      * Автогрессивная генерация текста. Метод принимает prompt и добавляет до maxNewTokens новых токенов.
+     * Используются параметры сэмплирования модели и случайный seed.
      */
     public String generate(String prompt, int maxNewTokens) throws TranslateException {
-        NDManager localManager = NDManager.newBaseManager();
-        SimpleTranslatorContext simpleCtx = new SimpleTranslatorContext(localManager);
+        return generate(prompt, maxNewTokens, new TokenSampler(samplingParams));
+    }
+
+    /**
+     * Автогрессивная генерация текста. Метод принимает prompt и добавляет до maxNewTokens новых токенов.
+     *
+     * @param sampler сэмплер запроса; для воспроизводимого результата создайте его с фиксированным seed.
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler) throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, null);
+    }
 
+    /**
+     * Автогрессивная генерация текста. Метод принимает prompt и добавляет до maxNewTokens новых токенов.
+     *
+     * @param sampler сэмплер запроса; для воспроизводимого результата создайте его с фиксированным seed.
+     * @param onText  получатель фрагментов текста по мере декодирования (может быть null);
+     *                фрагменты содержат только сгенерированный текст без prompt-а.
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler, Consumer<String> onText)
+            throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, Collections.emptyList(), onText);
+    }
+
+    /**
+     * Генерация с остановкой на стоп-последовательностях: текст сверяется со стоп-строками после каждого
+     * токена, и генерация прекращается на первом совпадении, даже если строка разрезана между токенами.
+     *
+     * @param stopSequences стоп-строки; сама стоп-строка в результат и в onText не попадает.
+     * @param onText        получатель фрагментов текста по мере декодирования (может быть null).
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler, List<String> stopSequences,
+                           Consumer<String> onText) throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, stopSequences, onText, true);
+    }
+
+    /**
+     * @param record записать ли статистику запроса в телеметрию модели.
+     */
+    private String generate(String prompt, int maxNewTokens, TokenSampler sampler, List<String> stopSequences,
+                            Consumer<String> onText, boolean record) throws TranslateException {
+        // TTFT отсчитывается от начала запроса, включая токенизацию и ожидание предиктора
+        GenerationStats stats = new GenerationStats();
         // Токенизируем prompt. Если он не содержит специального маркера,
         // добавляем BOS (в GPT‑2 часто используется тот же токен, что и EOS – 50256).
         List<Long> promptTokens = new ArrayList<>();
@@ -74,21 +202,57 @@ public class LocalONNXGPT2Model {
             promptTokens.add(id);
         }
         // Начинаем генерацию с токенов prompt-а.
+        stats.setPromptTokens(promptTokens.size());
         List<Long> generatedTokens = new ArrayList<>(promptTokens);
 
-        // Итеративно генерируем новые токены.
-        for (int i = 0; i < maxNewTokens; i++) {
-            List<Long> outputTokens = predictor.predict(generatedTokens);
-            long nextToken = outputTokens.get(0); // processOutput возвращает один токен для шага
-            if (nextToken == EOS_ID) {
-                break;
+        StopSequenceMatcher stopMatcher = new StopSequenceMatcher(stopSequences);
+        IncrementalDetokenizer detokenizer = onText == null && !stopMatcher.hasStopSequences()
+                ? null
+                : new IncrementalDetokenizer(translator.tokenizer, generatedTokens.size());
+
+        // Итеративно генерируем новые токены на предикторе из пула, занятом на всё время генерации.
+        Predictor<DecoderStep, List<Long>> predictor = predictors.acquire();
+        stats.startPrefill();
+        try {
+            for (int i = 0; i < maxNewTokens; i++) {
+                List<Long> outputTokens = predictor.predict(new DecoderStep(generatedTokens, null, sampler));
+                stats.onToken();
+                long nextToken = outputTokens.get(0); // processOutput возвращает один токен для шага
+                if (nextToken == EOS_ID) {
+                    break;
+                }
+                generatedTokens.add(nextToken);
+                if (detokenizer != null && stopMatcher.offer(detokenizer.next(generatedTokens), onText)) {
+                    break;
+                }
             }
-            generatedTokens.add(nextToken);
+        } finally {
+            predictors.release(predictor);
         }
 
-        long[] resultArray = generatedTokens.stream().mapToLong(Long::longValue).toArray();
-        String result = translator.tokenizer.decode(resultArray, true);
-        localManager.close();
+        if (detokenizer != null && !stopMatcher.isStopped()) {
+            stopMatcher.offer(detokenizer.flush(generatedTokens), onText);
+            stopMatcher.flush(onText);
+        }
+
+        int newTokens = generatedTokens.size() - promptTokens.size();
+        stats.finish(newTokens, stopMatcher.isStopped() ? GenerationStats.StopReason.STOP_SEQUENCE
+                : newTokens < maxNewTokens ? GenerationStats.StopReason.EOS : GenerationStats.StopReason.MAX_TOKENS);
+        if (record) {
+            telemetry.record(stats);
+        }
+
+        String result;
+        if (stopMatcher.isStopped()) {
+            // Токен со стоп-строкой мог содержать и полезный текст: результат собирается из выданного текста
+            stopSequenceHits.incrementAndGet();
+            tokensSavedByStop.addAndGet(maxNewTokens - newTokens);
+            long[] promptArray = promptTokens.stream().mapToLong(Long::longValue).toArray();
+            result = translator.tokenizer.decode(promptArray, true) + stopMatcher.getText();
+        } else {
+            long[] resultArray = generatedTokens.stream().mapToLong(Long::longValue).toArray();
+            result = translator.tokenizer.decode(resultArray, true);
+        }
         return result;
     }
 
@@ -100,6 +264,17 @@ public class LocalONNXGPT2Model {
     }
 
     public ChatResponse chat(List<ChatMessage> history) throws TranslateException {
+        return chat(history, null);
+    }
+
+    /**
+     * Потоковый вариант chat: фрагменты ответа передаются в onText по мере генерации,
+     * так что первый текст появляется сразу после prefill, а не после всех токенов.
+     *
+     * @param history история сообщений.
+     * @param onText  получатель фрагментов ответа (может быть null).
+     */
+    public ChatResponse chat(List<ChatMessage> history, Consumer<String> onText) throws TranslateException {
         // 1) Собираем текст промпта из истории
         StringBuilder promptBuilder = new StringBuilder();
         for (ChatMessage msg : history) {
@@ -123,16 +298,21 @@ public class LocalONNXGPT2Model {
         // Сигнализируем модели, что дальше пойдёт ответ ассистента
         promptBuilder.append("Assistant:");
 
-        // 2) Генерируем
-        String rawOutput = generate(promptBuilder.toString(), /*maxNewTokens*/50);
-
-        // 3) “Чистим” – вырезаем обратно промт (если модель его повторила),
-        //    оставляем только сгенерированный ассистентом текст
-        String answer = rawOutput
-                .substring(rawOutput.indexOf("Assistant:") + "Assistant:".length())
-                .trim();
+        // 2) Генерируем; ответ собирается из тех же фрагментов, что уходят в onText,
+        //    поэтому в него попадает только сгенерированный ассистентом текст без prompt-а
+        StringBuilder answerBuilder = new StringBuilder();
+        generate(promptBuilder.toString(), 50, new TokenSampler(samplingParams), CHAT_STOP_SEQUENCES, piece -> {
+            String text = answerBuilder.length() == 0 ? piece.stripLeading() : piece;
+            if (!text.isEmpty()) {
+                answerBuilder.append(text);
+                if (onText != null) {
+                    onText.accept(text);
+                }
+            }
+        });
+        String answer = answerBuilder.toString().trim();
 
-        // 4) Упаковываем в ChatResponse (пример, API билдера может отличаться)
+        // 3) Упаковываем в ChatResponse (пример, API билдера может отличаться)
         return ChatResponse.builder()
                 .aiMessage(new AiMessage(answer))
                 // если нужен full history, то можно передать и его:
@@ -143,9 +323,9 @@ public class LocalONNXGPT2Model {
     /**
      * Освобождает ресурсы модели и предиктора.
      */
-    public void close() throws Exception {
-        if (predictor != null) {
-            predictor.close();
+    public void close() {
+        if (predictors != null) {
+            predictors.close();
         }
         if (model != null) {
             model.close();
@@ -153,63 +333,18 @@ public class LocalONNXGPT2Model {
     }
 
     /**
-     * Простейшая реализация TranslatorContext.
+     * Реализация Translator для GPT‑2 в ONNX‑формате.
+     * Вход – шаг декодера {@link DecoderStep} (ONNX‑экспорт GPT‑2 без past_key_values, поэтому всегда
+     * вся последовательность), выход – список из одного следующего токена.
      */
-    private static class SimpleTranslatorContext implements TranslatorContext {
-
-        private final NDManager manager;
-
-        public SimpleTranslatorContext(NDManager manager) {
-            this.manager = manager;
-        }
-
-        @Override
-        public NDManager getNDManager() {
-            return manager;
-        }
-
-        @Override
-        public Model getModel() {
-            return null;
-        }
-
-        // Возвращаем тот же менеджер в качестве predictor manager
-        @Override
-        public NDManager getPredictorManager() {
-            return manager;
-        }
-
-        @Override
-        public Block getBlock() {
-            return null;
-        }
-
-        @Override
-        public Metrics getMetrics() {
-            return null;
-        }
-
-        @Override
-        public Object getAttachment(String key) {
-            return null;
-        }
-
-        @Override
-        public void setAttachment(String key, Object value) {
-            // Пустая реализация
-        }
+    public static class GPT2ONNXTranslator implements Translator<DecoderStep, List<Long>> {
 
-        @Override
-        public void close() {
-            // Закрываем ресурсы, если требуется
-        }
-    }
+        // Ключ, под которым шаг декодера сохраняется в контексте между processInput и processOutput
+        private static final String STEP_KEY = "decoderStep";
+        // Ключ под-менеджера шага: в нём создаются входы, а ONNX Runtime прикрепляет к нему выходы
+        private static final String SCOPE_KEY = "stepManager";
 
-    /**
-     * Реализация Translator для GPT‑2 в ONNX‑формате.
-     * Вход и выход – списки токенов (List<Long>).
-     */
-    public static class GPT2ONNXTranslator implements Translator<List<Long>, List<Long>> {
+        final NativeMemoryStats memoryStats = new NativeMemoryStats();
 
         public final HuggingFaceTokenizer tokenizer;
 
@@ -228,9 +363,12 @@ public class LocalONNXGPT2Model {
          * В ONNX‑версии ожидаются только два входа: input_ids и attention_mask.
          */
         @Override
-        public NDList processInput(TranslatorContext ctx, List<Long> inputTokens) {
-            NDManager manager = ctx.getNDManager();
-            long[] tokenIds = inputTokens.stream().mapToLong(Long::longValue).toArray();
+        public NDList processInput(TranslatorContext ctx, DecoderStep step) {
+            // Тензоры шага создаются в собственном под-менеджере, который закрывается в processOutput
+            NDManager manager = memoryStats.openStep(ctx.getNDManager());
+            ctx.setAttachment(SCOPE_KEY, manager);
+            ctx.setAttachment(STEP_KEY, step);
+            long[] tokenIds = step.getTokens().stream().mapToLong(Long::longValue).toArray();
             NDArray inputIds = manager.create(tokenIds).expandDims(0);
 
             // Формируем attention_mask: массив единиц того же размера, что и input_ids.
@@ -247,19 +385,23 @@ public class LocalONNXGPT2Model {
         }
 
         /**
-         * Извлекает логиты, принимает последний логит и сэмплирует следующий токен,
-         * используя nucleus (top‑p) сэмплирование с температурой 0.5 и top‑p 0.9.
+         * Извлекает логиты, принимает последний логит и сэмплирует следующий токен
+         * сэмплером запроса из {@link DecoderStep}.
          */
         @Override
         public List<Long> processOutput(TranslatorContext ctx, NDList list) {
-            // logits имеет форму [1, seq_length, vocab_size]
-            NDArray logits = list.get(0);
-            long seqLength = logits.getShape().get(1);
-            NDArray lastLogits = logits.get(0).get((int) (seqLength - 1));
-            int nextToken = sampleFromLogits(lastLogits, 0.2f, 0.9f);
-            List<Long> result = new ArrayList<>();
-            result.add((long) nextToken);
-            return result;
+            DecoderStep step = (DecoderStep) ctx.getAttachment(STEP_KEY);
+            try {
+                // logits имеет форму [1, seq_length, vocab_size]; в JVM читается только последняя позиция
+                NDArray logits = list.get(0);
+                int nextToken = step.getSampler().sampleLastPosition(logits);
+                List<Long> result = new ArrayList<>();
+                result.add((long) nextToken);
+                return result;
+            } finally {
+                // Логиты всей последовательности освобождаются сразу, а не при закрытии предиктора
+                memoryStats.closeStep((NDManager) ctx.getAttachment(SCOPE_KEY));
+            }
         }
 
         @Override
@@ -267,72 +409,5 @@ public class LocalONNXGPT2Model {
             return null;
         }
 
-        /**
-         * Реализует nucleus (top‑p) сэмплирование.
-         *
-         * @param logits      1D NDArray логитов для текущего шага.
-         * @param temperature Коэффициент температуры (чем ниже – тем детерминированнее).
-         * @param topP        Порог nucleus фильтрации (например, 0.9 для накопления 90% вероятности).
-         * @return Индекс выбранного токена.
-         */
-        private int sampleFromLogits(NDArray logits, float temperature, float topP) {
-            NDArray scaled = logits.div(temperature);
-            NDArray probs = scaled.softmax(0);
-            float[] probArray = probs.toFloatArray();
-            int vocabSize = probArray.length;
-
-            // Создаем массив индексов для сортировки по убыванию вероятности.
-            Integer[] indices = new Integer[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                indices[i] = i;
-            }
-            Arrays.sort(indices, new Comparator<Integer>() {
-                @Override
-                public int compare(Integer a, Integer b) {
-                    return Float.compare(probArray[b], probArray[a]);
-                }
-            });
-
-            // Определяем nucleus: собираем минимальное множество токенов, суммарная вероятность которых >= topP.
-            float cumulative = 0f;
-            boolean[] keep = new boolean[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                int idx = indices[i];
-                cumulative += probArray[idx];
-                keep[idx] = true;
-                if (cumulative >= topP) {
-                    break;
-                }
-            }
-
-            // Формируем фильтрованное распределение вероятностей.
-            float filteredSum = 0f;
-            float[] filteredProb = new float[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                if (keep[i]) {
-                    filteredProb[i] = probArray[i];
-                    filteredSum += filteredProb[i];
-                } else {
-                    filteredProb[i] = 0f;
-                }
-            }
-            if (filteredSum == 0f) {
-                // Если что-то пошло не так, используем исходное распределение.
-                filteredProb = probArray;
-                filteredSum = 0f;
-                for (float p : filteredProb) {
-                    filteredSum += p;
-                }
-            }
-            float rnd = new Random().nextFloat() * filteredSum;
-            float cumulativeProbability = 0f;
-            for (int i = 0; i < vocabSize; i++) {
-                cumulativeProbability += filteredProb[i];
-                if (cumulativeProbability >= rnd) {
-                    return i;
-                }
-            }
-            return vocabSize - 1;
-        }
     }
 }
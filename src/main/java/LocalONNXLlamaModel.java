@@ -1,13 +1,10 @@
-import ai.djl.Model;
 import ai.djl.huggingface.tokenizers.Encoding;
 import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
 import ai.djl.inference.Predictor;
-import ai.djl.metric.Metrics;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.Shape;
-import ai.djl.nn.Block;
 import ai.djl.repository.zoo.Criteria;
 import ai.djl.repository.zoo.ZooModel;
 import ai.djl.translate.Batchifier;
@@ -20,48 +17,210 @@ import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.model.chat.response.ChatResponse;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-public class LocalONNXLlamaModel {
+public class LocalONNXLlamaModel implements DecoderModel, LocalChatModel {
 
     // Пример специальных токенов: BOS и EOS (настройте по необходимости)
     private static final long BOS_ID = 1;
     private static final long EOS_ID = 2;
+    // Бюджет KV-кэшей по умолчанию: 512 МБ логического объёма (число позиций, а не предел native-памяти)
+    private static final long DEFAULT_KV_CACHE_BUDGET = 512L * 1024 * 1024;
+    // Параметры сэмплирования по умолчанию для generate/chat
+    private SamplingParams samplingParams = SamplingParams.topP(0.3f, 0.9f);
+    // Синтетический запрос для прогрева: короткий prefill и несколько шагов декодирования
+    private static final String WARMUP_PROMPT = "User: Hello\nAssistant:";
+    private static final int WARMUP_TOKENS = 8;
+    // Стоп-последовательности chat: модель не должна дописывать реплики за пользователя
+    private static final List<String> CHAT_STOP_SEQUENCES = List.of("\nUser:", "\nAssistant:");
+    // Остановки по стоп-последовательностям и сэкономленные ими токены
+    private final AtomicLong stopSequenceHits = new AtomicLong();
+    private final AtomicLong tokensSavedByStop = new AtomicLong();
+    // Телеметрия запросов: TTFT, prefill, задержки декодирования, токены в секунду, причины остановки
+    private volatile GenerationTelemetry telemetry = new GenerationTelemetry("llama");
     // Поля модели и предиктора
-    private final ZooModel<List<Long>, List<Long>> model;
-    private final Predictor<List<Long>, List<Long>> predictor;
+    private final ZooModel<DecoderStep, List<Long>> model;
+    // Пул предикторов: каждый одновременный запрос получает собственный предиктор
+    private final PredictorPool<DecoderStep, List<Long>> predictors;
     private final ONNXLlamaTranslator translator;
+    private final KVCacheTokenBudget kvCacheBudget;
+    // Инкрементальное декодирование через past_key_values; false – старый режим полного пересчёта
+    private boolean useKvCache = true;
+    // Кэш KV-состояний общих префиксов между запросами; null – каждый prompt считается с нуля
+    private PrefixCache prefixCache;
 
     /**
      * Конструктор. modelDir — директория, содержащая ONNX-модель и файлы токенизатора.
+     * Создаёт собственный пул KV-кэша с бюджетом по умолчанию.
      */
     public LocalONNXLlamaModel(String modelDir) throws Exception {
+        this(modelDir, null);
+    }
+
+    /**
+     * Конструктор с общим бюджетом KV-кэша, который может разделяться несколькими экземплярами модели.
+     *
+     * @param modelDir       директория, содержащая ONNX-модель, config.json и файлы токенизатора.
+     * @param kvCacheBudget  ограничение суммарной длины KV-кэшей; если null, создаётся бюджет по умолчанию.
+     */
+    public LocalONNXLlamaModel(String modelDir, KVCacheTokenBudget kvCacheBudget) throws Exception {
+        this(modelDir, kvCacheBudget, PredictorPool.defaultSize());
+    }
+
+    /**
+     * Конструктор с общим бюджетом KV-кэша и явным размером пула предикторов.
+     *
+     * @param modelDir       директория, содержащая ONNX-модель, config.json и файлы токенизатора.
+     * @param kvCacheBudget  ограничение суммарной длины KV-кэшей; если null, создаётся бюджет по умолчанию.
+     * @param poolSize       максимальное число одновременных запросов к модели.
+     */
+    public LocalONNXLlamaModel(String modelDir, KVCacheTokenBudget kvCacheBudget, int poolSize) throws Exception {
         String localModelUrl = "file://" + modelDir;
         translator = new ONNXLlamaTranslator(modelDir);
-        Criteria<List<Long>, List<Long>> criteria = Criteria.builder()
-                .setTypes((Class<List<Long>>) (Class<?>) List.class, (Class<List<Long>>) (Class<?>) List.class)
+        this.kvCacheBudget = kvCacheBudget != null
+                ? kvCacheBudget
+                : translator.newCacheBudget(DEFAULT_KV_CACHE_BUDGET);
+        Criteria.Builder<DecoderStep, List<Long>> builder = Criteria.builder()
+                .setTypes(DecoderStep.class, (Class<List<Long>>) (Class<?>) List.class)
                 .optEngine("OnnxRuntime")
                 .optModelUrls(localModelUrl)
-                .optModelName("model_quantized.onnx")
+                // Потоки ONNX Runtime: poolSize одновременных запросов по intraOp потоков занимают все ядра
+                .optOption("interOpNumThreads", "1")
+                .optOption("intraOpNumThreads", String.valueOf(PredictorPool.intraOpThreads(poolSize)))
                 // При необходимости укажите опцию для расширения ONNX:
                 // .optOption("customOpLibrary", "/path/to/onnxruntime_extensions.so")
-                .optTranslator(translator)
+                .optTranslator(translator);
+        // Файл модели: сохранённый оптимизированный граф model_quantized.onnx (создаётся при первом запуске)
+        Criteria<DecoderStep, List<Long>> criteria = OptimizedGraphCache.apply(builder, modelDir, "model_quantized.onnx")
                 .build();
 
         model = criteria.loadModel();
-        predictor = model.newPredictor();
+        predictors = new PredictorPool<>(model, poolSize);
     }
 
     /**
-     * Генерирует автогрессивно текст, начиная с начального запроса (prompt)
-     * с ограничением на количество генерируемых токенов (maxNewTokens).
+     * Включает или выключает KV-кэш. Без кэша каждый шаг заново прогоняет всю последовательность.
      */
-    public String generate(String prompt, int maxNewTokens) throws TranslateException {
-        NDManager localManager = NDManager.newBaseManager();
-        SimpleTranslatorContext simpleCtx = new SimpleTranslatorContext(localManager);
+    public void setUseKvCache(boolean useKvCache) {
+        this.useKvCache = useKvCache;
+    }
+
+    public boolean isUseKvCache() {
+        return useKvCache;
+    }
+
+    /**
+     * Подключает кэш префиксов: KV-состояние общего начала prompt-ов (шаблон, прошлые реплики)
+     * восстанавливается из кэша, и prefill считается только по новым токенам.
+     *
+     * @param prefixCache кэш этой модели или null, чтобы отключить.
+     */
+    public void setPrefixCache(PrefixCache prefixCache) {
+        this.prefixCache = prefixCache;
+    }
+
+    public PrefixCache getPrefixCache() {
+        return prefixCache;
+    }
+
+    public KVCacheTokenBudget getKvCacheBudget() {
+        return kvCacheBudget;
+    }
+
+    public void setSamplingParams(SamplingParams samplingParams) {
+        this.samplingParams = samplingParams;
+    }
+
+    public SamplingParams getSamplingParams() {
+        return samplingParams;
+    }
+
+    /**
+     * Сколько генераций остановлено стоп-последовательностью.
+     */
+    public long getStopSequenceHits() {
+        return stopSequenceHits.get();
+    }
+
+    /**
+     * Сколько токенов из лимита maxNewTokens не пришлось генерировать благодаря стоп-последовательностям.
+     */
+    public long getTokensSavedByStop() {
+        return tokensSavedByStop.get();
+    }
+
+    /**
+     * Счётчики native-памяти модели: открытые под-менеджеры шагов, KV-кэши и их объём.
+     * На длинной серии запросов число открытых под-менеджеров и кэшей в покое должно оставаться нулевым.
+     */
+    public NativeMemoryStats getMemoryStats() {
+        return translator.memoryStats;
+    }
+
+    @Override
+    public GenerationTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Заменяет телеметрию модели, например общей, которая переживает выгрузку модели из {@link ModelRegistry}.
+     */
+    @Override
+    public void setTelemetry(GenerationTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
 
-        // Токенизация prompt-а. Если строка не начинается с символа начала (<s>), добавляем BOS.
+    /**
+     * Прогрев модели: несколько синтетических генераций (prefill и декодирование), чтобы ленивая
+     * инициализация ONNX Runtime (арена памяти, выбор ядер под формы входов) прошла до первого запроса.
+     *
+     * @param iterations число прогонов; 0 – без прогрева.
+     */
+    public void warmup(int iterations) throws TranslateException {
+        for (int i = 0; i < iterations; i++) {
+            // Прогревочные запросы не попадают в телеметрию, иначе они исказят перцентили
+            generate(WARMUP_PROMPT, WARMUP_TOKENS, new TokenSampler(SamplingParams.greedy(), i),
+                    Collections.emptyList(), null, false);
+        }
+    }
+
+    @Override
+    public HuggingFaceTokenizer getTokenizer() {
+        return translator.tokenizer;
+    }
+
+    @Override
+    public long getEosId() {
+        return EOS_ID;
+    }
+
+    @Override
+    public int getVocabSize() {
+        return translator.vocabSize;
+    }
+
+    /**
+     * Новая последовательность в пределах бюджета KV-кэша модели.
+     */
+    @Override
+    public KVCache newKVCache() {
+        return translator.memoryStats.track(kvCacheBudget.newSequence(model.getNDManager()));
+    }
+
+    /**
+     * Токенизация prompt-а. Если строка не начинается с символа начала (<s>), добавляем BOS.
+     */
+    @Override
+    public List<Long> encodePrompt(String prompt) {
         List<Long> promptTokens = new ArrayList<>();
         if (!prompt.startsWith("<s>")) {
             promptTokens.add(BOS_ID);
@@ -70,25 +229,157 @@ public class LocalONNXLlamaModel {
         for (long id : encoding.getIds()) {
             promptTokens.add(id);
         }
+        return promptTokens;
+    }
+
+    /**
+     * Прямой проход с логитами всех позиций (для проверки спекулятивных токенов).
+     */
+    @Override
+    public float[] forward(List<Long> tokens, KVCache cache) throws TranslateException {
+        DecoderStep step = DecoderStep.capturing(tokens, cache);
+        predictors.predict(step);
+        return step.getLogits();
+    }
+
+    /**
+     * Генерирует автогрессивно текст, начиная с начального запроса (prompt)
+     * с ограничением на количество генерируемых токенов (maxNewTokens).
+     * Блоки KV-кэша последовательности возвращаются в пул по завершении генерации.
+     * Используются параметры сэмплирования модели и случайный seed.
+     */
+    public String generate(String prompt, int maxNewTokens) throws TranslateException {
+        return generate(prompt, maxNewTokens, new TokenSampler(samplingParams));
+    }
+
+    /**
+     * Генерирует автогрессивно текст, начиная с начального запроса (prompt)
+     * с ограничением на количество генерируемых токенов (maxNewTokens).
+     * Блоки KV-кэша последовательности возвращаются в пул по завершении генерации.
+     *
+     * @param sampler сэмплер запроса; для воспроизводимого результата создайте его с фиксированным seed.
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler) throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, null);
+    }
+
+    /**
+     * Генерирует автогрессивно текст, начиная с начального запроса (prompt)
+     * с ограничением на количество генерируемых токенов (maxNewTokens).
+     * Блоки KV-кэша последовательности возвращаются в пул по завершении генерации.
+     *
+     * @param sampler сэмплер запроса; для воспроизводимого результата создайте его с фиксированным seed.
+     * @param onText  получатель фрагментов текста по мере декодирования (может быть null);
+     *                фрагменты содержат только сгенерированный текст без prompt-а.
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler, Consumer<String> onText)
+            throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, Collections.emptyList(), onText);
+    }
+
+    /**
+     * Генерация с остановкой на стоп-последовательностях: текст сверяется со стоп-строками после каждого
+     * токена, и генерация прекращается на первом совпадении, даже если строка разрезана между токенами.
+     *
+     * @param stopSequences стоп-строки; сама стоп-строка в результат и в onText не попадает.
+     * @param onText        получатель фрагментов текста по мере декодирования (может быть null).
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler, List<String> stopSequences,
+                           Consumer<String> onText) throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, stopSequences, onText, true);
+    }
+
+    /**
+     * @param record записать ли статистику запроса в телеметрию модели.
+     */
+    private String generate(String prompt, int maxNewTokens, TokenSampler sampler, List<String> stopSequences,
+                            Consumer<String> onText, boolean record) throws TranslateException {
+        // TTFT отсчитывается от начала запроса, включая токенизацию и ожидание предиктора
+        GenerationStats stats = new GenerationStats();
+        List<Long> promptTokens = encodePrompt(prompt);
+        stats.setPromptTokens(promptTokens.size());
         List<Long> generatedTokens = new ArrayList<>(promptTokens);
 
+        StopSequenceMatcher stopMatcher = new StopSequenceMatcher(stopSequences);
+        IncrementalDetokenizer detokenizer = onText == null && !stopMatcher.hasStopSequences()
+                ? null
+                : new IncrementalDetokenizer(translator.tokenizer, generatedTokens.size());
+
         // Итеративная автогрессивная генерация токенов.
-        for (int i = 0; i < maxNewTokens; i++) {
-            List<Long> outputTokens = predictor.predict(generatedTokens);
-            long nextToken = outputTokens.get(0); // processOutput возвращает один токен для следующего шага
-            if (nextToken == EOS_ID) {
-                break;
+        // Предиктор из пула занят этим запросом на всё время генерации
+        Predictor<DecoderStep, List<Long>> predictor = predictors.acquire();
+        KVCache cache = useKvCache ? newKVCache() : null;
+        PrefixCache prefixes = cache == null ? null : prefixCache;
+        // Prefill включает восстановление кэша префиксов
+        stats.startPrefill();
+        try {
+            if (prefixes != null) {
+                prefixes.restore(generatedTokens, cache);
+            }
+            for (int i = 0; i < maxNewTokens; i++) {
+                List<Long> stepTokens = cache == null
+                        ? generatedTokens
+                        : generatedTokens.subList(cache.length(), generatedTokens.size());
+                List<Long> outputTokens = predictor.predict(new DecoderStep(stepTokens, cache, sampler));
+                stats.onToken();
+                long nextToken = outputTokens.get(0); // processOutput возвращает один токен для следующего шага
+                if (nextToken == EOS_ID) {
+                    break;
+                }
+                generatedTokens.add(nextToken);
+                if (detokenizer != null && stopMatcher.offer(detokenizer.next(generatedTokens), onText)) {
+                    break;
+                }
+            }
+            if (prefixes != null) {
+                // Следующий ход диалога начнётся с этого же текста
+                prefixes.insert(generatedTokens, cache);
+            }
+        } finally {
+            predictors.release(predictor);
+            if (cache != null) {
+                cache.close();
             }
-            generatedTokens.add(nextToken);
         }
 
-        long[] resultArray = generatedTokens.stream().mapToLong(Long::longValue).toArray();
-        String result = translator.tokenizer.decode(resultArray, true);
-        localManager.close();
+        if (detokenizer != null && !stopMatcher.isStopped()) {
+            stopMatcher.offer(detokenizer.flush(generatedTokens), onText);
+            stopMatcher.flush(onText);
+        }
+
+        int newTokens = generatedTokens.size() - promptTokens.size();
+        stats.finish(newTokens, stopMatcher.isStopped() ? GenerationStats.StopReason.STOP_SEQUENCE
+                : newTokens < maxNewTokens ? GenerationStats.StopReason.EOS : GenerationStats.StopReason.MAX_TOKENS);
+        if (record) {
+            telemetry.record(stats);
+        }
+
+        String result;
+        if (stopMatcher.isStopped()) {
+            // Токен со стоп-строкой мог содержать и полезный текст: результат собирается из выданного текста
+            stopSequenceHits.incrementAndGet();
+            tokensSavedByStop.addAndGet(maxNewTokens - newTokens);
+            long[] promptArray = promptTokens.stream().mapToLong(Long::longValue).toArray();
+            result = translator.tokenizer.decode(promptArray, true) + stopMatcher.getText();
+        } else {
+            long[] resultArray = generatedTokens.stream().mapToLong(Long::longValue).toArray();
+            result = translator.tokenizer.decode(resultArray, true);
+        }
         return result;
     }
 
     public ChatResponse chat(List<ChatMessage> history) throws TranslateException {
+        return chat(history, null);
+    }
+
+    /**
+     * Потоковый вариант chat: фрагменты ответа передаются в onText по мере генерации,
+     * так что первый текст появляется сразу после prefill, а не после всех токенов.
+     *
+     * @param history история сообщений.
+     * @param onText  получатель фрагментов ответа (может быть null).
+     */
+    public ChatResponse chat(List<ChatMessage> history, Consumer<String> onText) throws TranslateException {
         // 1) Собираем текст промпта из истории
         StringBuilder promptBuilder = new StringBuilder();
         for (ChatMessage msg : history) {
@@ -112,16 +403,21 @@ public class LocalONNXLlamaModel {
         // Сигнализируем модели, что дальше пойдёт ответ ассистента
         promptBuilder.append("Assistant:");
 
-        // 2) Генерируем
-        String rawOutput = generate(promptBuilder.toString(), /*maxNewTokens*/100);
-
-        // 3) “Чистим” – вырезаем обратно промт (если модель его повторила),
-        //    оставляем только сгенерированный ассистентом текст
-        String answer = rawOutput
-                .substring(rawOutput.indexOf("Assistant:") + "Assistant:".length())
-                .trim();
+        // 2) Генерируем; ответ собирается из тех же фрагментов, что уходят в onText,
+        //    поэтому в него попадает только сгенерированный ассистентом текст без prompt-а
+        StringBuilder answerBuilder = new StringBuilder();
+        generate(promptBuilder.toString(), 100, new TokenSampler(samplingParams), CHAT_STOP_SEQUENCES, piece -> {
+            String text = answerBuilder.length() == 0 ? piece.stripLeading() : piece;
+            if (!text.isEmpty()) {
+                answerBuilder.append(text);
+                if (onText != null) {
+                    onText.accept(text);
+                }
+            }
+        });
+        String answer = answerBuilder.toString().trim();
 
-        // 4) Упаковываем в ChatResponse (пример, API билдера может отличаться)
+        // 3) Упаковываем в ChatResponse (пример, API билдера может отличаться)
         return ChatResponse.builder()
                 .aiMessage(new AiMessage(answer))
                 // если нужен full history, то можно передать и его:
@@ -139,9 +435,9 @@ public class LocalONNXLlamaModel {
     /**
      * Освобождает ресурсы модели и предиктора.
      */
-    public void close() throws Exception {
-        if (predictor != null) {
-            predictor.close();
+    public void close() {
+        if (predictors != null) {
+            predictors.close();
         }
         if (model != null) {
             model.close();
@@ -149,97 +445,79 @@ public class LocalONNXLlamaModel {
     }
 
     /**
-     * Простейшая реализация TranslatorContext, удовлетворяющая контракту интерфейса.
+     * Реализация Translator для модели ONNX Llama.
+     * Вход — шаг декодера {@link DecoderStep}, выход — список из одного следующего токена.
      */
-    private static class SimpleTranslatorContext implements TranslatorContext {
-
-        private final NDManager manager;
-
-        public SimpleTranslatorContext(NDManager manager) {
-            this.manager = manager;
-        }
-
-        @Override
-        public NDManager getNDManager() {
-            return manager;
-        }
-
-        @Override
-        public Model getModel() {
-            return null;
-        }
+    public static class ONNXLlamaTranslator implements Translator<DecoderStep, List<Long>> {
 
-        // Возвращаем тот же NDManager в качестве менеджера предиктора
-        @Override
-        public NDManager getPredictorManager() {
-            return manager;
-        }
+        // Ключ, под которым шаг декодера сохраняется в контексте между processInput и processOutput
+        private static final String STEP_KEY = "decoderStep";
+        // Ключ под-менеджера шага: в нём создаются входы, а ONNX Runtime прикрепляет к нему выходы
+        private static final String SCOPE_KEY = "stepManager";
 
-        @Override
-        public Block getBlock() {
-            return null;
-        }
+        final NativeMemoryStats memoryStats = new NativeMemoryStats();
 
-        @Override
-        public Metrics getMetrics() {
-            return null;
-        }
-
-        @Override
-        public Object getAttachment(String key) {
-            return null;
-        }
+        public final HuggingFaceTokenizer tokenizer;
+        // Параметры модели читаются из config.json; значения по умолчанию – Llama-3.2-1B
+        private final int numLayers;
+        private final int numHeads;
+        private final int headDim;
+        private final int vocabSize;
 
-        @Override
-        public void setAttachment(String key, Object value) {
-            // Пустая реализация
+        /**
+         * Конструктор. tokenizerDir — путь к файлам токенизатора и config.json модели.
+         */
+        public ONNXLlamaTranslator(String tokenizerDir) throws Exception {
+            this.tokenizer = HuggingFaceTokenizer.newInstance(Paths.get(tokenizerDir));
+            JsonObject config = new JsonObject();
+            Path configFile = Paths.get(tokenizerDir, "config.json");
+            if (Files.exists(configFile)) {
+                try (Reader reader = Files.newBufferedReader(configFile)) {
+                    config = JsonParser.parseReader(reader).getAsJsonObject();
+                }
+            }
+            this.numLayers = intOrDefault(config, "num_hidden_layers", 16);
+            this.numHeads = intOrDefault(config, "num_key_value_heads", 8);
+            this.headDim = intOrDefault(config, "head_dim",
+                    intOrDefault(config, "hidden_size", 2048) / intOrDefault(config, "num_attention_heads", 32));
+            this.vocabSize = intOrDefault(config, "vocab_size", 128256);
         }
 
-        @Override
-        public void close() {
-            // Если необходимо, можно закрыть ресурсы
+        private static int intOrDefault(JsonObject config, String key, int defaultValue) {
+            return config.has(key) && !config.get(key).isJsonNull() ? config.get(key).getAsInt() : defaultValue;
         }
-    }
-
-    /**
-     * Реализация Translator для модели ONNX Llama.
-     * Вход и выход — списки токенов (List<Long>).
-     */
-    public static class ONNXLlamaTranslator implements Translator<List<Long>, List<Long>> {
-
-        public final HuggingFaceTokenizer tokenizer;
-        // Параметры модели (настроить согласно конфигурации модели)
-        private final int numLayers = 16;
-        private final long numHeads = 8;
-        private final long headDim = 64;
 
         /**
-         * Конструктор. tokenizerDir — путь к файлам токенизатора.
+         * Создаёт бюджет KV-кэша под размеры этой модели.
+         *
+         * @param memoryBudgetBytes логический объём всех кэшей в байтах.
          */
-        public ONNXLlamaTranslator(String tokenizerDir) throws Exception {
-            this.tokenizer = HuggingFaceTokenizer.newInstance(Paths.get(tokenizerDir));
+        public KVCacheTokenBudget newCacheBudget(long memoryBudgetBytes) {
+            return new KVCacheTokenBudget(numLayers, numHeads, headDim, memoryBudgetBytes);
         }
 
         /**
-         * Формирует NDList входов модели из списка токенов.
+         * Формирует NDList входов модели для шага декодера.
          */
         @Override
-        public NDList processInput(TranslatorContext ctx, List<Long> inputTokens) {
-            NDManager manager = ctx.getNDManager();
-            long[] tokenIds = inputTokens.stream().mapToLong(Long::longValue).toArray();
+        public NDList processInput(TranslatorContext ctx, DecoderStep step) {
+            // Тензоры шага создаются в собственном под-менеджере, который закрывается в processOutput
+            NDManager manager = memoryStats.openStep(ctx.getNDManager());
+            ctx.setAttachment(SCOPE_KEY, manager);
+            ctx.setAttachment(STEP_KEY, step);
+            int pastLength = step.getPastLength();
+            long[] tokenIds = step.getTokens().stream().mapToLong(Long::longValue).toArray();
             NDArray inputIds = manager.create(tokenIds).expandDims(0);
 
-            // attention_mask: единицы для каждого токена
-            long[] attentionMaskArr = new long[tokenIds.length];
-            for (int i = 0; i < tokenIds.length; i++) {
-                attentionMaskArr[i] = 1;
-            }
+            // attention_mask: единицы для каждого токена, включая закэшированные
+            long[] attentionMaskArr = new long[pastLength + tokenIds.length];
+            Arrays.fill(attentionMaskArr, 1);
             NDArray attentionMask = manager.create(attentionMaskArr).expandDims(0);
 
-            // position_ids: последовательность от 0 до (seq_length - 1)
+            // position_ids: продолжают нумерацию после кэша
             long[] positionIdsArr = new long[tokenIds.length];
             for (int i = 0; i < tokenIds.length; i++) {
-                positionIdsArr[i] = i;
+                positionIdsArr[i] = pastLength + i;
             }
             NDArray positionIds = manager.create(positionIdsArr).expandDims(0);
 
@@ -248,32 +526,47 @@ public class LocalONNXLlamaModel {
             ndList.add(attentionMask);    // attention_mask
             ndList.add(positionIds);      // position_ids
 
-            // Добавляем пустые past_key_values для каждого слоя (если модель их ожидает).
-            Shape emptyShape = new Shape(1, numHeads, 0, headDim);
-            for (int i = 0; i < numLayers; i++) {
-                NDArray pastKey = manager.create(new float[0]).reshape(emptyShape);
-                NDArray pastValue = manager.create(new float[0]).reshape(emptyShape);
-                ndList.add(pastKey);
-                ndList.add(pastValue);
+            // past_key_values для каждого слоя: из кэша или пустые в режиме полного пересчёта.
+            if (step.getCache() != null) {
+                ndList.addAll(step.getCache().pastKeyValues(manager));
+            } else {
+                Shape emptyShape = new Shape(1, numHeads, 0, headDim);
+                for (int i = 0; i < numLayers; i++) {
+                    NDArray pastKey = manager.create(new float[0]).reshape(emptyShape);
+                    NDArray pastValue = manager.create(new float[0]).reshape(emptyShape);
+                    ndList.add(pastKey);
+                    ndList.add(pastValue);
+                }
             }
             return ndList;
         }
 
         /**
-         * Извлекает логиты, берет последний логит и выполняет сэмплирование следующего токена,
-         * используя температуру и top‑p (nucleus) фильтрацию.
+         * Извлекает логиты, берет последний логит и выполняет сэмплирование следующего токена
+         * сэмплером запроса из {@link DecoderStep}. Выходы present.* дописываются в KV-кэш.
          */
         @Override
         public List<Long> processOutput(TranslatorContext ctx, NDList list) {
-            // logits имеет форму [1, seq_length, vocab_size]
-            NDArray logits = list.get(0);
-            long seqLength = logits.getShape().get(1);
-            NDArray lastLogits = logits.get(0).get((int) (seqLength - 1));
-            // Задаем температуру 0.5 и topP 0.9
-            int nextToken = sampleFromLogits(lastLogits, 0.3f, 0.9f);
-            List<Long> result = new ArrayList<>();
-            result.add((long) nextToken);
-            return result;
+            DecoderStep step = (DecoderStep) ctx.getAttachment(STEP_KEY);
+            try {
+                // present-ы переносятся в кэш до закрытия под-менеджера шага
+                if (step != null && step.getCache() != null) {
+                    step.getCache().update(list.subNDList(1));
+                }
+                // logits имеет форму [1, seq_length, vocab_size]; обычно в JVM читается только последняя позиция
+                NDArray logits = list.get(0);
+                if (step.isCaptureLogits()) {
+                    step.captureLogits(logits);
+                }
+                List<Long> result = new ArrayList<>();
+                if (step.getSampler() != null) {
+                    result.add((long) step.getSampler().sampleLastPosition(logits));
+                }
+                return result;
+            } finally {
+                // Логиты и прочие тензоры шага освобождаются сразу, а не при закрытии предиктора
+                memoryStats.closeStep((NDManager) ctx.getAttachment(SCOPE_KEY));
+            }
         }
 
         @Override
@@ -281,76 +574,5 @@ public class LocalONNXLlamaModel {
             return null;
         }
 
-        /**
-         * Реализует сэмплирование с nucleus (top‑p) фильтрацией.
-         *
-         * @param logits      логиты для текущего токена (1D-массив)
-         * @param temperature коэффициент температуры для масштабирования логитов
-         * @param topP        порог nucleus фильтрации (например, 0.9 для 90% вероятности)
-         * @return индекс выбранного токена
-         */
-        private int sampleFromLogits(NDArray logits, float temperature, float topP) {
-            // Масштабирование логитов: делим на температуру
-            NDArray scaled = logits.div(temperature);
-            NDArray probs = scaled.softmax(0);
-            float[] probArray = probs.toFloatArray();
-            int vocabSize = probArray.length;
-
-            // Создаем массив индексов
-            Integer[] indices = new Integer[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                indices[i] = i;
-            }
-            // Сортируем индексы по убыванию вероятностей
-            Arrays.sort(indices, new Comparator<Integer>() {
-                @Override
-                public int compare(Integer a, Integer b) {
-                    return Float.compare(probArray[b], probArray[a]);
-                }
-            });
-
-            // Определяем nucleus: минимальный набор токенов, суммарная вероятность которых >= topP
-            float cumulative = 0f;
-            boolean[] keep = new boolean[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                int idx = indices[i];
-                cumulative += probArray[idx];
-                keep[idx] = true;
-                if (cumulative >= topP) {
-                    break;
-                }
-            }
-
-            // Формируем новое распределение вероятностей: оставляем только те токены, которые попали в nucleus
-            float filteredSum = 0f;
-            float[] filteredProb = new float[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                if (keep[i]) {
-                    filteredProb[i] = probArray[i];
-                    filteredSum += filteredProb[i];
-                } else {
-                    filteredProb[i] = 0f;
-                }
-            }
-            // Если по неизвестной причине все вероятности обнулились, используем исходное распределение
-            if (filteredSum == 0) {
-                filteredProb = probArray;
-                filteredSum = 0f;
-                for (float p : filteredProb) {
-                    filteredSum += p;
-                }
-            }
-
-            // Сэмплируем токен на основе отфильтрованного распределения
-            float rnd = new Random().nextFloat() * filteredSum;
-            float cumulativeProbability = 0f;
-            for (int i = 0; i < vocabSize; i++) {
-                cumulativeProbability += filteredProb[i];
-                if (cumulativeProbability >= rnd) {
-                    return i;
-                }
-            }
-            return vocabSize - 1;
-        }
     }
 }
@@ -1,13 +1,10 @@
-import ai.djl.Model;
 import ai.djl.huggingface.tokenizers.Encoding;
 import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
 import ai.djl.inference.Predictor;
-import ai.djl.metric.Metrics;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.Shape;
-import ai.djl.nn.Block;
 import ai.djl.repository.zoo.Criteria;
 import ai.djl.repository.zoo.ZooModel;
 import ai.djl.translate.Batchifier;
@@ -22,18 +19,41 @@ import dev.langchain4j.model.chat.response.ChatResponse;
 
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-public class LocalONNXSmolLM2Model {
+public class LocalONNXSmolLM2Model implements DecoderModel, LocalChatModel {
 
     // Для модели SmolLM2‑135M‑Instruct допустимые индексы лежат в диапазоне [0, 49151].
     // Поэтому вместо GPT‑2 значения (50256) используем 0 для начала и конца генерации.
     private static final long BOS_ID = 0;
     private static final long EOS_ID = 0;
 
+    // Параметры сэмплирования по умолчанию для generate/chat
+    private SamplingParams samplingParams = SamplingParams.topP(0.2f, 0.9f);
+    // Синтетический запрос для прогрева: короткий prefill и несколько шагов декодирования
+    private static final String WARMUP_PROMPT = "User: Hello\nAssistant:";
+    private static final int WARMUP_TOKENS = 8;
+    // Стоп-последовательности chat: модель не должна дописывать реплики за пользователя
+    private static final List<String> CHAT_STOP_SEQUENCES = List.of("\nUser:", "\nAssistant:");
+    // Остановки по стоп-последовательностям и сэкономленные ими токены
+    private final AtomicLong stopSequenceHits = new AtomicLong();
+    private final AtomicLong tokensSavedByStop = new AtomicLong();
+    // Телеметрия запросов: TTFT, prefill, задержки декодирования, токены в секунду, причины остановки
+    private volatile GenerationTelemetry telemetry = new GenerationTelemetry("smollm2");
     // Поля: модель, предиктор и наш Translator
-    private final ZooModel<List<Long>, List<Long>> model;
-    private final Predictor<List<Long>, List<Long>> predictor;
+    private final ZooModel<DecoderStep, List<Long>> model;
+    // Пул предикторов: каждый одновременный запрос получает собственный предиктор
+    private final PredictorPool<DecoderStep, List<Long>> predictors;
     private final SmolLM2ONNXTranslator translator;
+    // Инкрементальное декодирование через past_key_values; false – старый режим полного пересчёта
+    private boolean useKvCache = true;
+    // Кэш KV-состояний общих префиксов между запросами; null – каждый prompt считается с нуля
+    private PrefixCache prefixCache;
+    // Планировщик непрерывного пакетирования; null – каждый запрос декодируется отдельно
+    private volatile ContinuousBatchingScheduler scheduler;
 
     /**
      * Конструктор.
@@ -41,28 +61,164 @@ public class LocalONNXSmolLM2Model {
      * @param modelDir Директория, где находятся ONNX‑модель (например, "model.onnx") и файлы токенизатора.
      */
     public LocalONNXSmolLM2Model(String modelDir) throws Exception {
+        this(modelDir, PredictorPool.defaultSize());
+    }
+
+    /**
+     * Конструктор с явным размером пула предикторов.
+     *
+     * @param modelDir Директория, где находятся ONNX‑модель и файлы токенизатора.
+     * @param poolSize максимальное число одновременных запросов к модели.
+     */
+    public LocalONNXSmolLM2Model(String modelDir, int poolSize) throws Exception {
         String localModelUrl = "file://" + modelDir;
         translator = new SmolLM2ONNXTranslator(modelDir);
-        Criteria<List<Long>, List<Long>> criteria = Criteria.builder()
-                .setTypes((Class<List<Long>>) (Class<?>) List.class, (Class<List<Long>>) (Class<?>) List.class)
+        Criteria.Builder<DecoderStep, List<Long>> builder = Criteria.builder()
+                .setTypes(DecoderStep.class, (Class<List<Long>>) (Class<?>) List.class)
                 .optEngine("OnnxRuntime")
                 .optModelUrls(localModelUrl)
-                .optModelName("model.onnx") // Убедитесь, что имя файла модели совпадает
-                .optTranslator(translator)
+                // Потоки ONNX Runtime: poolSize одновременных запросов по intraOp потоков занимают все ядра
+                .optOption("interOpNumThreads", "1")
+                .optOption("intraOpNumThreads", String.valueOf(PredictorPool.intraOpThreads(poolSize)))
+                .optTranslator(translator);
+        // Файл модели: сохранённый оптимизированный граф model.onnx (создаётся при первом запуске)
+        Criteria<DecoderStep, List<Long>> criteria = OptimizedGraphCache.apply(builder, modelDir, "model.onnx")
                 .build();
 
         model = criteria.loadModel();
-        predictor = model.newPredictor();
+        predictors = new PredictorPool<>(model, poolSize);
     }
 
     /**
-     * Автогрессивная генерация текста. Принимает входной prompt и добавляет до maxNewTokens токенов.
+     * Включает или выключает KV-кэш. Без кэша каждый шаг заново прогоняет всю последовательность
+     * (O(n²) по длине) – режим оставлен для сравнения задержек.
      */
-    public String generate(String prompt, int maxNewTokens) throws TranslateException {
-        NDManager localManager = NDManager.newBaseManager();
-        SimpleTranslatorContext simpleCtx = new SimpleTranslatorContext(localManager);
+    public void setUseKvCache(boolean useKvCache) {
+        this.useKvCache = useKvCache;
+    }
+
+    public boolean isUseKvCache() {
+        return useKvCache;
+    }
+
+    /**
+     * Подключает кэш префиксов: KV-состояние общего начала prompt-ов (шаблон, прошлые реплики)
+     * восстанавливается из кэша, и prefill считается только по новым токенам.
+     *
+     * @param prefixCache кэш этой модели или null, чтобы отключить.
+     */
+    public void setPrefixCache(PrefixCache prefixCache) {
+        this.prefixCache = prefixCache;
+    }
+
+    public PrefixCache getPrefixCache() {
+        return prefixCache;
+    }
+
+    /**
+     * Включает непрерывное пакетирование: одновременные вызовы generate/chat из разных потоков
+     * декодируются общими пакетными проходами модели.
+     *
+     * @param maxBatchSize максимальный размер пакета; 0 – выключить и декодировать запросы по одному.
+     */
+    public synchronized void setContinuousBatching(int maxBatchSize) {
+        if (scheduler != null) {
+            scheduler.close();
+            scheduler = null;
+        }
+        if (maxBatchSize > 0) {
+            scheduler = new ContinuousBatchingScheduler(model, translator::newCache,
+                    SmolLM2ONNXTranslator.NUM_LAYERS, SmolLM2ONNXTranslator.NUM_HEADS,
+                    SmolLM2ONNXTranslator.HEAD_DIM, EOS_ID, maxBatchSize);
+        }
+    }
+
+    public ContinuousBatchingScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public void setSamplingParams(SamplingParams samplingParams) {
+        this.samplingParams = samplingParams;
+    }
+
+    public SamplingParams getSamplingParams() {
+        return samplingParams;
+    }
+
+    /**
+     * Сколько генераций остановлено стоп-последовательностью.
+     */
+    public long getStopSequenceHits() {
+        return stopSequenceHits.get();
+    }
+
+    /**
+     * Сколько токенов из лимита maxNewTokens не пришлось генерировать благодаря стоп-последовательностям.
+     */
+    public long getTokensSavedByStop() {
+        return tokensSavedByStop.get();
+    }
+
+    /**
+     * Счётчики native-памяти модели: открытые под-менеджеры шагов, KV-кэши и их объём.
+     * На длинной серии запросов число открытых под-менеджеров и кэшей в покое должно оставаться нулевым.
+     */
+    public NativeMemoryStats getMemoryStats() {
+        return translator.memoryStats;
+    }
+
+    @Override
+    public GenerationTelemetry getTelemetry() {
+        return telemetry;
+    }
 
-        // Токенизация prompt. Если он не начинается с нужного маркера, добавляем BOS.
+    /**
+     * Заменяет телеметрию модели, например общей, которая переживает выгрузку модели из {@link ModelRegistry}.
+     */
+    @Override
+    public void setTelemetry(GenerationTelemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    /**
+     * Прогрев модели: несколько синтетических генераций (prefill и декодирование), чтобы ленивая
+     * инициализация ONNX Runtime (арена памяти, выбор ядер под формы входов) прошла до первого запроса.
+     *
+     * @param iterations число прогонов; 0 – без прогрева.
+     */
+    public void warmup(int iterations) throws TranslateException {
+        for (int i = 0; i < iterations; i++) {
+            // Прогревочные запросы не попадают в телеметрию, иначе они исказят перцентили
+            generate(WARMUP_PROMPT, WARMUP_TOKENS, new TokenSampler(SamplingParams.greedy(), i),
+                    Collections.emptyList(), null, false);
+        }
+    }
+
+    @Override
+    public HuggingFaceTokenizer getTokenizer() {
+        return translator.tokenizer;
+    }
+
+    @Override
+    public long getEosId() {
+        return EOS_ID;
+    }
+
+    @Override
+    public int getVocabSize() {
+        return SmolLM2ONNXTranslator.VOCAB_SIZE;
+    }
+
+    @Override
+    public KVCache newKVCache() {
+        return translator.newCache(model.getNDManager());
+    }
+
+    /**
+     * Токенизация prompt. Если он не начинается с нужного маркера, добавляем BOS.
+     */
+    @Override
+    public List<Long> encodePrompt(String prompt) {
         List<Long> promptTokens = new ArrayList<>();
         if (!prompt.startsWith("<s>")) {
             promptTokens.add(BOS_ID);
@@ -71,22 +227,156 @@ public class LocalONNXSmolLM2Model {
         for (long id : encoding.getIds()) {
             promptTokens.add(id);
         }
+        return promptTokens;
+    }
+
+    /**
+     * Прямой проход с логитами всех позиций (для проверки спекулятивных токенов).
+     */
+    @Override
+    public float[] forward(List<Long> tokens, KVCache cache) throws TranslateException {
+        DecoderStep step = DecoderStep.capturing(tokens, cache);
+        predictors.predict(step);
+        return step.getLogits();
+    }
+
+    /**
+     * Автогрессивная генерация текста. Принимает входной prompt и добавляет до maxNewTokens токенов.
+     * С включённым KV-кэшем prompt прогоняется один раз, далее модели подаётся только последний токен.
+     * Используются параметры сэмплирования модели и случайный seed.
+     */
+    public String generate(String prompt, int maxNewTokens) throws TranslateException {
+        return generate(prompt, maxNewTokens, new TokenSampler(samplingParams));
+    }
+
+    /**
+     * Автогрессивная генерация текста. Принимает входной prompt и добавляет до maxNewTokens токенов.
+     * С включённым KV-кэшем prompt прогоняется один раз, далее модели подаётся только последний токен.
+     *
+     * @param sampler сэмплер запроса; для воспроизводимого результата создайте его с фиксированным seed.
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler) throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, null);
+    }
+
+    /**
+     * Автогрессивная генерация текста. Принимает входной prompt и добавляет до maxNewTokens токенов.
+     * С включённым KV-кэшем prompt прогоняется один раз, далее модели подаётся только последний токен.
+     *
+     * @param sampler сэмплер запроса; для воспроизводимого результата создайте его с фиксированным seed.
+     * @param onText  получатель фрагментов текста по мере декодирования (может быть null);
+     *                фрагменты содержат только сгенерированный текст без prompt-а.
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler, Consumer<String> onText)
+            throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, Collections.emptyList(), onText);
+    }
+
+    /**
+     * Генерация с остановкой на стоп-последовательностях: текст сверяется со стоп-строками после каждого
+     * токена, и генерация прекращается на первом совпадении, даже если строка разрезана между токенами.
+     *
+     * @param stopSequences стоп-строки; сама стоп-строка в результат и в onText не попадает.
+     * @param onText        получатель фрагментов текста по мере декодирования (может быть null).
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler, List<String> stopSequences,
+                           Consumer<String> onText) throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, stopSequences, onText, true);
+    }
+
+    /**
+     * @param record записать ли статистику запроса в телеметрию модели.
+     */
+    private String generate(String prompt, int maxNewTokens, TokenSampler sampler, List<String> stopSequences,
+                            Consumer<String> onText, boolean record) throws TranslateException {
+        // TTFT отсчитывается от начала запроса, включая токенизацию и ожидание предиктора
+        GenerationStats stats = new GenerationStats();
+        List<Long> promptTokens = encodePrompt(prompt);
         // Начинаем генерацию с токенов prompt-а.
+        stats.setPromptTokens(promptTokens.size());
         List<Long> generatedTokens = new ArrayList<>(promptTokens);
 
-        // Итеративная генерация: добавляем токены до maxNewTokens или до встречи EOS.
-        for (int i = 0; i < maxNewTokens; i++) {
-            List<Long> outputTokens = predictor.predict(generatedTokens);
-            long nextToken = outputTokens.get(0);
-            if (nextToken == EOS_ID) {
-                break;
+        StopSequenceMatcher stopMatcher = new StopSequenceMatcher(stopSequences);
+        IncrementalDetokenizer detokenizer = onText == null && !stopMatcher.hasStopSequences()
+                ? null
+                : new IncrementalDetokenizer(translator.tokenizer, generatedTokens.size());
+
+        ContinuousBatchingScheduler batching = scheduler;
+        if (batching != null) {
+            // Пакетный режим: токены запроса генерирует общий планировщик вместе с другими запросами
+            // Prefill запроса выполняется планировщиком, поэтому в него входит ожидание места в пакете
+            stats.startPrefill();
+            CompletableFuture<List<Long>> future = batching.submit(promptTokens, maxNewTokens, sampler, tokens -> {
+                stats.onToken();
+                return detokenizer == null || !stopMatcher.offer(detokenizer.next(tokens), onText);
+            });
+            try {
+                generatedTokens = future.join();
+            } catch (CompletionException e) {
+                throw new TranslateException(e.getCause());
+            }
+        } else {
+            // Итеративная генерация: добавляем токены до maxNewTokens или до встречи EOS.
+            // Предиктор из пула занят этим запросом на всё время генерации
+            Predictor<DecoderStep, List<Long>> predictor = predictors.acquire();
+            KVCache cache = useKvCache ? translator.newCache(model.getNDManager()) : null;
+            PrefixCache prefixes = cache == null ? null : prefixCache;
+            // Prefill включает восстановление кэша префиксов
+            stats.startPrefill();
+            try {
+                if (prefixes != null) {
+                    prefixes.restore(generatedTokens, cache);
+                }
+                for (int i = 0; i < maxNewTokens; i++) {
+                    List<Long> stepTokens = cache == null
+                            ? generatedTokens
+                            : generatedTokens.subList(cache.length(), generatedTokens.size());
+                    List<Long> outputTokens = predictor.predict(new DecoderStep(stepTokens, cache, sampler));
+                    stats.onToken();
+                    long nextToken = outputTokens.get(0);
+                    if (nextToken == EOS_ID) {
+                        break;
+                    }
+                    generatedTokens.add(nextToken);
+                    if (detokenizer != null && stopMatcher.offer(detokenizer.next(generatedTokens), onText)) {
+                        break;
+                    }
+                }
+                if (prefixes != null) {
+                    // Следующий ход диалога начнётся с этого же текста
+                    prefixes.insert(generatedTokens, cache);
+                }
+            } finally {
+                predictors.release(predictor);
+                if (cache != null) {
+                    cache.close();
+                }
             }
-            generatedTokens.add(nextToken);
         }
 
-        long[] resultArray = generatedTokens.stream().mapToLong(Long::longValue).toArray();
-        String result = translator.tokenizer.decode(resultArray, true);
-        localManager.close();
+        if (detokenizer != null && !stopMatcher.isStopped()) {
+            stopMatcher.offer(detokenizer.flush(generatedTokens), onText);
+            stopMatcher.flush(onText);
+        }
+
+        int newTokens = generatedTokens.size() - promptTokens.size();
+        stats.finish(newTokens, stopMatcher.isStopped() ? GenerationStats.StopReason.STOP_SEQUENCE
+                : newTokens < maxNewTokens ? GenerationStats.StopReason.EOS : GenerationStats.StopReason.MAX_TOKENS);
+        if (record) {
+            telemetry.record(stats);
+        }
+
+        String result;
+        if (stopMatcher.isStopped()) {
+            // Токен со стоп-строкой мог содержать и полезный текст: результат собирается из выданного текста
+            stopSequenceHits.incrementAndGet();
+            tokensSavedByStop.addAndGet(maxNewTokens - newTokens);
+            long[] promptArray = promptTokens.stream().mapToLong(Long::longValue).toArray();
+            result = translator.tokenizer.decode(promptArray, true) + stopMatcher.getText();
+        } else {
+            long[] resultArray = generatedTokens.stream().mapToLong(Long::longValue).toArray();
+            result = translator.tokenizer.decode(resultArray, true);
+        }
         return result;
     }
 
@@ -102,6 +392,17 @@ public class LocalONNXSmolLM2Model {
      * Собирает prompt из истории, генерирует ответ и очищает его от повторов.
      */
     public ChatResponse chat(List<ChatMessage> history) throws TranslateException {
+        return chat(history, null);
+    }
+
+    /**
+     * Потоковый вариант chat: фрагменты ответа передаются в onText по мере генерации,
+     * так что первый текст появляется сразу после prefill, а не после всех токенов.
+     *
+     * @param history история сообщений.
+     * @param onText  получатель фрагментов ответа (может быть null).
+     */
+    public ChatResponse chat(List<ChatMessage> history, Consumer<String> onText) throws TranslateException {
         StringBuilder promptBuilder = new StringBuilder();
         for (ChatMessage msg : history) {
             if (msg instanceof SystemMessage) {
@@ -118,8 +419,18 @@ public class LocalONNXSmolLM2Model {
         }
         promptBuilder.append("Assistant:");
 
-        String rawOutput = generate(promptBuilder.toString(), 90);
-        String answer = rawOutput.substring(rawOutput.indexOf("Assistant:") + "Assistant:".length()).trim();
+        // Ответ собирается из тех же фрагментов, что уходят в onText: только сгенерированный текст
+        StringBuilder answerBuilder = new StringBuilder();
+        generate(promptBuilder.toString(), 90, new TokenSampler(samplingParams), CHAT_STOP_SEQUENCES, piece -> {
+            String text = answerBuilder.length() == 0 ? piece.stripLeading() : piece;
+            if (!text.isEmpty()) {
+                answerBuilder.append(text);
+                if (onText != null) {
+                    onText.accept(text);
+                }
+            }
+        });
+        String answer = answerBuilder.toString().trim();
 
         return ChatResponse.builder()
                 .aiMessage(new AiMessage(answer))
@@ -129,74 +440,36 @@ public class LocalONNXSmolLM2Model {
     /**
      * Освобождает ресурсы модели и предиктора.
      */
-    public void close() throws Exception {
-        if (predictor != null) {
-            predictor.close();
+    public void close() {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+        if (predictors != null) {
+            predictors.close();
         }
         if (model != null) {
             model.close();
         }
     }
 
-    /**
-     * Простейшая реализация TranslatorContext.
-     */
-    private static class SimpleTranslatorContext implements TranslatorContext {
-
-        private final NDManager manager;
-
-        public SimpleTranslatorContext(NDManager manager) {
-            this.manager = manager;
-        }
-
-        @Override
-        public NDManager getNDManager() {
-            return manager;
-        }
-
-        @Override
-        public Model getModel() {
-            return null;
-        }
-
-        @Override
-        public NDManager getPredictorManager() {
-            return manager;
-        }
-
-        @Override
-        public Block getBlock() {
-            return null;
-        }
-
-        @Override
-        public Metrics getMetrics() {
-            return null;
-        }
-
-        @Override
-        public Object getAttachment(String key) {
-            return null;
-        }
-
-        @Override
-        public void setAttachment(String key, Object value) {
-            // Пустая реализация
-        }
-
-        @Override
-        public void close() {
-            // Закрытие ресурсов, если потребуется
-        }
-    }
-
     /**
      * Реализация Translator для SmolLM2‑135M‑Instruct в ONNX‑формате.
-     * Вход и выход – списки токенов (List<Long>).
+     * Вход – шаг декодера {@link DecoderStep}, выход – список из одного следующего токена.
      */
-    public static class SmolLM2ONNXTranslator implements Translator<List<Long>, List<Long>> {
+    public static class SmolLM2ONNXTranslator implements Translator<DecoderStep, List<Long>> {
 
         public final HuggingFaceTokenizer tokenizer;
+        // Модель SmolLM2 ожидает число key/value голов внимания равное 3.
+        static final int NUM_LAYERS = 30;
+        static final int NUM_HEADS = 3;
+        static final int HEAD_DIM = 64;
+        static final int VOCAB_SIZE = 49152;
+        // Ключ, под которым шаг декодера сохраняется в контексте между processInput и processOutput
+        private static final String STEP_KEY = "decoderStep";
+        // Ключ под-менеджера шага: в нём создаются входы, а ONNX Runtime прикрепляет к нему выходы
+        private static final String SCOPE_KEY = "stepManager";
+
+        final NativeMemoryStats memoryStats = new NativeMemoryStats();
 
         /**
          * Конструктор.
@@ -208,27 +481,38 @@ public class LocalONNXSmolLM2Model {
             this.tokenizer = HuggingFaceTokenizer.newInstance(Paths.get(tokenizerDir));
         }
 
+        /**
+         * Создаёт пустой KV-кэш под размеры этой модели.
+         */
+        public KVCache newCache(NDManager parentManager) {
+            return memoryStats.track(new OrtKVCache(parentManager, NUM_LAYERS, NUM_HEADS, HEAD_DIM));
+        }
+
         /**
          * Формирует NDList входов модели.
          * Ожидаются входы: input_ids, attention_mask, position_ids и для каждого слоя past_key_values.
          */
         @Override
-        public NDList processInput(TranslatorContext ctx, List<Long> inputTokens) {
-            NDManager manager = ctx.getNDManager();
-
-            // 1. input_ids: [1, seq_len]
-            long[] tokenIds = inputTokens.stream().mapToLong(Long::longValue).toArray();
+        public NDList processInput(TranslatorContext ctx, DecoderStep step) {
+            // Тензоры шага создаются в собственном под-менеджере, который закрывается в processOutput
+            NDManager manager = memoryStats.openStep(ctx.getNDManager());
+            ctx.setAttachment(SCOPE_KEY, manager);
+            ctx.setAttachment(STEP_KEY, step);
+            int pastLength = step.getPastLength();
+
+            // 1. input_ids: [1, new_len] – только токены, которых ещё нет в кэше
+            long[] tokenIds = step.getTokens().stream().mapToLong(Long::longValue).toArray();
             NDArray inputIds = manager.create(tokenIds).expandDims(0);
 
-            // 2. attention_mask: [1, seq_len] (единицы для всех токенов)
-            long[] attentionMaskArr = new long[tokenIds.length];
+            // 2. attention_mask: [1, past_len + new_len] (единицы для всех токенов)
+            long[] attentionMaskArr = new long[pastLength + tokenIds.length];
             Arrays.fill(attentionMaskArr, 1);
             NDArray attentionMask = manager.create(attentionMaskArr).expandDims(0);
 
-            // 3. position_ids: создаём массив [0, 1, 2, …, seq_len - 1]
+            // 3. position_ids: продолжают нумерацию после кэша [past_len, …, past_len + new_len - 1]
             long[] positions = new long[tokenIds.length];
             for (int i = 0; i < tokenIds.length; i++) {
-                positions[i] = i;
+                positions[i] = pastLength + i;
             }
             NDArray positionIds = manager.create(positions).expandDims(0);
 
@@ -238,38 +522,47 @@ public class LocalONNXSmolLM2Model {
             ndList.add(attentionMask);    // 1-й вход
             ndList.add(positionIds);      // 2-й вход
 
-            // 4. Добавляем пустые тензоры для past_key_values для каждого из NUM_LAYERS.
-            // Обратите внимание: модель SmolLM2 ожидает число attention-голов равное 3.
-            final int NUM_LAYERS = 30;     // При необходимости скорректируйте
-            final int NUM_HEADS = 3;       // Число attention‑голов = 3
-            final int HEAD_DIM = 64;       // Убедитесь, что HEAD_DIM соответствует конфигурации модели
-
-            // Для начального шага длина кэша равна 0, поэтому форма: [1, NUM_HEADS, 0, HEAD_DIM]
-            long[] pastShape = {1, NUM_HEADS, 0, HEAD_DIM};
-
-            for (int i = 0; i < NUM_LAYERS; i++) {
-                NDArray pastKey = manager.create(new float[0], new Shape(pastShape));
-                NDArray pastValue = manager.create(new float[0], new Shape(pastShape));
-                ndList.add(pastKey);
-                ndList.add(pastValue);
+            // 4. past_key_values для каждого из NUM_LAYERS: из кэша или пустые в режиме полного пересчёта.
+            if (step.getCache() != null) {
+                ndList.addAll(step.getCache().pastKeyValues(manager));
+            } else {
+                // Для начального шага длина кэша равна 0, поэтому форма: [1, NUM_HEADS, 0, HEAD_DIM]
+                Shape pastShape = new Shape(1, NUM_HEADS, 0, HEAD_DIM);
+                for (int i = 0; i < NUM_LAYERS; i++) {
+                    ndList.add(manager.create(new float[0], pastShape));
+                    ndList.add(manager.create(new float[0], pastShape));
+                }
             }
             return ndList;
         }
 
         /**
          * Извлекает логиты, выбирает последний логит и сэмплирует следующий токен
-         * с использованием nucleus (top‑p) сэмплирования, температуры 0.2 и top‑p 0.9.
+         * сэмплером запроса из {@link DecoderStep}.
+         * Выходы present.* (все, кроме логитов) сохраняются в KV-кэш шага.
          */
         @Override
         public List<Long> processOutput(TranslatorContext ctx, NDList list) {
-            // logits имеет форму [1, seq_length, vocab_size]
-            NDArray logits = list.get(0);
-            long seqLength = logits.getShape().get(1);
-            NDArray lastLogits = logits.get(0).get((int) (seqLength - 1));
-            int nextToken = sampleFromLogits(lastLogits, 0.2f, 0.9f);
-            List<Long> result = new ArrayList<>();
-            result.add((long) nextToken);
-            return result;
+            DecoderStep step = (DecoderStep) ctx.getAttachment(STEP_KEY);
+            try {
+                // present-ы переносятся в кэш до закрытия под-менеджера шага
+                if (step != null && step.getCache() != null) {
+                    step.getCache().update(list.subNDList(1));
+                }
+                // logits имеет форму [1, seq_length, vocab_size]; обычно в JVM читается только последняя позиция
+                NDArray logits = list.get(0);
+                if (step.isCaptureLogits()) {
+                    step.captureLogits(logits);
+                }
+                List<Long> result = new ArrayList<>();
+                if (step.getSampler() != null) {
+                    result.add((long) step.getSampler().sampleLastPosition(logits));
+                }
+                return result;
+            } finally {
+                // Логиты и прочие тензоры шага освобождаются сразу, а не при закрытии предиктора
+                memoryStats.closeStep((NDManager) ctx.getAttachment(SCOPE_KEY));
+            }
         }
 
         @Override
@@ -277,66 +570,5 @@ public class LocalONNXSmolLM2Model {
             return null;
         }
 
-        /**
-         * Реализация nucleus (top‑p) сэмплирования.
-         *
-         * @param logits      1D NDArray логитов для текущего шага.
-         * @param temperature Температура для масштабирования логитов.
-         * @param topP        Порог nucleus фильтрации (например, 0.9 для накопления 90% вероятности).
-         * @return Выбранный индекс токена.
-         */
-        private int sampleFromLogits(NDArray logits, float temperature, float topP) {
-            NDArray scaled = logits.div(temperature);
-            NDArray probs = scaled.softmax(0);
-            float[] probArray = probs.toFloatArray();
-            int vocabSize = probArray.length;
-
-            // Создаем массив индексов для сортировки по убыванию вероятности
-            Integer[] indices = new Integer[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                indices[i] = i;
-            }
-            Arrays.sort(indices, (a, b) -> Float.compare(probArray[b], probArray[a]));
-
-            // Собираем минимальное множество токенов, суммарная вероятность которых >= topP
-            float cumulative = 0f;
-            boolean[] keep = new boolean[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                int idx = indices[i];
-                cumulative += probArray[idx];
-                keep[idx] = true;
-                if (cumulative >= topP) {
-                    break;
-                }
-            }
-
-            // Фильтруем распределение вероятностей
-            float filteredSum = 0f;
-            float[] filteredProb = new float[vocabSize];
-            for (int i = 0; i < vocabSize; i++) {
-                if (keep[i]) {
-                    filteredProb[i] = probArray[i];
-                    filteredSum += filteredProb[i];
-                } else {
-                    filteredProb[i] = 0f;
-                }
-            }
-            if (filteredSum == 0f) {
-                filteredProb = probArray;
-                filteredSum = 0f;
-                for (float p : filteredProb) {
-                    filteredSum += p;
-                }
-            }
-            float rnd = new Random().nextFloat() * filteredSum;
-            float cumulativeProbability = 0f;
-            for (int i = 0; i < vocabSize; i++) {
-                cumulativeProbability += filteredProb[i];
-                if (cumulativeProbability >= rnd) {
-                    return i;
-                }
-            }
-            return vocabSize - 1;
-        }
     }
 }
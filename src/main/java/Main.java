@@ -1,22 +1,25 @@
-import java.io.File;
-
 public class Main {
     public static void main(String[] args) throws Exception {
         // Initialize the RAG chatbot
         RAGChatbot chatbot = new RAGChatbot();
+        System.out.println("Models loaded in " + chatbot.getLoadMillis() + " ms, warmed up in "
+                + chatbot.getWarmupMillis() + " ms");
 
-        // Upload a document
+        // Upload the documents; loading, splitting and embedding of different files overlap
         String directoryPath = "src/main/resources/books";
-        File directory = new File(directoryPath);
-        for (File file : directory.listFiles()) {
-            String result = chatbot.uploadDocument(String.valueOf(file));
-            System.out.println(result);
-        }
+        System.out.println(chatbot.uploadDirectory(directoryPath, System.out::println));
 
-        // Send a message about the document
+        // Send a message about the document, printing the answer as it is generated
         String query = "Who is sea girl?";
-        String response = chatbot.sendMessage(query);
         System.out.println("\nQuestion: " + query);
-        System.out.println("Answer: " + response);
+        System.out.print("Answer: ");
+        long start = System.nanoTime();
+        chatbot.sendMessage(query, piece -> {
+            System.out.print(piece);
+            System.out.flush();
+        });
+        System.out.println();
+        System.out.println("First request took " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        System.out.println(chatbot.getTelemetry().getLast());
     }
 }
\ No newline at end of file
@@ -0,0 +1,325 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+/**
+ * Реестр моделей с ленивой загрузкой и бюджетом памяти.
+ * <p>
+ * Модели регистрируются по имени вместе с функцией загрузки и загружаются только при первом
+ * обращении. Для каждой загруженной модели учитывается занятая ею native-память. Если суммарный
+ * объём превышает бюджет, выгружаются наименее давно использованные модели (LRU), которые сейчас
+ * никем не используются. Так один процесс может обслуживать несколько моделей, не держа в памяти
+ * все сразу.
+ * <p>
+ * Модель выдаётся в аренду ({@link Lease}); пока аренда не закрыта, модель не выгружается.
+ * Загрузка идёт вне блокировки реестра: пока модель загружается, аренда уже загруженных моделей
+ * и статистика не ждут, а параллельные запросы той же модели дожидаются одной общей загрузки.
+ * Сами загрузки выполняются строго по одной, поэтому прирост резидентной памяти процесса
+ * относится к загружаемой модели.
+ *
+ * @param <M> тип моделей реестра.
+ */
+public class ModelRegistry<M extends AutoCloseable> implements AutoCloseable {
+
+    /**
+     * Функция загрузки модели.
+     */
+    @FunctionalInterface
+    public interface Loader<M> {
+        M load() throws Exception;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ModelRegistry.class);
+
+    private final long memoryBudgetBytes;
+    private final Map<String, Entry<M>> entries = new LinkedHashMap<>();
+    // Упорядочивает загрузки между собой; реестр при этом не блокируется
+    private final Object loadLock = new Object();
+    private long clock;
+    private long loads;
+    private long evictions;
+
+    /**
+     * @param memoryBudgetBytes суммарный бюджет памяти загруженных моделей, байт.
+     */
+    public ModelRegistry(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Регистрирует модель без загрузки.
+     *
+     * @param name     имя, по которому модель запрашивается.
+     * @param modelDir директория модели: объём файлов *.onnx служит оценкой памяти до загрузки.
+     * @param loader   функция загрузки.
+     */
+    public synchronized void register(String name, String modelDir, Loader<M> loader) {
+        if (entries.containsKey(name)) {
+            throw new IllegalArgumentException("Модель уже зарегистрирована: " + name);
+        }
+        entries.put(name, new Entry<>(name, estimateBytes(Paths.get(modelDir)), loader));
+    }
+
+    /**
+     * Берёт модель в аренду, при необходимости загружая её и выгружая другие модели.
+     * Аренду нужно закрыть, например через try-with-resources.
+     */
+    public Lease<M> acquire(String name) throws Exception {
+        Entry<M> entry;
+        CompletableFuture<M> loading;
+        boolean loader = false;
+        synchronized (this) {
+            entry = entries.get(name);
+            if (entry == null) {
+                throw new IllegalArgumentException("Неизвестная модель: " + name + ", доступны " + entries.keySet());
+            }
+            entry.lastUsed = ++clock;
+            entry.leases++;
+            if (entry.model != null) {
+                return new Lease<>(this, entry);
+            }
+            if (entry.loading == null) {
+                // Освобождаем место заранее по оценке, чтобы пик памяти не превысил бюджет,
+                // и до конца загрузки считаем оценку занятой
+                evict(entry.estimatedBytes);
+                entry.residentBytes = entry.estimatedBytes;
+                entry.loading = new CompletableFuture<>();
+                loader = true;
+            }
+            loading = entry.loading;
+        }
+        if (loader) {
+            load(entry, loading);
+        } else {
+            try {
+                loading.join();
+            } catch (CompletionException e) {
+                release(entry);
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return new Lease<>(this, entry);
+    }
+
+    /**
+     * Загружает модель записи вне блокировки реестра и публикует результат ожидающим её запросам.
+     */
+    private void load(Entry<M> entry, CompletableFuture<M> loading) throws Exception {
+        try {
+            M model;
+            long measured;
+            synchronized (loadLock) {
+                long before = NativeMemoryStats.processResidentBytes();
+                model = entry.loader.load();
+                long after = NativeMemoryStats.processResidentBytes();
+                measured = before >= 0 && after >= 0 ? after - before : 0;
+            }
+            synchronized (this) {
+                entry.model = model;
+                entry.residentBytes = Math.max(entry.estimatedBytes, measured);
+                entry.loading = null;
+                loads++;
+            }
+            loading.complete(model);
+        } catch (Throwable e) {
+            synchronized (this) {
+                entry.residentBytes = 0;
+                entry.loading = null;
+                entry.leases--;
+            }
+            loading.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private synchronized void release(Entry<M> entry) {
+        entry.leases--;
+        evict(0);
+    }
+
+    /**
+     * Выгружает неиспользуемые модели в порядке LRU, пока занятая память плюс reserveBytes
+     * не уложится в бюджет или выгружать станет нечего.
+     */
+    private void evict(long reserveBytes) {
+        while (getUsedBytes() + reserveBytes > memoryBudgetBytes) {
+            Entry<M> lru = null;
+            for (Entry<M> entry : entries.values()) {
+                if (entry.model != null && entry.leases == 0 && (lru == null || entry.lastUsed < lru.lastUsed)) {
+                    lru = entry;
+                }
+            }
+            if (lru == null) {
+                return;
+            }
+            try {
+                lru.model.close();
+            } catch (Exception e) {
+                // Модель всё равно считается выгруженной: повторное закрытие не освободит больше памяти
+                logger.warn("Ошибка при выгрузке модели {}", lru.name, e);
+            }
+            lru.model = null;
+            lru.residentBytes = 0;
+            evictions++;
+        }
+    }
+
+    /**
+     * Оценка памяти модели до загрузки – суммарный размер файлов *.onnx и внешних весов в директории.
+     */
+    private static long estimateBytes(Path modelDir) {
+        if (!Files.isDirectory(modelDir)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(modelDir)) {
+            return files.filter(p -> {
+                String fileName = p.getFileName().toString();
+                // Сохранённый оптимизированный граф – копия той же модели, он не загружается вместе с исходной
+                return (fileName.endsWith(".onnx") && !fileName.endsWith(".optimized.onnx"))
+                        || fileName.endsWith(".onnx_data");
+            }).mapToLong(p -> {
+                try {
+                    return Files.size(p);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    /**
+     * Память, занятая загруженными моделями, байт.
+     */
+    public synchronized long getUsedBytes() {
+        long used = 0;
+        for (Entry<M> entry : entries.values()) {
+            used += entry.residentBytes;
+        }
+        return used;
+    }
+
+    /**
+     * Имена моделей, загруженных в данный момент.
+     */
+    public synchronized List<String> getLoadedModels() {
+        List<String> loaded = new ArrayList<>();
+        for (Entry<M> entry : entries.values()) {
+            if (entry.model != null) {
+                loaded.add(entry.name);
+            }
+        }
+        return loaded;
+    }
+
+    public synchronized List<String> getModelNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Выгружает все модели.
+     */
+    @Override
+    public synchronized void close() {
+        IllegalStateException failure = null;
+        for (Entry<M> entry : entries.values()) {
+            if (entry.model != null) {
+                try {
+                    entry.model.close();
+                } catch (Exception e) {
+                    // Остальные модели всё равно выгружаем, ошибки собираем в одно исключение
+                    if (failure == null) {
+                        failure = new IllegalStateException("Не удалось выгрузить модель " + entry.name, e);
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+                entry.model = null;
+                entry.residentBytes = 0;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Аренда модели: пока не закрыта, модель не выгружается из реестра.
+     */
+    public static final class Lease<M extends AutoCloseable> implements AutoCloseable {
+
+        private final ModelRegistry<M> registry;
+        private final Entry<M> entry;
+        private boolean closed;
+
+        private Lease(ModelRegistry<M> registry, Entry<M> entry) {
+            this.registry = registry;
+            this.entry = entry;
+        }
+
+        public M get() {
+            if (closed) {
+                throw new IllegalStateException("Аренда модели " + entry.name + " уже закрыта");
+            }
+            return entry.model;
+        }
+
+        public String getName() {
+            return entry.name;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                registry.release(entry);
+            }
+        }
+    }
+
+    private static final class Entry<M> {
+
+        private final String name;
+        private final long estimatedBytes;
+        private final Loader<M> loader;
+        private M model;
+        // Загрузка в процессе; null, если модель загружена или не загружалась
+        private CompletableFuture<M> loading;
+        private long residentBytes;
+        private long lastUsed;
+        private int leases;
+
+        private Entry(String name, long estimatedBytes, Loader<M> loader) {
+            this.name = name;
+            this.estimatedBytes = estimatedBytes;
+            this.loader = loader;
+        }
+    }
+}
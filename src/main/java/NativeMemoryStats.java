@@ -0,0 +1,184 @@
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Счётчики native-памяти одной модели.
+ * <p>
+ * Позволяют убедиться, что память не растёт на длинной серии запросов:
+ * <ul>
+ *     <li>число открытых под-менеджеров шагов декодера – в покое должно быть 0;</li>
+ *     <li>число и объём открытых KV-кэшей – в покое должны быть 0 (кроме кэша префиксов);</li>
+ *     <li>резидентная память процесса и объём direct-буферов JVM – для сравнения между замерами.</li>
+ * </ul>
+ */
+public class NativeMemoryStats {
+
+    private final AtomicLong stepsStarted = new AtomicLong();
+    private final AtomicLong stepsClosed = new AtomicLong();
+    private final AtomicLong cachesOpened = new AtomicLong();
+    private final AtomicLong cachesClosed = new AtomicLong();
+    private final AtomicLong peakKvCacheBytes = new AtomicLong();
+    private final Set<KVCache> openCaches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Открывает под-менеджер шага декодера; его нужно закрыть через {@link #closeStep(NDManager)}.
+     */
+    public NDManager openStep(NDManager parent) {
+        stepsStarted.incrementAndGet();
+        return parent.newSubManager();
+    }
+
+    public void closeStep(NDManager stepManager) {
+        stepManager.close();
+        stepsClosed.incrementAndGet();
+    }
+
+    /**
+     * Возвращает кэш, который учитывается в счётчиках, пока не будет закрыт.
+     */
+    public KVCache track(KVCache cache) {
+        TrackedKVCache tracked = new TrackedKVCache(cache);
+        openCaches.add(tracked);
+        cachesOpened.incrementAndGet();
+        return tracked;
+    }
+
+    public long getSteps() {
+        return stepsStarted.get();
+    }
+
+    /**
+     * Под-менеджеры шагов, которые открыты и ещё не закрыты.
+     */
+    public long getOpenStepManagers() {
+        return stepsStarted.get() - stepsClosed.get();
+    }
+
+    public long getOpenKvCaches() {
+        return cachesOpened.get() - cachesClosed.get();
+    }
+
+    /**
+     * Суммарный объём открытых KV-кэшей модели, байт.
+     */
+    public long getKvCacheBytes() {
+        long bytes = 0;
+        for (KVCache cache : openCaches) {
+            bytes += cache.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    public long getPeakKvCacheBytes() {
+        return peakKvCacheBytes.get();
+    }
+
+    /**
+     * Резидентная память процесса (VmRSS) по /proc/self/status или -1, если она недоступна.
+     */
+    public static long processResidentBytes() {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Объём direct-буферов JVM (в том числе блоков {@link OffHeapEmbeddingStore}), байт.
+     */
+    public static long directBufferBytes() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NativeMemoryStats{steps=%d, openStepManagers=%d, openKvCaches=%d, "
+                        + "kvCacheBytes=%d, peakKvCacheBytes=%d, processRss=%d, directBuffers=%d}",
+                getSteps(), getOpenStepManagers(), getOpenKvCaches(), getKvCacheBytes(), getPeakKvCacheBytes(),
+                processResidentBytes(), directBufferBytes());
+    }
+
+    /**
+     * Обёртка кэша, которая обновляет пиковый объём после шагов и снимает кэш с учёта при закрытии.
+     */
+    private final class TrackedKVCache implements KVCache {
+
+        private final KVCache delegate;
+        private boolean closed;
+
+        private TrackedKVCache(KVCache delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public NDList pastKeyValues(NDManager manager) {
+            return delegate.pastKeyValues(manager);
+        }
+
+        @Override
+        public void update(NDList presents) {
+            delegate.update(presents);
+            peakKvCacheBytes.accumulateAndGet(getKvCacheBytes(), Math::max);
+        }
+
+        @Override
+        public int length() {
+            return delegate.length();
+        }
+
+        @Override
+        public void truncate(int length) {
+            delegate.truncate(length);
+        }
+
+        @Override
+        public float[] readPositions(int from, int to) {
+            return delegate.readPositions(from, to);
+        }
+
+        @Override
+        public void appendPositions(float[] data, int count) {
+            delegate.appendPositions(data, count);
+            peakKvCacheBytes.accumulateAndGet(getKvCacheBytes(), Math::max);
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return delegate.sizeInBytes();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+            if (!closed) {
+                closed = true;
+                openCaches.remove(this);
+                cachesClosed.incrementAndGet();
+            }
+        }
+    }
+}
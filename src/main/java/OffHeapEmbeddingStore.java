@@ -0,0 +1,464 @@
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.RelevanceScore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Хранилище эмбеддингов с точным поиском, в котором векторы лежат вне кучи одной плотной матрицей.
+ * <p>
+ * Векторы пишутся подряд в блоки по {@link #BLOCK_BYTES} байт прямой памяти (direct ByteBuffer),
+ * выровненные по 64 байта; каждая строка дополнена нулями до кратного 16 float, поэтому тоже начинается
+ * на границе 64 байт. На каждый вектор в куче не остаётся ни объекта Embedding, ни массива float[]:
+ * миллион векторов – это несколько десятков блоков, а не миллионы объектов для сборщика мусора.
+ * Новый блок добавляется без копирования уже записанных.
+ * <p>
+ * Поиск – полный перебор, разделённый задачами ForkJoin по {@link #ROWS_PER_TASK} строк. Строки
+ * копируются из блока порциями в массив задачи, а произведение считается на Vector API
+ * ({@link VectorDot}), если модуль jdk.incubator.vector подключён, иначе скалярным циклом с несколькими
+ * суммами. Каждая задача держит свою ограниченную минимальную кучу k лучших, кучи задач сливаются.
+ * <p>
+ * Близость, оценки и minScore – как у {@link FlatEmbeddingStore}. Фильтры не поддерживаются.
+ * <p>
+ * Подклассы могут размещать блоки и записи иначе: {@link #allocateBlock(int, int)},
+ * {@link #append(int, String, TextSegment)}, {@link #id(int)} и {@link #segment(int)}
+ * (так {@link PersistentEmbeddingStore} держит их в файлах).
+ */
+public class OffHeapEmbeddingStore implements EmbeddingStore<TextSegment> {
+
+    private static final int ALIGNMENT = 64;
+    // Строка дополняется до кратного 16 float: 64 байта, самый широкий вектор AVX-512
+    private static final int ROW_ALIGNMENT_FLOATS = ALIGNMENT / Float.BYTES;
+    static final int BLOCK_BYTES = 64 << 20;
+    // Строк на одну задачу ForkJoin; хранилища меньше этого просматриваются в вызывающем потоке
+    static final int ROWS_PER_TASK = 16_384;
+    // Строк, копируемых из блока за раз: порция остаётся в кэше L1/L2
+    private static final int TILE_ROWS = 16;
+    private static final boolean SIMD = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private final boolean unitLength;
+    private final ForkJoinPool pool;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<FloatBuffer> blocks = new ArrayList<>();
+    // Размерность задаётся первым добавленным вектором
+    private int dimension;
+    private int stride;
+    private int rowsPerBlock;
+    private int size;
+    private final List<String> ids = new ArrayList<>();
+    private final List<TextSegment> segments = new ArrayList<>();
+    // Обратные нормы векторов; при unitLength не хранятся
+    private float[] inverseNorms = new float[0];
+
+    /**
+     * Хранилище, поиск в котором идёт в общем пуле ForkJoin.
+     *
+     * @param unitLength все добавляемые векторы и запросы имеют единичную длину.
+     */
+    public OffHeapEmbeddingStore(boolean unitLength) {
+        this(unitLength, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param unitLength все добавляемые векторы и запросы имеют единичную длину.
+     * @param pool       пул, в котором выполняются задачи поиска.
+     */
+    public OffHeapEmbeddingStore(boolean unitLength, ForkJoinPool pool) {
+        this.unitLength = unitLength;
+        this.pool = pool;
+    }
+
+    public boolean isUnitLength() {
+        return unitLength;
+    }
+
+    /**
+     * Используется ли Vector API при поиске.
+     */
+    public static boolean isSimd() {
+        return SIMD;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Размерность векторов; 0, пока хранилище пусто.
+     */
+    public int getDimension() {
+        lock.readLock().lock();
+        try {
+            return dimension;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Номер блока, в котором лежит строка row.
+     */
+    protected int blockOf(int row) {
+        return row / rowsPerBlock;
+    }
+
+    /**
+     * Объём прямой памяти, занятой блоками, байт.
+     */
+    public long getOffHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) blocks.size() * rowsPerBlock * stride * Float.BYTES;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        return add(embedding, null);
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        addAll(List.of(id), List.of(embedding), null);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        String id = UUID.randomUUID().toString();
+        addAll(List.of(id), List.of(embedding), Collections.singletonList(segment));
+        return id;
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        List<String> newIds = generateIds(embeddings.size());
+        addAll(newIds, embeddings, null);
+        return newIds;
+    }
+
+    @Override
+    public void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> embedded) {
+        if (ids.size() != embeddings.size() || (embedded != null && embedded.size() != embeddings.size())) {
+            throw new IllegalArgumentException("Число идентификаторов, эмбеддингов и фрагментов должно совпадать");
+        }
+        lock.writeLock().lock();
+        try {
+            if (!unitLength && inverseNorms.length < size + embeddings.size()) {
+                inverseNorms = Arrays.copyOf(inverseNorms,
+                        Math.max(size + embeddings.size(), inverseNorms.length * 2));
+            }
+            for (int i = 0; i < embeddings.size(); i++) {
+                float[] vector = embeddings.get(i).vector();
+                if (dimension == 0) {
+                    setDimension(vector.length);
+                } else if (vector.length != dimension) {
+                    throw new IllegalArgumentException("Размерность вектора " + vector.length
+                            + " не совпадает с размерностью хранилища " + dimension);
+                }
+                int block = size / rowsPerBlock;
+                if (block == blocks.size()) {
+                    blocks.add(allocateBlock(block, blockBytes()));
+                }
+                blocks.get(block).put((size % rowsPerBlock) * stride, vector);
+                if (!unitLength) {
+                    inverseNorms[size] = (float) (1 / Math.max(Math.sqrt(FlatEmbeddingStore.dot(vector, vector)), 1e-12));
+                }
+                append(size, ids.get(i), embedded == null ? null : embedded.get(i));
+                size++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void setDimension(int dimension) {
+        this.dimension = dimension;
+        this.stride = (dimension + ROW_ALIGNMENT_FLOATS - 1) / ROW_ALIGNMENT_FLOATS * ROW_ALIGNMENT_FLOATS;
+        this.rowsPerBlock = Math.max(1, BLOCK_BYTES / (stride * Float.BYTES));
+    }
+
+    private int blockBytes() {
+        return rowsPerBlock * stride * Float.BYTES;
+    }
+
+    /**
+     * Восстанавливает хранилище, блоки которого уже заполнены: size строк размерности dimension.
+     * Блоки запрашиваются через {@link #allocateBlock(int, int)}, записи – через {@link #id(int)}
+     * и {@link #segment(int)}.
+     */
+    protected void restore(int dimension, int size) {
+        lock.writeLock().lock();
+        try {
+            clear();
+            if (size == 0) {
+                return;
+            }
+            setDimension(dimension);
+            for (int block = 0; block * (long) rowsPerBlock < size; block++) {
+                blocks.add(allocateBlock(block, blockBytes()));
+            }
+            this.size = size;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Блок index на bytes байт (целое число строк). По умолчанию – прямая память, выровненная
+     * по 64 байта; прямая память обнулена, так что хвосты строк за размерностью уже нулевые.
+     * Новые блоки подкласса тоже должны быть заполнены нулями.
+     */
+    protected FloatBuffer allocateBlock(int index, int bytes) {
+        return ByteBuffer.allocateDirect(bytes + ALIGNMENT)
+                .alignedSlice(ALIGNMENT)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    /**
+     * Освобождает блоки; прямая память возвращается системе, когда сборщик мусора соберёт буферы.
+     */
+    @Override
+    public void removeAll() {
+        lock.writeLock().lock();
+        try {
+            clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void clear() {
+        blocks.clear();
+        ids.clear();
+        segments.clear();
+        inverseNorms = new float[0];
+        size = 0;
+        dimension = 0;
+    }
+
+    /**
+     * Сохраняет идентификатор и фрагмент строки row; вызывается под блокировкой записи.
+     */
+    protected void append(int row, String id, TextSegment segment) {
+        ids.add(id);
+        segments.add(segment);
+    }
+
+    protected String id(int row) {
+        return ids.get(row);
+    }
+
+    protected TextSegment segment(int row) {
+        return segments.get(row);
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        if (request.filter() != null) {
+            throw new UnsupportedOperationException("OffHeapEmbeddingStore не поддерживает фильтры");
+        }
+        int k = request.maxResults();
+        lock.readLock().lock();
+        try {
+            if (k <= 0 || size == 0) {
+                return new EmbeddingSearchResult<>(List.of());
+            }
+            float[] vector = request.queryEmbedding().vector();
+            if (vector.length != dimension) {
+                throw new IllegalArgumentException("Размерность запроса " + vector.length
+                        + " не совпадает с размерностью хранилища " + dimension);
+            }
+            // Запрос дополняется нулями до длины строки, для произвольных векторов – нормализуется
+            float scale = unitLength ? 1 : (float) (1 / Math.max(Math.sqrt(FlatEmbeddingStore.dot(vector, vector)), 1e-12));
+            float[] query = new float[stride];
+            for (int i = 0; i < dimension; i++) {
+                query[i] = vector[i] * scale;
+            }
+            TopK top = size <= ROWS_PER_TASK ? scan(query, 0, size, k) : pool.invoke(new ScanTask(query, 0, size, k));
+
+            List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(top.size);
+            while (top.size > 0) {
+                double score = RelevanceScore.fromCosineSimilarity(top.scores[0]);
+                int row = top.pop();
+                if (score >= request.minScore()) {
+                    matches.add(new EmbeddingMatch<>(score, id(row), new Embedding(read(row)), segment(row)));
+                }
+            }
+            Collections.reverse(matches);
+            return new EmbeddingSearchResult<>(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private float[] read(int row) {
+        float[] vector = new float[dimension];
+        blocks.get(row / rowsPerBlock).get((row % rowsPerBlock) * stride, vector);
+        return vector;
+    }
+
+    /**
+     * Перебор строк [from, to): порция строк копируется из блока в массив и сравнивается с запросом.
+     */
+    private TopK scan(float[] query, int from, int to, int k) {
+        TopK top = new TopK(k);
+        float[] tile = new float[TILE_ROWS * stride];
+        int row = from;
+        while (row < to) {
+            int inBlock = row % rowsPerBlock;
+            int rows = Math.min(Math.min(TILE_ROWS, to - row), rowsPerBlock - inBlock);
+            blocks.get(row / rowsPerBlock).get(inBlock * stride, tile, 0, rows * stride);
+            for (int r = 0; r < rows; r++) {
+                float similarity = SIMD
+                        ? VectorDot.dot(query, tile, r * stride, stride)
+                        : dot(query, tile, r * stride, stride);
+                if (!unitLength) {
+                    similarity *= inverseNorms[row + r];
+                }
+                top.offer(row + r, similarity);
+            }
+            row += rows;
+        }
+        return top;
+    }
+
+    /**
+     * Скалярный запасной вариант: четыре независимые суммы вместо одной цепочки сложений;
+     * length кратно 16.
+     */
+    private static float dot(float[] a, float[] b, int offset, int length) {
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        for (int i = 0; i < length; i += 4) {
+            s0 += a[i] * b[offset + i];
+            s1 += a[i + 1] * b[offset + i + 1];
+            s2 += a[i + 2] * b[offset + i + 2];
+            s3 += a[i + 3] * b[offset + i + 3];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Задача ForkJoin: диапазон строк делится пополам, пока не станет не больше {@link #ROWS_PER_TASK}.
+     */
+    private final class ScanTask extends RecursiveTask<TopK> {
+        private static final long serialVersionUID = 1L;
+        private final float[] query;
+        private final int from;
+        private final int to;
+        private final int k;
+
+        ScanTask(float[] query, int from, int to, int k) {
+            this.query = query;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                return scan(query, from, to, k);
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(query, from, middle, k);
+            left.fork();
+            TopK right = new ScanTask(query, middle, to, k).compute();
+            return right.merge(left.join());
+        }
+    }
+
+    /**
+     * Ограниченная минимальная куча k лучших строк: в вершине худшая из отобранных.
+     */
+    private static final class TopK {
+        final int[] rows;
+        final float[] scores;
+        int size;
+
+        TopK(int k) {
+            rows = new int[k];
+            scores = new float[k];
+        }
+
+        void offer(int row, float score) {
+            if (size < rows.length) {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (scores[parent] <= score) {
+                        break;
+                    }
+                    rows[i] = rows[parent];
+                    scores[i] = scores[parent];
+                    i = parent;
+                }
+                rows[i] = row;
+                scores[i] = score;
+            } else if (score > scores[0]) {
+                siftDown(row, score);
+            }
+        }
+
+        int pop() {
+            int top = rows[0];
+            size--;
+            if (size > 0) {
+                siftDown(rows[size], scores[size]);
+            }
+            return top;
+        }
+
+        private void siftDown(int row, float score) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] < scores[child]) {
+                    child++;
+                }
+                if (scores[child] >= score) {
+                    break;
+                }
+                rows[i] = rows[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            rows[i] = row;
+            scores[i] = score;
+        }
+
+        TopK merge(TopK other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.rows[i], other.scores[i]);
+            }
+            return this;
+        }
+    }
+}
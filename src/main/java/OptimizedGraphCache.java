@@ -0,0 +1,94 @@
+import ai.djl.repository.zoo.Criteria;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Сохранение оптимизированного графа ONNX рядом с исходной моделью.
+ * <p>
+ * При каждой загрузке ONNX Runtime заново выполняет оптимизации графа (свёртку констант, слияние
+ * узлов внимания и т.п.), что заметно удлиняет холодный старт. Здесь оптимизация выполняется
+ * один раз: граф сохраняется в файл {@code <имя>.optimized.onnx}, а при следующих запусках модель
+ * загружается из него с выключенными оптимизациями (optLevel = NO_OPT).
+ * <p>
+ * DJL не умеет передавать путь для сохранения оптимизированного графа, поэтому граф создаётся
+ * напрямую через API ONNX Runtime. Сохраняется уровень EXTENDED_OPT: оптимизации уровня ALL_OPT
+ * меняют раскладку данных под конкретный процессор и не переносимы между машинами.
+ * Файл пересоздаётся, если исходная модель новее него.
+ */
+public final class OptimizedGraphCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(OptimizedGraphCache.class);
+    private static final String SUFFIX = ".optimized.onnx";
+    private static volatile boolean enabled = true;
+
+    private OptimizedGraphCache() {
+    }
+
+    /**
+     * Включает или выключает использование сохранённых графов для всех моделей проекта.
+     */
+    public static void setEnabled(boolean enabled) {
+        OptimizedGraphCache.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Указывает в criteria файл модели: сохранённый оптимизированный граф (при необходимости создаёт его)
+     * или исходный файл, если кэш выключен или оптимизация не удалась.
+     *
+     * @param builder   criteria модели.
+     * @param modelDir  директория модели.
+     * @param modelName имя исходного файла модели, например "model.onnx".
+     */
+    public static <I, O> Criteria.Builder<I, O> apply(Criteria.Builder<I, O> builder, String modelDir,
+                                                      String modelName) {
+        if (!enabled) {
+            return builder.optModelName(modelName);
+        }
+        Path source = Paths.get(modelDir, modelName);
+        try {
+            Path optimized = ensureOptimized(source);
+            return builder.optModelName(optimized.getFileName().toString())
+                    .optOption("optLevel", "NO_OPT");
+        } catch (OrtException | IOException e) {
+            // Оптимизированный граф – лишь ускорение старта: при ошибке грузим исходную модель как раньше
+            logger.warn("Не удалось сохранить оптимизированный граф {}, загружается исходная модель", source, e);
+            return builder.optModelName(modelName);
+        }
+    }
+
+    /**
+     * Возвращает путь к оптимизированному графу, создавая его, если файла нет или он устарел.
+     */
+    public static synchronized Path ensureOptimized(Path source) throws OrtException, IOException {
+        String name = source.getFileName().toString();
+        String base = name.endsWith(".onnx") ? name.substring(0, name.length() - ".onnx".length()) : name;
+        Path optimized = source.resolveSibling(base + SUFFIX);
+        if (Files.exists(optimized)
+                && Files.getLastModifiedTime(optimized).compareTo(Files.getLastModifiedTime(source)) >= 0) {
+            return optimized;
+        }
+        // Пишем во временный файл и переименовываем: прерванный запуск не оставит обрезанный граф
+        Path tmp = source.resolveSibling(base + SUFFIX + ".tmp");
+        OrtEnvironment env = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.EXTENDED_OPT);
+            options.setOptimizedModelFilePath(tmp.toString());
+            env.createSession(source.toString(), options).close();
+        }
+        Files.move(tmp, optimized, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return optimized;
+    }
+}
@@ -0,0 +1,166 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Реализация {@link KVCache}, которая хранит выходы present.* прямо в виде тензоров ONNX Runtime.
+ * На следующем шаге они передаются модели как past_key_values без копирования в JVM.
+ */
+public class OrtKVCache implements KVCache {
+
+    private final NDManager manager;
+    private final int numLayers;
+    private final long numHeads;
+    private final long headDim;
+    private NDList past;
+    private int length;
+
+    /**
+     * @param parentManager менеджер, от которого создаётся собственный под-менеджер кэша.
+     * @param numLayers     число слоёв декодера.
+     * @param numHeads      число key/value голов внимания.
+     * @param headDim       размерность одной головы.
+     */
+    public OrtKVCache(NDManager parentManager, int numLayers, long numHeads, long headDim) {
+        this.manager = parentManager.newSubManager();
+        this.numLayers = numLayers;
+        this.numHeads = numHeads;
+        this.headDim = headDim;
+    }
+
+    @Override
+    public NDList pastKeyValues(NDManager stepManager) {
+        if (past != null) {
+            return past;
+        }
+        // Для первого шага длина кэша равна 0, поэтому форма: [1, numHeads, 0, headDim]
+        Shape emptyShape = new Shape(1, numHeads, 0, headDim);
+        NDList empty = new NDList(numLayers * 2);
+        for (int i = 0; i < numLayers * 2; i++) {
+            empty.add(stepManager.create(new float[0], emptyShape));
+        }
+        return empty;
+    }
+
+    @Override
+    public void update(NDList presents) {
+        if (presents.size() != numLayers * 2) {
+            throw new IllegalArgumentException("Ожидалось " + numLayers * 2
+                    + " тензоров present, получено " + presents.size());
+        }
+        // Переносим present-ы из менеджера шага, который закроется после predict, в менеджер кэша
+        presents.attach(manager);
+        if (past != null) {
+            past.close();
+        }
+        past = presents;
+        length = (int) presents.get(0).getShape().get(2);
+    }
+
+    /**
+     * Тензоры ONNX Runtime нельзя сузить на месте, поэтому первые newLength позиций копируются в новые тензоры.
+     * Каждая голова переносится одним блоком из содержимого тензора прямо в direct-буфер нового тензора,
+     * который ONNX Runtime использует без ещё одной копии. Стоимость всё равно пропорциональна длине кэша:
+     * для размеров Llama 3.2 1B около 40 мс на 1024 позиции (67 МБ), заметная доля шага при частых откатах.
+     */
+    @Override
+    public void truncate(int newLength) {
+        if (newLength >= length) {
+            return;
+        }
+        NDList truncated = new NDList(past.size());
+        Shape shape = new Shape(1, numHeads, newLength, headDim);
+        int srcHeadBytes = (int) (length * headDim * Float.BYTES);
+        int dstHeadBytes = (int) (newLength * headDim * Float.BYTES);
+        try {
+            for (NDArray array : past) {
+                ByteBuffer src = array.toByteBuffer();
+                ByteBuffer dst = ByteBuffer.allocateDirect((int) numHeads * dstHeadBytes).order(ByteOrder.nativeOrder());
+                for (int h = 0; h < numHeads; h++) {
+                    dst.put(h * dstHeadBytes, src, h * srcHeadBytes, dstHeadBytes);
+                }
+                truncated.add(manager.create(dst.asFloatBuffer(), shape));
+            }
+        } catch (RuntimeException e) {
+            truncated.close();
+            throw e;
+        }
+        past.close();
+        past = truncated;
+        length = newLength;
+    }
+
+    @Override
+    public float[] readPositions(int from, int to) {
+        int count = to - from;
+        int rowFloats = (int) (numHeads * headDim);
+        int stride = numLayers * 2 * rowFloats;
+        float[] data = new float[count * stride];
+        for (int j = 0; j < numLayers * 2; j++) {
+            FloatBuffer src = past.get(j).toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+            for (int h = 0; h < numHeads; h++) {
+                for (int t = 0; t < count; t++) {
+                    src.get((int) ((h * length + from + t) * headDim), data,
+                            (int) (t * stride + j * rowFloats + h * headDim), (int) headDim);
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Как и {@link #truncate(int)}, создаёт новые тензоры: старые позиции копируются, новые дописываются в конец.
+     */
+    @Override
+    public void appendPositions(float[] data, int count) {
+        int newLength = length + count;
+        int rowFloats = (int) (numHeads * headDim);
+        int stride = numLayers * 2 * rowFloats;
+        Shape shape = new Shape(1, numHeads, newLength, headDim);
+        float[] tensor = new float[(int) (numHeads * newLength * headDim)];
+        NDList appended = new NDList(numLayers * 2);
+        for (int j = 0; j < numLayers * 2; j++) {
+            FloatBuffer src = past == null
+                    ? null
+                    : past.get(j).toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+            for (int h = 0; h < numHeads; h++) {
+                int headStart = (int) (h * newLength * headDim);
+                if (src != null) {
+                    src.get((int) (h * length * headDim), tensor, headStart, (int) (length * headDim));
+                }
+                for (int t = 0; t < count; t++) {
+                    System.arraycopy(data, (int) (t * stride + j * rowFloats + h * headDim),
+                            tensor, (int) (headStart + (length + t) * headDim), (int) headDim);
+                }
+            }
+            appended.add(manager.create(FloatBuffer.wrap(tensor), shape));
+        }
+        if (past != null) {
+            past.close();
+        }
+        past = appended;
+        length = newLength;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return (long) numLayers * 2 * numHeads * length * headDim * Float.BYTES;
+    }
+
+    @Override
+    public void close() {
+        manager.close();
+        past = null;
+        length = 0;
+    }
+}
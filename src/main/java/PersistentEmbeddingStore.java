@@ -0,0 +1,529 @@
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Индекс эмбеддингов на диске: переживает перезапуск, открывается за время, не зависящее от числа
+ * векторов, поиск – как у {@link OffHeapEmbeddingStore}, только блоки матрицы отображены из файла.
+ * <p>
+ * Каталог индекса:
+ * <ul>
+ *     <li>vectors.bin – заголовок 64 байта (магическое число, версия формата, размерность,
+ *     число подтверждённых строк), затем матрица векторов блоками OffHeapEmbeddingStore;</li>
+ *     <li>offsets.bin – заголовок 8 байт, затем для каждой строки смещение её записи в segments.bin (long);</li>
+ *     <li>segments.bin – заголовок с идентификатором модели, затем записи [длина int][идентификатор,
+ *     текст фрагмента и метаданные];</li>
+ *     <li>documents.log – строки «размер, время изменения, путь» документов, загруженных целиком.</li>
+ * </ul>
+ * Все файлы только дописываются. При открытии читаются лишь заголовки и последняя запись, а матрица
+ * отображается в память и подгружается системой по мере обращения.
+ * <p>
+ * Устойчивость к сбоям: сначала дописываются векторы, смещения и записи фрагментов, они сбрасываются
+ * на диск, и только потом в заголовке обновляется число строк – одно 8-байтовое значение. Всё, что
+ * записано за подтверждённой границей, при открытии игнорируется и затирается следующими записями,
+ * поэтому оборванная запись индекс не портит. Строка documents.log дописывается после подтверждения
+ * всех фрагментов документа; оборванная последняя строка игнорируется.
+ * <p>
+ * Пока индекс открыт, его файлы заблокированы: второй экземпляр над тем же каталогом, в этом или другом
+ * процессе, не откроется и не затрёт чужие записи.
+ * <p>
+ * Индекс привязан к модели: открыть его с другим идентификатором модели нельзя. Векторы не единичной
+ * длины сохраняются нормализованными (косинусная близость от этого не меняется). Изменившийся документ
+ * загружается заново рядом со старыми фрагментами; чтобы убрать их, индекс очищается {@link #removeAll()}.
+ * <p>
+ * Класс закрыт для наследования: конструктор через restore вызывает переопределённые здесь методы
+ * хранилища, и подкласс получил бы эти вызовы до инициализации своих полей.
+ */
+public final class PersistentEmbeddingStore extends OffHeapEmbeddingStore implements AutoCloseable {
+
+    private static final int VECTORS_MAGIC = 0x454D4956; // "EMIV"
+    private static final int OFFSETS_MAGIC = 0x454D494F; // "EMIO"
+    private static final int SEGMENTS_MAGIC = 0x454D4953; // "EMIS"
+    private static final String DOCUMENTS_HEADER = "EMID 1\n";
+    private static final int FORMAT_VERSION = 1;
+    // 64 байта, чтобы матрица за заголовком оставалась выровненной
+    private static final int HEADER_BYTES = 64;
+    private static final int OFFSETS_HEADER_BYTES = 8;
+    private static final int DIMENSION_POSITION = 8;
+    private static final int COUNT_POSITION = 16;
+
+    // Типы значений метаданных в записи фрагмента
+    private static final byte STRING = 'S';
+    private static final byte INTEGER = 'I';
+    private static final byte LONG = 'L';
+    private static final byte FLOAT = 'F';
+    private static final byte DOUBLE = 'D';
+    private static final byte UUID_VALUE = 'U';
+
+    private final String modelId;
+    private final boolean unitLength;
+    private final FileChannel vectors;
+    private final FileChannel offsets;
+    private final FileChannel segments;
+    private final FileChannel documents;
+    private final MappedByteBuffer header;
+    // Отображённые блоки матрицы, по номеру блока
+    private final List<MappedByteBuffer> mappedBlocks = new ArrayList<>();
+    private final Set<String> documentKeys = new HashSet<>();
+    private final long segmentsStart;
+    private long segmentsEnd;
+    private int committed;
+
+    /**
+     * Открывает индекс в каталоге directory или создаёт пустой.
+     *
+     * @param directory  каталог индекса (создаётся, если его нет).
+     * @param modelId    идентификатор модели эмбеддингов ({@link LocalONNXEmbeddingModel#getModelId()}).
+     * @param unitLength добавляемые векторы и запросы имеют единичную длину.
+     * @throws IOException если файлы не удаётся открыть, они повреждены, заблокированы другим открытым
+     *                     индексом или индекс построен другой моделью.
+     */
+    public PersistentEmbeddingStore(Path directory, String modelId, boolean unitLength) throws IOException {
+        // Хранимые векторы всегда единичные: при необходимости они нормализуются в addAll
+        super(true);
+        this.modelId = modelId;
+        this.unitLength = unitLength;
+        Files.createDirectories(directory);
+        List<FileChannel> opened = new ArrayList<>();
+        try {
+            vectors = open(directory.resolve("vectors.bin"), opened);
+            offsets = open(directory.resolve("offsets.bin"), opened);
+            segments = open(directory.resolve("segments.bin"), opened);
+            documents = open(directory.resolve("documents.log"), opened);
+            byte[] model = modelId.getBytes(StandardCharsets.UTF_8);
+            segmentsStart = 3 * Integer.BYTES + model.length;
+            header = vectors.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            // Без магического числа индекс не был создан до конца: создаём заново
+            if (header.getInt(0) == 0) {
+                create(model);
+            } else {
+                load(directory);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (FileChannel channel : opened) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    private static FileChannel open(Path file, List<FileChannel> opened) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        opened.add(channel);
+        // Блокировка снимается при закрытии канала
+        boolean locked;
+        try {
+            locked = channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            // Файл уже открыт другим индексом этой же JVM
+            locked = false;
+        }
+        if (!locked) {
+            throw new IOException("Индекс эмбеддингов уже открыт: " + file);
+        }
+        return channel;
+    }
+
+    /**
+     * Записывает заголовки пустого индекса. Заголовок матрицы пишется последним: файлы без него
+     * при следующем открытии просто создаются заново.
+     */
+    private void create(byte[] model) throws IOException {
+        offsets.truncate(0);
+        segments.truncate(0);
+        documents.truncate(0);
+        write(offsets, 0, ByteBuffer.allocate(OFFSETS_HEADER_BYTES).putInt(OFFSETS_MAGIC).putInt(FORMAT_VERSION).flip());
+        write(segments, 0, ByteBuffer.allocate((int) segmentsStart)
+                .putInt(SEGMENTS_MAGIC).putInt(FORMAT_VERSION).putInt(model.length).put(model).flip());
+        write(documents, 0, ByteBuffer.wrap(DOCUMENTS_HEADER.getBytes(StandardCharsets.UTF_8)));
+        offsets.force(true);
+        segments.force(true);
+        documents.force(true);
+        header.putInt(DIMENSION_POSITION, 0).putLong(COUNT_POSITION, 0);
+        header.putInt(4, FORMAT_VERSION).putInt(0, VECTORS_MAGIC);
+        header.force();
+        segmentsEnd = segmentsStart;
+    }
+
+    /**
+     * Проверяет заголовки существующего индекса и восстанавливает подтверждённое состояние.
+     */
+    private void load(Path directory) throws IOException {
+        if (header.getInt(0) != VECTORS_MAGIC || header.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Неизвестный формат индекса эмбеддингов: " + directory);
+        }
+        ByteBuffer offsetsHeader = read(offsets, 0, OFFSETS_HEADER_BYTES);
+        ByteBuffer segmentsHeader = read(segments, 0, 3 * Integer.BYTES);
+        if (offsetsHeader.getInt() != OFFSETS_MAGIC || offsetsHeader.getInt() != FORMAT_VERSION
+                || segmentsHeader.getInt() != SEGMENTS_MAGIC || segmentsHeader.getInt() != FORMAT_VERSION) {
+            throw new IOException("Повреждены заголовки индекса эмбеддингов: " + directory);
+        }
+        byte[] stored = new byte[segmentsHeader.getInt()];
+        if (stored.length > segments.size()) {
+            throw new IOException("Повреждён заголовок индекса эмбеддингов: " + directory);
+        }
+        read(segments, 3 * Integer.BYTES, stored.length).get(stored);
+        String storedModel = new String(stored, StandardCharsets.UTF_8);
+        if (!storedModel.equals(modelId)) {
+            throw new IOException("Индекс " + directory + " построен моделью " + storedModel
+                    + ", а не " + modelId + "; удалите его, чтобы построить заново");
+        }
+
+        int dimension = header.getInt(DIMENSION_POSITION);
+        long count = header.getLong(COUNT_POSITION);
+        if (count < 0 || count > Integer.MAX_VALUE || (count > 0 && dimension <= 0)
+                || offsets.size() < OFFSETS_HEADER_BYTES + count * Long.BYTES) {
+            throw new IOException("Повреждён заголовок индекса эмбеддингов: " + count + " строк");
+        }
+        segmentsEnd = segmentsStart;
+        if (count > 0) {
+            // Конец подтверждённых записей – за последней записью
+            long last = read(offsets, OFFSETS_HEADER_BYTES + (count - 1) * Long.BYTES, Long.BYTES).getLong();
+            if (last < segmentsStart || last + Integer.BYTES > segments.size()) {
+                throw new IOException("Повреждено смещение последней записи индекса эмбеддингов: " + last);
+            }
+            segmentsEnd = last + Integer.BYTES + read(segments, last, Integer.BYTES).getInt();
+            if (segmentsEnd > segments.size()) {
+                throw new IOException("Повреждена последняя запись индекса эмбеддингов");
+            }
+        }
+        committed = (int) count;
+        restore(dimension, committed);
+        loadDocuments();
+    }
+
+    /**
+     * Читает подтверждённые строки documents.log; оборванная последняя строка отбрасывается.
+     */
+    private void loadDocuments() throws IOException {
+        String text = new String(read(documents, 0, (int) documents.size()).array(), StandardCharsets.UTF_8);
+        if (!text.startsWith(DOCUMENTS_HEADER)) {
+            throw new IOException("Неизвестный формат списка документов индекса эмбеддингов");
+        }
+        int end = text.lastIndexOf('\n') + 1;
+        for (String line : text.substring(DOCUMENTS_HEADER.length(), end).split("\n")) {
+            if (!line.isEmpty()) {
+                documentKeys.add(line);
+            }
+        }
+        documents.truncate(text.substring(0, end).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    public String getModelId() {
+        return modelId;
+    }
+
+    /**
+     * Блок матрицы отображается из vectors.bin сразу за заголовком; новый участок файла заполнен нулями.
+     */
+    @Override
+    protected FloatBuffer allocateBlock(int index, int bytes) {
+        try {
+            MappedByteBuffer block = vectors.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + (long) index * bytes, bytes);
+            if (index == mappedBlocks.size()) {
+                mappedBlocks.add(block);
+            } else {
+                mappedBlocks.set(index, block);
+            }
+            return block.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось отобразить блок индекса эмбеддингов", e);
+        }
+    }
+
+    /**
+     * Добавляет векторы и подтверждает их: после возврата они переживут сбой.
+     */
+    @Override
+    public synchronized void addAll(List<String> ids, List<Embedding> embeddings, List<TextSegment> embedded) {
+        List<Embedding> stored = embeddings;
+        if (!unitLength) {
+            stored = new ArrayList<>(embeddings.size());
+            for (Embedding embedding : embeddings) {
+                // normalize() меняет массив на месте, поэтому нормализуется копия
+                Embedding normalized = Embedding.from(embedding.vector().clone());
+                normalized.normalize();
+                stored.add(normalized);
+            }
+        }
+        try {
+            super.addAll(ids, stored, embedded);
+        } finally {
+            commit();
+        }
+    }
+
+    /**
+     * Хранилище считает векторы единичными, поэтому при unitLength = false запрос нормализуется здесь,
+     * иначе оценка была бы косинусом, умноженным на длину запроса.
+     */
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        if (unitLength) {
+            return super.search(request);
+        }
+        Embedding query = Embedding.from(request.queryEmbedding().vector().clone());
+        query.normalize();
+        return super.search(EmbeddingSearchRequest.builder()
+                .queryEmbedding(query)
+                .maxResults(request.maxResults())
+                .minScore(request.minScore())
+                .filter(request.filter())
+                .build());
+    }
+
+    @Override
+    protected void append(int row, String id, TextSegment segment) {
+        try {
+            byte[] record = encode(id, segment);
+            write(segments, segmentsEnd, ByteBuffer.allocate(Integer.BYTES + record.length)
+                    .putInt(record.length).put(record).flip());
+            write(offsets, OFFSETS_HEADER_BYTES + (long) row * Long.BYTES,
+                    ByteBuffer.allocate(Long.BYTES).putLong(segmentsEnd).flip());
+            segmentsEnd += Integer.BYTES + record.length;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось записать фрагмент в индекс эмбеддингов", e);
+        }
+    }
+
+    /**
+     * Сбрасывает на диск новые строки и только затем переносит границу подтверждённых данных.
+     */
+    private void commit() {
+        int count = size();
+        if (count == committed) {
+            return;
+        }
+        try {
+            for (int block = blockOf(committed); block <= blockOf(count - 1); block++) {
+                mappedBlocks.get(block).force();
+            }
+            offsets.force(false);
+            segments.force(false);
+            header.putInt(DIMENSION_POSITION, getDimension()).putLong(COUNT_POSITION, count);
+            header.force();
+            committed = count;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось сохранить индекс эмбеддингов", e);
+        }
+    }
+
+    /**
+     * Загружен ли документ в его нынешнем виде (тот же путь, размер и время изменения).
+     */
+    public synchronized boolean containsDocument(Path file) throws IOException {
+        return documentKeys.contains(documentKey(file));
+    }
+
+    /**
+     * Отмечает документ загруженным целиком; вызывается после того, как добавлены все его фрагменты.
+     *
+     * @param key ключ {@link #documentKey(Path)}, снятый до чтения файла: если файл изменился во время
+     *            загрузки, ключ не совпадёт с новой версией, и она будет загружена заново.
+     */
+    public synchronized void addDocument(String key) throws IOException {
+        if (documentKeys.add(key)) {
+            commit();
+            write(documents, documents.size(), ByteBuffer.wrap((key + "\n").getBytes(StandardCharsets.UTF_8)));
+            documents.force(false);
+        }
+    }
+
+    /**
+     * Ключ нынешней версии документа в documents.log: размер, время изменения и путь.
+     */
+    public static String documentKey(Path file) throws IOException {
+        return Files.size(file) + "\t" + Files.getLastModifiedTime(file).toMillis() + "\t" + file.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Очищает индекс: граница подтверждённых данных возвращается к началу, старые записи затираются новыми.
+     * Сначала на диске очищается список документов и только потом обнуляется число строк: при сбое между
+     * ними документы загрузятся заново, но ни один не будет считаться загруженным без своих фрагментов.
+     */
+    @Override
+    public synchronized void removeAll() {
+        super.removeAll();
+        try {
+            documents.truncate(DOCUMENTS_HEADER.length());
+            documents.force(false);
+            header.putLong(COUNT_POSITION, 0);
+            header.force();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось очистить индекс эмбеддингов", e);
+        }
+        mappedBlocks.clear();
+        documentKeys.clear();
+        segmentsEnd = segmentsStart;
+        committed = 0;
+    }
+
+    @Override
+    protected String id(int row) {
+        return decode(row).id;
+    }
+
+    @Override
+    protected TextSegment segment(int row) {
+        return decode(row).segment;
+    }
+
+    private StoredRow decode(int row) {
+        try {
+            long offset = read(offsets, OFFSETS_HEADER_BYTES + (long) row * Long.BYTES, Long.BYTES).getLong();
+            int length = read(segments, offset, Integer.BYTES).getInt();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    read(segments, offset + Integer.BYTES, length).array()));
+            StoredRow record = new StoredRow();
+            record.id = readString(in);
+            if (in.readBoolean()) {
+                String text = readString(in);
+                Map<String, Object> metadata = new LinkedHashMap<>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    String key = readString(in);
+                    byte type = in.readByte();
+                    switch (type) {
+                        case STRING:
+                            metadata.put(key, readString(in));
+                            break;
+                        case INTEGER:
+                            metadata.put(key, in.readInt());
+                            break;
+                        case LONG:
+                            metadata.put(key, in.readLong());
+                            break;
+                        case FLOAT:
+                            metadata.put(key, in.readFloat());
+                            break;
+                        case DOUBLE:
+                            metadata.put(key, in.readDouble());
+                            break;
+                        case UUID_VALUE:
+                            metadata.put(key, new UUID(in.readLong(), in.readLong()));
+                            break;
+                        default:
+                            throw new IOException("Неизвестный тип метаданных: " + type);
+                    }
+                }
+                record.segment = TextSegment.from(text, Metadata.from(metadata));
+            }
+            return record;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать фрагмент индекса эмбеддингов", e);
+        }
+    }
+
+    private static byte[] encode(String id, TextSegment segment) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, id);
+        out.writeBoolean(segment != null);
+        if (segment != null) {
+            writeString(out, segment.text());
+            Map<String, Object> metadata = segment.metadata().toMap();
+            out.writeInt(metadata.size());
+            for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+                writeString(out, entry.getKey());
+                Object value = entry.getValue();
+                if (value instanceof Integer) {
+                    out.writeByte(INTEGER);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Float) {
+                    out.writeByte(FLOAT);
+                    out.writeFloat((Float) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                } else if (value instanceof UUID) {
+                    out.writeByte(UUID_VALUE);
+                    out.writeLong(((UUID) value).getMostSignificantBits());
+                    out.writeLong(((UUID) value).getLeastSignificantBits());
+                } else {
+                    out.writeByte(STRING);
+                    writeString(out, String.valueOf(value));
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // writeUTF ограничен 64 КБ, поэтому строки пишутся как длина и байты UTF-8
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Неожиданный конец файла индекса эмбеддингов");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Подтверждает несохранённые строки и закрывает файлы.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (vectors.isOpen()) {
+            commit();
+            vectors.close();
+            offsets.close();
+            segments.close();
+            documents.close();
+        }
+    }
+
+    private static final class StoredRow {
+        String id;
+        TextSegment segment;
+    }
+}
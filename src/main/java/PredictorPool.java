@@ -0,0 +1,147 @@
+import ai.djl.inference.Predictor;
+import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.TranslateException;
+import ai.djl.translate.Translator;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Ограниченный пул предикторов одной модели.
+ * <p>
+ * {@link Predictor} нельзя использовать из нескольких потоков одновременно, а сессия ONNX Runtime
+ * внутри модели – можно. Поэтому каждый поток на время запроса получает собственный предиктор
+ * из пула и возвращает его после. Число предикторов ограничено размером пула; лишние потоки ждут
+ * в порядке очереди (справедливый семафор), так что ни один запрос не голодает.
+ * <p>
+ * Предикторы создаются лениво, при первой нехватке свободных.
+ *
+ * @param <I> тип входа модели.
+ * @param <O> тип выхода модели.
+ */
+public class PredictorPool<I, O> implements AutoCloseable {
+
+    private final Supplier<Predictor<I, O>> factory;
+    private final int size;
+    private final Semaphore permits;
+    private final ArrayDeque<Predictor<I, O>> idle = new ArrayDeque<>();
+    private boolean closed;
+
+    /**
+     * @param model модель, общая для всех предикторов пула.
+     * @param size  максимальное число одновременно выполняемых запросов.
+     */
+    public PredictorPool(ZooModel<I, O> model, int size) {
+        this(model::newPredictor, size);
+    }
+
+    /**
+     * Пул предикторов с другим переводчиком поверх той же модели, например пакетным:
+     * сессия ONNX Runtime не загружается второй раз.
+     *
+     * @param model      модель, общая для всех предикторов пула.
+     * @param translator переводчик предикторов пула.
+     * @param size       максимальное число одновременно выполняемых запросов.
+     */
+    public PredictorPool(ZooModel<?, ?> model, Translator<I, O> translator, int size) {
+        this(() -> model.newPredictor(translator), size);
+    }
+
+    private PredictorPool(Supplier<Predictor<I, O>> factory, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Размер пула должен быть не меньше 1: " + size);
+        }
+        this.factory = factory;
+        this.size = size;
+        this.permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Размер пула по умолчанию: одна четверть ядер машины, но не меньше одного предиктора.
+     */
+    public static int defaultSize() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    }
+
+    /**
+     * Число intra-op потоков ONNX Runtime на предиктор, при котором poolSize одновременных запросов
+     * занимают все ядра машины, но не больше. Передаётся в Criteria опцией "intraOpNumThreads".
+     */
+    public static int intraOpThreads(int poolSize) {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / poolSize);
+    }
+
+    /**
+     * Берёт предиктор из пула, при необходимости ожидая своей очереди.
+     * Предиктор нужно вернуть через {@link #release(Predictor)}.
+     */
+    public Predictor<I, O> acquire() throws TranslateException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TranslateException("Прервано ожидание свободного предиктора", e);
+        }
+        synchronized (this) {
+            if (closed) {
+                permits.release();
+                throw new TranslateException("Пул предикторов закрыт");
+            }
+            Predictor<I, O> predictor = idle.poll();
+            if (predictor == null) {
+                predictor = factory.get();
+            }
+            return predictor;
+        }
+    }
+
+    /**
+     * Возвращает предиктор в пул и пропускает следующий ожидающий поток.
+     */
+    public void release(Predictor<I, O> predictor) {
+        synchronized (this) {
+            if (closed) {
+                predictor.close();
+            } else {
+                idle.push(predictor);
+            }
+        }
+        permits.release();
+    }
+
+    /**
+     * Выполняет один запрос на предикторе из пула.
+     */
+    public O predict(I input) throws TranslateException {
+        Predictor<I, O> predictor = acquire();
+        try {
+            return predictor.predict(input);
+        } finally {
+            release(predictor);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Число потоков, ожидающих предиктор.
+     */
+    public int getQueueLength() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * Закрывает свободные предикторы; занятые закрываются при возврате.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Predictor<I, O> predictor : idle) {
+            predictor.close();
+        }
+        idle.clear();
+    }
+}
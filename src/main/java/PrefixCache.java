@@ -0,0 +1,247 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Кэш префиксов: сохраняет посчитанные KV-состояния для уже виденных последовательностей токенов,
+ * чтобы общий префикс (шаблон инструкции, предыдущие реплики диалога) не прогонялся через prefill заново.
+ * <p>
+ * Хранилище – radix-дерево по id токенов: каждое ребро несёт отрезок токенов и KV-состояние
+ * ровно этих позиций в раскладке {@link KVCache#readPositions(int, int)}. Общие префиксы разных
+ * последовательностей хранятся один раз. Объём ограничен бюджетом памяти; при превышении удаляются
+ * наименее давно использованные листья (LRU).
+ * <p>
+ * KV-состояние зависит от весов модели, поэтому у каждой модели должен быть свой экземпляр кэша.
+ */
+public class PrefixCache {
+
+    private final long memoryBudgetBytes;
+    private final Node root = new Node(null, new long[0], new float[0]);
+    // Число float на одну позицию; определяется при первой вставке
+    private int positionFloats;
+    private long usedBytes;
+    private long clock;
+
+    // Статистика
+    private long lookups;
+    private long lookupTokens;
+    private long hitTokens;
+    private long evictions;
+
+    /**
+     * @param memoryBudgetBytes максимальный объём KV-состояний в кэше, байт.
+     */
+    public PrefixCache(long memoryBudgetBytes) {
+        if (memoryBudgetBytes <= 0) {
+            throw new IllegalArgumentException("Бюджет памяти должен быть положительным: " + memoryBudgetBytes);
+        }
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Загружает в пустой cache KV-состояние самого длинного закэшированного префикса tokens.
+     * Последний токен никогда не восстанавливается: модели нужно подать хотя бы один токен,
+     * чтобы получить логиты для следующего.
+     *
+     * @return число восстановленных позиций; модели остаётся подать tokens начиная с этой позиции.
+     */
+    public synchronized int restore(List<Long> tokens, KVCache cache) {
+        if (cache.length() != 0) {
+            throw new IllegalArgumentException("Префикс восстанавливается только в пустой кэш");
+        }
+        int limit = tokens.size() - 1;
+        lookups++;
+        lookupTokens += Math.max(limit, 0);
+        // Собираем отрезки совпавшего пути, затем склеиваем их одним массивом
+        ArrayDeque<float[]> segments = new ArrayDeque<>();
+        Node node = root;
+        int matched = 0;
+        long now = ++clock;
+        while (matched < limit) {
+            Node child = node.children.get(tokens.get(matched));
+            if (child == null) {
+                break;
+            }
+            int m = commonLength(child.edge, tokens, matched, limit);
+            child.lastAccess = now;
+            segments.add(m == child.edge.length ? child.kv : Arrays.copyOf(child.kv, m * positionFloats));
+            matched += m;
+            if (m < child.edge.length) {
+                break;
+            }
+            node = child;
+        }
+        if (matched == 0) {
+            return 0;
+        }
+        float[] data = new float[matched * positionFloats];
+        int pos = 0;
+        for (float[] segment : segments) {
+            System.arraycopy(segment, 0, data, pos, segment.length);
+            pos += segment.length;
+        }
+        cache.appendPositions(data, matched);
+        hitTokens += matched;
+        return matched;
+    }
+
+    /**
+     * Запоминает KV-состояние префикса tokens, которое уже посчитано в cache.
+     * Сохраняются только позиции, которых ещё нет в дереве.
+     */
+    public synchronized void insert(List<Long> tokens, KVCache cache) {
+        int n = Math.min(tokens.size(), cache.length());
+        Node node = root;
+        int matched = 0;
+        long now = ++clock;
+        while (matched < n) {
+            Node child = node.children.get(tokens.get(matched));
+            if (child == null) {
+                break;
+            }
+            int m = commonLength(child.edge, tokens, matched, n);
+            child.lastAccess = now;
+            matched += m;
+            if (m < child.edge.length) {
+                if (matched == n) {
+                    // Последовательность целиком лежит внутри ребра – сохранять нечего
+                    return;
+                }
+                child = split(child, m);
+            }
+            node = child;
+        }
+        if (matched == n) {
+            return;
+        }
+        float[] kv = cache.readPositions(matched, n);
+        long bytes = (long) kv.length * Float.BYTES;
+        if (bytes > memoryBudgetBytes) {
+            return;
+        }
+        if (positionFloats == 0) {
+            positionFloats = kv.length / (n - matched);
+        }
+        long[] edge = new long[n - matched];
+        for (int i = 0; i < edge.length; i++) {
+            edge[i] = tokens.get(matched + i);
+        }
+        Node leaf = new Node(node, edge, kv);
+        leaf.lastAccess = now;
+        node.children.put(edge[0], leaf);
+        usedBytes += bytes;
+        evict();
+    }
+
+    /**
+     * Делит ребро узла после первых m токенов; возвращает новый промежуточный узел.
+     */
+    private Node split(Node child, int m) {
+        Node parent = child.parent;
+        Node middle = new Node(parent,
+                Arrays.copyOfRange(child.edge, 0, m),
+                Arrays.copyOfRange(child.kv, 0, m * positionFloats));
+        middle.lastAccess = child.lastAccess;
+        parent.children.put(middle.edge[0], middle);
+        child.edge = Arrays.copyOfRange(child.edge, m, child.edge.length);
+        child.kv = Arrays.copyOfRange(child.kv, m * positionFloats, child.kv.length);
+        child.parent = middle;
+        middle.children.put(child.edge[0], child);
+        return middle;
+    }
+
+    /**
+     * Удаляет наименее давно использованные листья, пока объём не уложится в бюджет.
+     * Внутренние узлы удаляются только после своих потомков, поэтому путь от корня всегда целый.
+     */
+    private void evict() {
+        while (usedBytes > memoryBudgetBytes) {
+            Node lru = findLruLeaf(root, null);
+            if (lru == null) {
+                return;
+            }
+            lru.parent.children.remove(lru.edge[0]);
+            usedBytes -= (long) lru.kv.length * Float.BYTES;
+            evictions++;
+        }
+    }
+
+    private static Node findLruLeaf(Node node, Node best) {
+        for (Node child : node.children.values()) {
+            if (child.children.isEmpty()) {
+                if (best == null || child.lastAccess < best.lastAccess) {
+                    best = child;
+                }
+            } else {
+                best = findLruLeaf(child, best);
+            }
+        }
+        return best;
+    }
+
+    private static int commonLength(long[] edge, List<Long> tokens, int from, int limit) {
+        int max = Math.min(edge.length, limit - from);
+        int i = 0;
+        while (i < max && edge[i] == tokens.get(from + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Доля токенов prompt-ов, KV-состояние которых было взято из кэша вместо prefill.
+     */
+    public synchronized double getHitRate() {
+        return lookupTokens == 0 ? 0 : (double) hitTokens / lookupTokens;
+    }
+
+    /**
+     * Полностью очищает кэш.
+     */
+    public synchronized void clear() {
+        root.children.clear();
+        usedBytes = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PrefixCache{used=%d/%d bytes, lookups=%d, hitRate=%.3f, evictions=%d}",
+                usedBytes, memoryBudgetBytes, lookups, getHitRate(), evictions);
+    }
+
+    /**
+     * Узел radix-дерева: ребро от родителя и KV-состояние его позиций.
+     */
+    private static class Node {
+
+        private Node parent;
+        private long[] edge;
+        private float[] kv;
+        private final Map<Long, Node> children = new HashMap<>();
+        private long lastAccess;
+
+        private Node(Node parent, long[] edge, float[] kv) {
+            this.parent = parent;
+            this.edge = edge;
+            this.kv = kv;
+        }
+    }
+}
@@ -2,27 +2,105 @@ import ai.djl.translate.TranslateException;
 import dev.langchain4j.data.segment.TextSegment;
 import java.util.regex.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class RAGChatbot {
     private final DocumentProcessor documentProcessor;
     private final ChatEngine chatEngine;
+    // number of synthetic requests per model before the chatbot is ready
+    private static final int DEFAULT_WARMUP_ITERATIONS = 2;
+    // suggested location of the optional on-disk vector index (see RAGChatbot(int, Path))
+    public static final String DEFAULT_INDEX_DIRECTORY = "src/main/resources/index";
+    // cold start timings: model loading and warmup
+    private final long loadMillis;
+    private final long warmupMillis;
 
     public RAGChatbot() throws Exception {
+        this(DEFAULT_WARMUP_ITERATIONS);
+    }
+
+    // documents are kept in the in-memory HNSW index and are embedded again after a restart
+    public RAGChatbot(int warmupIterations) throws Exception {
+        this(warmupIterations, null);
+    }
+
+    // indexDirectory: opt-in on-disk vector index, documents uploaded before a restart are answered from it
+    // without re-embedding. It is searched by an exact scan over memory-mapped vectors, which is slower than
+    // HNSW on large corpora; null keeps the in-memory HNSW index. An index that cannot be opened is an error
+    public RAGChatbot(int warmupIterations, Path indexDirectory) throws Exception {
+        long start = System.nanoTime();
         this.documentProcessor = new DocumentProcessor();
         this.chatEngine = new ChatEngine();
+        if (indexDirectory != null) {
+            documentProcessor.openIndex(indexDirectory);
+        }
+        long loaded = System.nanoTime();
+        // Warm up both models so the first user request does not pay ONNX Runtime lazy initialization
+        documentProcessor.warmup(warmupIterations);
+        chatEngine.warmup(warmupIterations);
+        this.loadMillis = (loaded - start) / 1_000_000;
+        this.warmupMillis = (System.nanoTime() - loaded) / 1_000_000;
+    }
+
+    // time spent loading (and, on the first start, optimizing) the ONNX models
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    public long getWarmupMillis() {
+        return warmupMillis;
+    }
+
+    // generation telemetry of the default chat model
+    public GenerationTelemetry getTelemetry() {
+        return chatEngine.getTelemetry(chatEngine.getDefaultModel());
     }
 
     public String uploadDocument(String filePath) {
         try {
+            if (documentProcessor.isDocumentIndexed(Paths.get(filePath))) {
+                return "Document is already in the index. " + filePath;
+            }
             documentProcessor.processDocument(filePath);
-            return "Document successfully processed. " + filePath;
-        } catch (IllegalArgumentException e) {
+            return String.format("Document successfully processed. %s (embedding cache hit rate %.1f%%)",
+                    filePath, documentProcessor.getLastDocumentHitRate() * 100);
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    // uploads every file of the directory through the concurrent ingestion pipeline
+    public String uploadDirectory(String directoryPath, Consumer<String> progress) {
+        try (Stream<Path> files = Files.list(Paths.get(directoryPath))) {
+            List<Path> paths = files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            return documentProcessor.processDocuments(paths, progress).toString();
+        } catch (IOException e) {
             return "Error: " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Error: upload interrupted";
         }
     }
 
     public String sendMessage(String message) {
+        return sendMessage(message, null);
+    }
+
+    // streaming variant: answer pieces are passed to onToken while the model is still generating
+    public String sendMessage(String message, Consumer<String> onToken) {
+        return sendMessage(message, chatEngine.getDefaultModel(), onToken);
+    }
+
+    // answers with the chat model registered under modelName (see ChatEngine.GPT2, LLAMA, SMOLLM2)
+    public String sendMessage(String message, String modelName, Consumer<String> onToken) {
         // Retrieve relevant document chunks based on the user's query
         List<TextSegment> relevantSegments = documentProcessor.retrieveRelevantContext(message, 5);
 
@@ -46,7 +124,7 @@ public class RAGChatbot {
 
         // Send the user's message along with the context to the chat engine
         try {
-            return chatEngine.sendMessage(message, context.toString());
+            return chatEngine.sendMessage(message, context.toString(), modelName, onToken);
         } catch (TranslateException e) {
             throw new RuntimeException(e);
         }
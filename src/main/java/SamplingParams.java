@@ -0,0 +1,72 @@
+/**
+ * Параметры сэмплирования следующего токена.
+ * <ul>
+ *     <li>temperature – масштаб логитов; значение &lt;= 0 означает жадный выбор (argmax);</li>
+ *     <li>topK – оставить k самых вероятных токенов; 0 – без ограничения;</li>
+ *     <li>topP – nucleus-фильтрация по накопленной вероятности; 1 – без фильтрации;</li>
+ *     <li>minP – отбросить токены с вероятностью меньше minP * p(max); 0 – без фильтрации.</li>
+ * </ul>
+ */
+public final class SamplingParams {
+
+    private final float temperature;
+    private final int topK;
+    private final float topP;
+    private final float minP;
+
+    public SamplingParams(float temperature, int topK, float topP, float minP) {
+        if (topK < 0) {
+            throw new IllegalArgumentException("topK не может быть отрицательным: " + topK);
+        }
+        if (topP <= 0f || topP > 1f) {
+            throw new IllegalArgumentException("topP должен лежать в (0, 1]: " + topP);
+        }
+        if (minP < 0f || minP > 1f) {
+            throw new IllegalArgumentException("minP должен лежать в [0, 1]: " + minP);
+        }
+        this.temperature = temperature;
+        this.topK = topK;
+        this.topP = topP;
+        this.minP = minP;
+    }
+
+    /**
+     * Nucleus-сэмплирование с заданной температурой без top-k и min-p.
+     */
+    public static SamplingParams topP(float temperature, float topP) {
+        return new SamplingParams(temperature, 0, topP, 0f);
+    }
+
+    /**
+     * Жадный выбор самого вероятного токена.
+     */
+    public static SamplingParams greedy() {
+        return new SamplingParams(0f, 1, 1f, 0f);
+    }
+
+    public float getTemperature() {
+        return temperature;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public float getTopP() {
+        return topP;
+    }
+
+    public float getMinP() {
+        return minP;
+    }
+
+    public boolean isGreedy() {
+        return temperature <= 0f || topK == 1;
+    }
+
+    @Override
+    public String toString() {
+        return "SamplingParams{temperature=" + temperature + ", topK=" + topK
+                + ", topP=" + topP + ", minP=" + minP + '}';
+    }
+}
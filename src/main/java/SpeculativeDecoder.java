@@ -0,0 +1,341 @@
+import ai.djl.translate.TranslateException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Спекулятивное декодирование: маленькая модель-черновик (например, SmolLM2-135M) предлагает
+ * несколько токенов, а целевая модель (Llama-3.2-1B) проверяет их все за один прямой проход.
+ * <p>
+ * Принятие токенов выполняется по стандартному правилу отклонения, поэтому распределение
+ * сгенерированного текста совпадает с распределением самой целевой модели:
+ * <ul>
+ *     <li>при общем словаре токен x с вероятностями p (цель) и q (черновик) принимается с вероятностью
+ *     min(1, p(x)/q(x)), а при отклонении следующий токен выбирается из max(0, p - q);</li>
+ *     <li>при разных словарях (SmolLM2 и Llama-3 токенизируют текст по-разному) текст черновика
+ *     перекодируется токенизатором цели, и каждое предложение считается вырожденным распределением
+ *     q = δ(x): токен принимается с вероятностью p(x), при отклонении выбирается из p без x.</li>
+ * </ul>
+ * Если приняты все предложения, из логитов той же проверки бесплатно выбирается ещё один токен.
+ * KV-кэши обеих моделей после отклонения откатываются через {@link KVCache#truncate(int)}.
+ * <p>
+ * Экземпляр не потокобезопасен: статистика накапливается по всем вызовам generate.
+ */
+public class SpeculativeDecoder {
+
+    private final DecoderModel target;
+    private final DecoderModel draft;
+    private final int numDraftTokens;
+    private final boolean sharedVocabulary;
+
+    // Статистика по всем вызовам generate
+    private long proposedTokens;
+    private long acceptedTokens;
+    private long generatedTokens;
+    private long targetPasses;
+    private long draftPasses;
+    private long generationNanos;
+
+    /**
+     * @param target         целевая модель, распределение которой сохраняется.
+     * @param draft          быстрая модель-черновик.
+     * @param numDraftTokens число токенов, предлагаемых черновиком за раунд.
+     */
+    public SpeculativeDecoder(DecoderModel target, DecoderModel draft, int numDraftTokens) {
+        if (numDraftTokens < 1) {
+            throw new IllegalArgumentException("numDraftTokens должно быть не меньше 1: " + numDraftTokens);
+        }
+        this.target = target;
+        this.draft = draft;
+        this.numDraftTokens = numDraftTokens;
+        this.sharedVocabulary = hasSharedVocabulary(target, draft);
+    }
+
+    /**
+     * Словари считаются общими, если совпадают их размер и токенизация контрольной строки.
+     */
+    private static boolean hasSharedVocabulary(DecoderModel target, DecoderModel draft) {
+        if (target.getVocabSize() != draft.getVocabSize()) {
+            return false;
+        }
+        String probe = "The quick brown fox, 1234 – быстрая лиса.";
+        long[] targetIds = target.getTokenizer().encode(probe, false, false).getIds();
+        long[] draftIds = draft.getTokenizer().encode(probe, false, false).getIds();
+        return Arrays.equals(targetIds, draftIds);
+    }
+
+    public boolean isSharedVocabulary() {
+        return sharedVocabulary;
+    }
+
+    /**
+     * Генерирует до maxNewTokens токенов целевой модели.
+     *
+     * @param sampler сэмплер целевой модели; черновик получает независимую копию через {@link TokenSampler#split()}.
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler) throws TranslateException {
+        return generate(prompt, maxNewTokens, sampler, null);
+    }
+
+    /**
+     * Генерирует до maxNewTokens токенов целевой модели.
+     *
+     * @param sampler сэмплер целевой модели; черновик получает независимую копию через {@link TokenSampler#split()}.
+     * @param onText  получатель фрагментов текста по мере принятия токенов (может быть null).
+     * @return prompt вместе со сгенерированным текстом, как у generate моделей.
+     */
+    public String generate(String prompt, int maxNewTokens, TokenSampler sampler, Consumer<String> onText)
+            throws TranslateException {
+        long start = System.nanoTime();
+        TokenSampler draftSampler = sampler.split();
+        int targetVocab = target.getVocabSize();
+        int draftVocab = draft.getVocabSize();
+        float[] p = new float[targetVocab];
+        // Распределения черновика для каждого предложения нужны только при общем словаре
+        float[][] q = new float[numDraftTokens][sharedVocabulary ? draftVocab : 0];
+        float[] draftScratch = sharedVocabulary ? null : new float[draftVocab];
+
+        List<Long> tokens = target.encodePrompt(prompt);
+        int promptLength = tokens.size();
+        List<Long> draftPrompt = sharedVocabulary ? null : draft.encodePrompt(prompt);
+        List<Long> draftTokens = new ArrayList<>(sharedVocabulary ? tokens : draftPrompt);
+        IncrementalDetokenizer detokenizer = onText == null
+                ? null
+                : new IncrementalDetokenizer(target.getTokenizer(), promptLength);
+
+        KVCache targetCache = target.newKVCache();
+        KVCache draftCache = draft.newKVCache();
+        try {
+            boolean finished = false;
+            while (!finished && tokens.size() - promptLength < maxNewTokens) {
+                int remaining = maxNewTokens - (tokens.size() - promptLength);
+
+                // 1. Черновик предлагает до numDraftTokens токенов по одному
+                int draftCount = Math.min(numDraftTokens, remaining);
+                List<Long> proposedDraft = new ArrayList<>(draftCount);
+                for (int i = 0; i < draftCount; i++) {
+                    float[] logits = draft.forward(
+                            draftTokens.subList(draftCache.length(), draftTokens.size()), draftCache);
+                    draftPasses++;
+                    float[] distribution = sharedVocabulary ? q[i] : draftScratch;
+                    draftSampler.distribution(logits, logits.length - draftVocab, draftVocab, distribution);
+                    long next = draftSampler.sampleFrom(distribution, draftVocab);
+                    if (next == draft.getEosId()) {
+                        break;
+                    }
+                    proposedDraft.add(next);
+                    draftTokens.add(next);
+                }
+
+                // 2. Предложения в словаре цели
+                List<Long> proposed = sharedVocabulary
+                        ? proposedDraft
+                        : retokenize(draftTokens, draftTokens.size() - proposedDraft.size(), remaining);
+                proposedTokens += proposed.size();
+
+                // 3. Цель проверяет все предложения одним проходом: логиты строки j предсказывают токен j+1
+                List<Long> fed = new ArrayList<>(tokens.subList(targetCache.length(), tokens.size()));
+                fed.addAll(proposed);
+                float[] logits = target.forward(fed, targetCache);
+                targetPasses++;
+                int firstRow = fed.size() - 1 - proposed.size();
+
+                int accepted = 0;
+                long next = -1;
+                for (int i = 0; i < proposed.size(); i++) {
+                    sampler.distribution(logits, (firstRow + i) * targetVocab, targetVocab, p);
+                    int x = (int) (long) proposed.get(i);
+                    float acceptProbability = sharedVocabulary ? Math.min(1f, p[x] / q[i][x]) : p[x];
+                    if (sampler.nextFloat() < acceptProbability) {
+                        accepted++;
+                        continue;
+                    }
+                    // Отклонение: выбор из остаточного распределения
+                    if (sharedVocabulary) {
+                        float residualMass = 0f;
+                        for (int v = 0; v < targetVocab; v++) {
+                            p[v] = Math.max(0f, p[v] - q[i][v]);
+                            residualMass += p[v];
+                        }
+                        if (residualMass <= 0f) {
+                            // p == q с точностью до округления: остаток пуст, подходит само p
+                            sampler.distribution(logits, (firstRow + i) * targetVocab, targetVocab, p);
+                        }
+                    } else {
+                        p[x] = 0f;
+                    }
+                    next = sampler.sampleFrom(p, targetVocab);
+                    break;
+                }
+                acceptedTokens += accepted;
+                if (accepted == proposed.size()) {
+                    // Все предложения приняты: бонусный токен из последней строки проверки
+                    sampler.distribution(logits, (firstRow + accepted) * targetVocab, targetVocab, p);
+                    next = sampler.sampleFrom(p, targetVocab);
+                }
+
+                // 4. Принятые токены и новый токен цели добавляются до EOS или лимита
+                List<Long> newTokens = new ArrayList<>(proposed.subList(0, accepted));
+                newTokens.add(next);
+                for (long token : newTokens) {
+                    if (token == target.getEosId() || tokens.size() - promptLength >= maxNewTokens) {
+                        finished = true;
+                        break;
+                    }
+                    tokens.add(token);
+                    generatedTokens++;
+                    if (detokenizer != null) {
+                        String piece = detokenizer.next(tokens);
+                        if (!piece.isEmpty()) {
+                            onText.accept(piece);
+                        }
+                    }
+                }
+
+                // 5. Откат кэшей: у цели валидны все позиции, кроме последнего токена,
+                //    черновик синхронизируется с принятым текстом по общему префиксу
+                targetCache.truncate(tokens.size() - 1);
+                List<Long> synced = sharedVocabulary ? tokens : draftView(draftPrompt, tokens, promptLength);
+                int common = commonPrefix(draftTokens, synced);
+                draftCache.truncate(Math.min(common, synced.size() - 1));
+                draftTokens = new ArrayList<>(synced);
+            }
+        } finally {
+            targetCache.close();
+            draftCache.close();
+        }
+
+        if (detokenizer != null) {
+            String rest = detokenizer.flush(tokens);
+            if (!rest.isEmpty()) {
+                onText.accept(rest);
+            }
+        }
+        generationNanos += System.nanoTime() - start;
+        long[] ids = tokens.stream().mapToLong(Long::longValue).toArray();
+        return target.getTokenizer().decode(ids, true);
+    }
+
+    /**
+     * Перекодирует текст предложений черновика (токены draftTokens начиная с from) токенизатором цели.
+     */
+    private List<Long> retokenize(List<Long> draftTokens, int from, int limit) {
+        List<Long> result = new ArrayList<>();
+        if (from >= draftTokens.size()) {
+            return result;
+        }
+        String before = decode(draft, draftTokens, 0, from);
+        String all = decode(draft, draftTokens, 0, draftTokens.size());
+        if (!all.startsWith(before)) {
+            return result;
+        }
+        String text = all.substring(before.length());
+        // Незавершённый многобайтовый символ в конце не перекодируется
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == '�') {
+            end--;
+        }
+        for (long id : target.getTokenizer().encode(text.substring(0, end), false, false).getIds()) {
+            if (result.size() == Math.min(limit, numDraftTokens)) {
+                break;
+            }
+            result.add(id);
+        }
+        return result;
+    }
+
+    /**
+     * Последовательность черновика для текущего текста цели: prompt черновика и перекодированное продолжение.
+     */
+    private List<Long> draftView(List<Long> draftPrompt, List<Long> tokens, int promptLength) {
+        List<Long> view = new ArrayList<>(draftPrompt);
+        String generated = decode(target, tokens, promptLength, tokens.size());
+        for (long id : draft.getTokenizer().encode(generated, false, false).getIds()) {
+            view.add(id);
+        }
+        return view;
+    }
+
+    private static String decode(DecoderModel model, List<Long> tokens, int from, int to) {
+        long[] ids = new long[to - from];
+        for (int i = from; i < to; i++) {
+            ids[i - from] = tokens.get(i);
+        }
+        return model.getTokenizer().decode(ids, true);
+    }
+
+    private static int commonPrefix(List<Long> a, List<Long> b) {
+        int n = Math.min(a.size(), b.size());
+        int i = 0;
+        while (i < n && a.get(i).equals(b.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    public long getProposedTokens() {
+        return proposedTokens;
+    }
+
+    public long getAcceptedTokens() {
+        return acceptedTokens;
+    }
+
+    public long getGeneratedTokens() {
+        return generatedTokens;
+    }
+
+    public long getTargetPasses() {
+        return targetPasses;
+    }
+
+    public long getDraftPasses() {
+        return draftPasses;
+    }
+
+    /**
+     * Доля предложенных черновиком токенов, принятых целевой моделью.
+     */
+    public double getAcceptanceRate() {
+        return proposedTokens == 0 ? 0 : (double) acceptedTokens / proposedTokens;
+    }
+
+    /**
+     * Сколько токенов в среднем даёт один проход целевой модели (без спекуляции – ровно 1).
+     */
+    public double getTokensPerTargetPass() {
+        return targetPasses == 0 ? 0 : (double) generatedTokens / targetPasses;
+    }
+
+    public double getTokensPerSecond() {
+        return generationNanos == 0 ? 0 : generatedTokens * 1e9 / generationNanos;
+    }
+
+    /**
+     * Ускорение относительно обычной генерации целевой моделью.
+     *
+     * @param baselineTokensPerSecond скорость генерации той же целевой модели без черновика.
+     */
+    public double speedupOver(double baselineTokensPerSecond) {
+        return baselineTokensPerSecond <= 0 ? 0 : getTokensPerSecond() / baselineTokensPerSecond;
+    }
+
+    public void resetStats() {
+        proposedTokens = 0;
+        acceptedTokens = 0;
+        generatedTokens = 0;
+        targetPasses = 0;
+        draftPasses = 0;
+        generationNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SpeculativeDecoder{k=%d, sharedVocabulary=%b, acceptanceRate=%.3f, "
+                        + "tokensPerTargetPass=%.2f, tokensPerSecond=%.1f, targetPasses=%d, draftPasses=%d}",
+                numDraftTokens, sharedVocabulary, getAcceptanceRate(), getTokensPerTargetPass(),
+                getTokensPerSecond(), targetPasses, draftPasses);
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Инкрементальный поиск стоп-последовательностей в потоке сгенерированного текста.
+ * <p>
+ * Фрагменты приходят от {@link IncrementalDetokenizer} по одному токену, поэтому стоп-строка
+ * (например, "\nUser:") может оказаться разрезанной между несколькими токенами. Хвост текста,
+ * который может оказаться началом стоп-строки, придерживается до следующего фрагмента.
+ * Так получатель никогда не увидит начало стоп-строки, а генерация останавливается сразу после
+ * токена, на котором она завершилась.
+ */
+public class StopSequenceMatcher {
+
+    private final List<String> stopSequences;
+    // Текст, ещё не переданный получателю (возможное начало стоп-строки)
+    private final StringBuilder pending = new StringBuilder();
+    // Весь выданный текст
+    private final StringBuilder text = new StringBuilder();
+    private String matched;
+
+    /**
+     * @param stopSequences стоп-строки; пустой список – текст передаётся без задержки.
+     */
+    public StopSequenceMatcher(List<String> stopSequences) {
+        for (String stop : stopSequences) {
+            if (stop.isEmpty()) {
+                throw new IllegalArgumentException("Стоп-последовательность не может быть пустой");
+            }
+        }
+        this.stopSequences = List.copyOf(stopSequences);
+    }
+
+    public boolean hasStopSequences() {
+        return !stopSequences.isEmpty();
+    }
+
+    /**
+     * Принимает очередной фрагмент текста и передаёт в onText часть, которая точно не входит в стоп-строку.
+     *
+     * @param piece  новый фрагмент.
+     * @param onText получатель текста (может быть null).
+     * @return true, если найдена стоп-строка и генерацию нужно остановить.
+     */
+    public boolean offer(String piece, Consumer<String> onText) {
+        if (matched != null) {
+            return true;
+        }
+        if (piece.isEmpty()) {
+            return false;
+        }
+        pending.append(piece);
+        String buffered = pending.toString();
+
+        // Самое раннее вхождение любой стоп-строки
+        int matchAt = -1;
+        for (String stop : stopSequences) {
+            int index = buffered.indexOf(stop);
+            if (index >= 0 && (matchAt < 0 || index < matchAt)) {
+                matchAt = index;
+                matched = stop;
+            }
+        }
+        if (matchAt >= 0) {
+            emit(buffered.substring(0, matchAt), onText);
+            pending.setLength(0);
+            return true;
+        }
+
+        // Придерживаем самый длинный хвост, совпадающий с началом какой-либо стоп-строки
+        int hold = 0;
+        for (String stop : stopSequences) {
+            for (int k = Math.min(stop.length() - 1, buffered.length()); k > hold; k--) {
+                if (buffered.regionMatches(buffered.length() - k, stop, 0, k)) {
+                    hold = k;
+                    break;
+                }
+            }
+        }
+        emit(buffered.substring(0, buffered.length() - hold), onText);
+        pending.delete(0, buffered.length() - hold);
+        return false;
+    }
+
+    /**
+     * Выдаёт придержанный хвост в конце генерации, если стоп-строка так и не встретилась.
+     */
+    public void flush(Consumer<String> onText) {
+        if (matched == null) {
+            emit(pending.toString(), onText);
+        }
+        pending.setLength(0);
+    }
+
+    private void emit(String piece, Consumer<String> onText) {
+        if (!piece.isEmpty()) {
+            text.append(piece);
+            if (onText != null) {
+                onText.accept(piece);
+            }
+        }
+    }
+
+    /**
+     * Найденная стоп-строка или null.
+     */
+    public String getMatched() {
+        return matched;
+    }
+
+    public boolean isStopped() {
+        return matched != null;
+    }
+
+    /**
+     * Весь выданный текст – сгенерированное продолжение без стоп-строки.
+     */
+    public String getText() {
+        return text.toString();
+    }
+}
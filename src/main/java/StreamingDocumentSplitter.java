@@ -0,0 +1,447 @@
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.DocumentSplitter;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.document.splitter.DocumentBySentenceSplitter;
+import dev.langchain4j.data.document.splitter.DocumentByWordSplitter;
+import dev.langchain4j.data.segment.TextSegment;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Потоковое разбиение текстового файла на фрагменты без чтения его в память целиком.
+ * <p>
+ * Файл читается через отображение в память окнами по {@link #MAP_BYTES} байт и декодируется из UTF-8
+ * порциями; границы абзацев ищутся по мере чтения, а готовые фрагменты выдаются лениво через
+ * {@link Segments}. В памяти одновременно находятся только текущий абзац, порция декодированного текста
+ * и собираемый фрагмент, поэтому расход кучи не зависит от размера файла. Абзац, который заведомо длиннее
+ * фрагмента, не копится целиком: он сразу делится на предложения, и в памяти остаются только последние
+ * из них, которые могут продолжиться в следующей порции.
+ * <p>
+ * Результат совпадает с DocumentByParagraphSplitter(chunkSize, chunkOverlap) над тем же файлом,
+ * загруженным FileSystemDocumentLoader: тот же разделитель абзацев, та же сборка абзацев во фрагменты
+ * до chunkSize символов, то же перекрытие из последних предложений (до chunkOverlap символов),
+ * слишком длинные абзацы так же делятся DocumentBySentenceSplitter, метаданные фрагментов – имя файла,
+ * директория и порядковый номер. Единственное расхождение – текст длиннее {@link #LONG_SENTENCE_CHARS}
+ * символов без единого конца предложения: он делится по словам на границе такого куска.
+ */
+public class StreamingDocumentSplitter {
+
+    // Размер окна отображения файла
+    static final int MAP_BYTES = 64 << 20;
+    // Размер порции декодированного текста
+    private static final int DECODE_CHARS = 64 << 10;
+    // Разделитель абзацев DocumentByParagraphSplitter: пустая строка, лишние пробелы не учитываются
+    private static final Pattern PARAGRAPH_SEPARATOR = Pattern.compile("\\s*(?>\\R)\\s*(?>\\R)\\s*");
+    private static final String PARAGRAPH_DELIMITER = "\n\n";
+    // Разделитель предложений DocumentBySentenceSplitter
+    private static final String SENTENCE_DELIMITER = " ";
+    // Сколько последних найденных предложений длинного абзаца ждут следующей порции: граница последнего
+    // может сдвинуться от продолжения текста, а предпоследнего – от контекста, который видит детектор.
+    // По той же причине перед ними остаётся уже собранное предложение: от текста слева граница тоже зависит
+    private static final int HELD_SENTENCES = 2;
+    // Предел текста длинного абзаца без завершённых предложений, после которого он делится принудительно
+    static final int LONG_SENTENCE_CHARS = DECODE_CHARS;
+    private static final String INDEX = "index";
+
+    private final int chunkSize;
+    private final int chunkOverlap;
+    private final int mapBytes;
+    // Деление слишком длинных абзацев, как у DocumentByParagraphSplitter по умолчанию
+    private final DocumentBySentenceSplitter subSplitter;
+    // Деление слишком длинных предложений, как у DocumentBySentenceSplitter по умолчанию
+    private final DocumentByWordSplitter wordSplitter;
+    // Разбиение на предложения для перекрытия; размеры фрагментов для split(String) не важны
+    private final DocumentBySentenceSplitter sentenceSplitter;
+
+    /**
+     * @param chunkSize    максимальный размер фрагмента, символов.
+     * @param chunkOverlap максимальный размер перекрытия соседних фрагментов, символов.
+     */
+    public StreamingDocumentSplitter(int chunkSize, int chunkOverlap) {
+        this(chunkSize, chunkOverlap, MAP_BYTES);
+    }
+
+    StreamingDocumentSplitter(int chunkSize, int chunkOverlap, int mapBytes) {
+        if (chunkSize <= 0 || chunkOverlap < 0) {
+            throw new IllegalArgumentException("Неверные размеры фрагмента: " + chunkSize + ", " + chunkOverlap);
+        }
+        // Окно должно вмещать хотя бы один символ UTF-8 (до 4 байт)
+        if (mapBytes < 4) {
+            throw new IllegalArgumentException("Окно отображения слишком мало: " + mapBytes);
+        }
+        this.chunkSize = chunkSize;
+        this.chunkOverlap = chunkOverlap;
+        this.mapBytes = mapBytes;
+        this.subSplitter = new DocumentBySentenceSplitter(chunkSize, chunkOverlap);
+        this.wordSplitter = new DocumentByWordSplitter(chunkSize, chunkOverlap);
+        this.sentenceSplitter = new DocumentBySentenceSplitter(1, 0);
+    }
+
+    /**
+     * Открывает файл для потокового разбиения. Фрагменты читаются по мере вызова next();
+     * после использования поток нужно закрыть.
+     */
+    public Segments open(Path file) throws IOException {
+        return new Segments(file);
+    }
+
+    /**
+     * Ленивая последовательность фрагментов одного файла.
+     */
+    public final class Segments implements Iterator<TextSegment>, AutoCloseable {
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private final Metadata metadata;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer chars = CharBuffer.allocate(DECODE_CHARS);
+        private MappedByteBuffer window;
+        // Позиция файла, с которой отображено текущее окно
+        private long windowStart;
+        private boolean endOfInput;
+
+        // Прочитанный текст, в котором ещё не найден конец абзаца
+        private final StringBuilder pending = new StringBuilder();
+        private final Matcher separator = PARAGRAPH_SEPARATOR.matcher(pending);
+        // Начало пробельных символов в конце pending: раньше него разделителей нет, поиск продолжается отсюда
+        private int scanFrom;
+        // Готовые фрагменты, ещё не отданные вызывающему
+        private final ArrayDeque<TextSegment> ready = new ArrayDeque<>();
+
+        // Сборка абзацев во фрагменты (как DocumentByParagraphSplitter)
+        private final Assembler paragraphs = new Assembler(PARAGRAPH_DELIMITER, subSplitter);
+        // Сборка предложений недочитанного длинного абзаца (как subSplitter); null – такого абзаца нет
+        private Assembler sentences;
+        // Текст длинного абзаца начиная с последнего собранного предложения
+        private final StringBuilder longParagraph = new StringBuilder();
+        // Длина уже собранного начала longParagraph (контекст для детектора предложений)
+        private int sentencesFed;
+        private String lastEmitted;
+        private int index;
+        private boolean finished;
+
+        private Segments(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.fileSize = channel.size();
+            this.metadata = new Metadata()
+                    .put(Document.FILE_NAME, file.getFileName().toString())
+                    .put(Document.ABSOLUTE_DIRECTORY_PATH, file.toAbsolutePath().getParent().toString());
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (ready.isEmpty() && !finished) {
+                try {
+                    advance();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return !ready.isEmpty();
+        }
+
+        @Override
+        public TextSegment next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return ready.poll();
+        }
+
+        /**
+         * Читает очередную порцию текста и обрабатывает все абзацы, конец которых в ней найден.
+         */
+        private void advance() throws IOException {
+            if (endOfInput) {
+                // Остаток после последнего разделителя – последний абзац
+                acceptParagraph(pending.toString());
+                pending.setLength(0);
+                paragraphs.finish();
+                finished = true;
+                return;
+            }
+            readChars();
+            int consumed = 0;
+            // Разделитель состоит только из пробельных символов, поэтому текст до пробелов в конце
+            // прошлой порции уже просмотрен и не сканируется заново
+            boolean found = separator.find(scanFrom);
+            while (found) {
+                // Разделитель в конце прочитанного может продолжиться пробелами следующей порции
+                if (separator.end() == pending.length() && !endOfInput) {
+                    break;
+                }
+                acceptParagraph(pending.substring(consumed, separator.start()));
+                consumed = separator.end();
+                found = separator.find();
+            }
+            pending.delete(0, consumed);
+            scanFrom = trailingSpaceStart(pending);
+            if (sentences != null || scanFrom > chunkSize) {
+                // Абзац заведомо не поместится во фрагмент: прочитанное сразу делится на предложения,
+                // и pending не растёт до размера абзаца
+                continueLongParagraph(pending.substring(0, scanFrom));
+                pending.delete(0, scanFrom);
+                scanFrom = 0;
+            }
+        }
+
+        /**
+         * Декодирует следующую порцию файла в pending, переотображая окно по мере продвижения.
+         */
+        private void readChars() throws IOException {
+            long position = window == null ? 0 : windowStart + window.position();
+            if (window == null
+                    || window.remaining() < 4 && windowStart + window.limit() < fileSize) {
+                // Новое окно начинается с первого недекодированного байта: символ на границе окон не теряется
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(mapBytes, fileSize - position));
+            }
+            boolean lastWindow = windowStart + window.limit() >= fileSize;
+            chars.clear();
+            decoder.decode(window, chars, lastWindow);
+            if (lastWindow && !window.hasRemaining()) {
+                decoder.flush(chars);
+                endOfInput = true;
+            }
+            chars.flip();
+            pending.append(chars);
+        }
+
+        /**
+         * Обрабатывает абзац, конец которого найден: добавляет его к фрагменту или завершает длинный абзац.
+         */
+        private void acceptParagraph(String part) {
+            if (sentences == null) {
+                paragraphs.accept(part);
+                return;
+            }
+            longParagraph.append(part);
+            acceptSentences(true);
+            sentences.finish();
+            sentences = null;
+            paragraphs.endLongPart();
+        }
+
+        /**
+         * Добавляет прочитанное начало абзаца, который длиннее фрагмента, и собирает его завершённые предложения.
+         */
+        private void continueLongParagraph(String text) {
+            if (sentences == null) {
+                sentences = new Assembler(SENTENCE_DELIMITER, wordSplitter);
+                // subSplitter получил бы абзац вместе с началом фрагмента, без пробелов по краям
+                longParagraph.append(paragraphs.startLongPart());
+                longParagraph.append(text);
+                int start = 0;
+                while (start < longParagraph.length() && longParagraph.charAt(start) <= ' ') {
+                    start++;
+                }
+                longParagraph.delete(0, start);
+            } else {
+                longParagraph.append(text);
+            }
+            acceptSentences(false);
+        }
+
+        /**
+         * Делит накопленный текст длинного абзаца на предложения и собирает во фрагменты ещё не собранные.
+         * Пока абзац не дочитан, последние предложения остаются в longParagraph до следующей порции.
+         */
+        private void acceptSentences(boolean last) {
+            String text = last ? longParagraph.toString().trim() : longParagraph.toString();
+            String[] detected = sentenceSplitter.split(text);
+            int complete = last ? detected.length : detected.length - HELD_SENTENCES;
+            int start = 0;
+            int end = 0;
+            for (int i = 0; i < complete; i++) {
+                start = text.indexOf(detected[i], end);
+                end = start + detected[i].length();
+                if (start >= sentencesFed) {
+                    sentences.accept(detected[i]);
+                } else if (end > sentencesFed) {
+                    sentences.accept(text.substring(sentencesFed, end).trim());
+                }
+                sentencesFed = Math.max(sentencesFed, end);
+            }
+            if (last) {
+                longParagraph.setLength(0);
+                sentencesFed = 0;
+            } else if (complete > 0) {
+                longParagraph.delete(0, start);
+                sentencesFed -= start;
+            } else if (longParagraph.length() - sentencesFed > LONG_SENTENCE_CHARS) {
+                // Текст без концов предложений: собирается как одно предложение до последнего пробела,
+                // чтобы память и повторное разбиение не росли вместе с ним
+                int cut = text.length();
+                while (cut > sentencesFed && text.charAt(cut - 1) > ' ') {
+                    cut--;
+                }
+                if (cut == sentencesFed) {
+                    cut = text.length();
+                }
+                sentences.accept(text.substring(sentencesFed, cut).trim());
+                longParagraph.delete(0, cut);
+                sentencesFed = 0;
+            }
+        }
+
+        private void emit(String text) {
+            lastEmitted = text;
+            ready.add(TextSegment.from(text, metadata.copy().put(INDEX, String.valueOf(index++))));
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+
+        /**
+         * Сборка частей текста во фрагменты до chunkSize символов; та же логика, что в
+         * HierarchicalDocumentSplitter.split: части, не поместившиеся во фрагмент, делит subSplitter.
+         */
+        private final class Assembler {
+
+            private final String delimiter;
+            private final DocumentSplitter subSplitter;
+            private String segment = "";
+            private String overlap;
+
+            private Assembler(String delimiter, DocumentSplitter subSplitter) {
+                this.delimiter = delimiter;
+                this.subSplitter = subSplitter;
+            }
+
+            void accept(String part) {
+                if (part.isEmpty()) {
+                    // Пустые части String.split даёт только в начале текста; на фрагменты они не влияют
+                    return;
+                }
+                int partSize = part.length();
+                if (hasSpaceFor(segment, partSize, delimiter)) {
+                    segment = join(segment, part, delimiter);
+                    return;
+                }
+                if (flush() && hasSpaceFor(segment, partSize, delimiter)) {
+                    segment = join(segment, part, delimiter);
+                    return;
+                }
+                // Часть не помещается во фрагмент: её делит subSplitter
+                segment = join(segment, part, delimiter);
+                for (TextSegment sub : subSplitter.split(Document.from(segment.trim()))) {
+                    emit(sub.text());
+                }
+                endLongPart();
+            }
+
+            /**
+             * Готовит сборку к части, которая заведомо не поместится во фрагмент и будет поделена по мере
+             * чтения. Возвращает начало текста, который subSplitter получил бы вместе с этой частью.
+             */
+            String startLongPart() {
+                flush();
+                return segment.isEmpty() ? "" : segment + delimiter;
+            }
+
+            /**
+             * Продолжает сборку после поделенной части: фрагмент начинается с перекрытия последнего выданного.
+             */
+            void endLongPart() {
+                overlap = overlapFrom(lastEmitted, delimiter);
+                segment = overlap;
+            }
+
+            void finish() {
+                String segmentText = segment.trim();
+                if (!segment.isEmpty() && !segmentText.equals(overlap)) {
+                    emit(segmentText);
+                }
+            }
+
+            /**
+             * Выдаёт собранный фрагмент, если он не состоит из одного перекрытия; фрагмент начинается заново
+             * с перекрытия. Возвращает, был ли выдан фрагмент.
+             */
+            private boolean flush() {
+                if (segment.isEmpty()) {
+                    return false;
+                }
+                String segmentText = segment.trim();
+                if (segmentText.equals(overlap)) {
+                    return false;
+                }
+                emit(segmentText);
+                overlap = overlapFrom(segmentText, delimiter);
+                segment = overlap;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Начало пробельных символов в конце текста (включая переводы строк, которые допускает \R).
+     */
+    private static int trailingSpaceStart(CharSequence text) {
+        int start = text.length();
+        while (start > 0 && isSeparatorChar(text.charAt(start - 1))) {
+            start--;
+        }
+        return start;
+    }
+
+    private static boolean isSeparatorChar(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r'
+                || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Перекрытие: последние предложения фрагмента общей длиной до chunkOverlap символов.
+     * Как и в HierarchicalDocumentSplitter, предложения перекрытия соединяются разделителем своего уровня:
+     * у абзацев – пустой строкой, у предложений – пробелом.
+     */
+    private String overlapFrom(String segmentText, String delimiter) {
+        if (chunkOverlap == 0) {
+            return "";
+        }
+        String[] sentences = sentenceSplitter.split(segmentText);
+        String result = "";
+        for (int i = sentences.length - 1; i >= 0; i--) {
+            if (!hasSpaceFor(result, sentences[i].length(), delimiter, chunkOverlap)) {
+                break;
+            }
+            result = result.isEmpty() ? sentences[i] : sentences[i] + delimiter + result;
+        }
+        return result.trim();
+    }
+
+    private boolean hasSpaceFor(String segment, int size, String delimiter) {
+        return hasSpaceFor(segment, size, delimiter, chunkSize);
+    }
+
+    private static boolean hasSpaceFor(String segment, int size, String delimiter, int maxSize) {
+        int total = size;
+        if (!segment.isEmpty()) {
+            total += segment.length() + delimiter.length();
+        }
+        return total <= maxSize;
+    }
+
+    private static String join(String segment, String part, String delimiter) {
+        return segment.isEmpty() ? part : segment + delimiter + part;
+    }
+}
@@ -0,0 +1,358 @@
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrayAdapter;
+import ai.djl.ndarray.NDList;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Сэмплер следующего токена по логитам, общий для всех моделей.
+ * <p>
+ * Работает на переиспользуемых примитивных буферах: не боксирует индексы, не сортирует весь словарь
+ * и не создаёт новых массивов на каждом токене. Для top-k/top-p используется частичный отбор
+ * (quickselect), жадный режим сводится к одному проходу argmax.
+ * <p>
+ * Логиты модели формы [1, seq_len, vocab] можно передать прямо в {@link #sampleLastPosition(NDArray)}:
+ * если движок умеет сам выделять строку и выполнять top-k/argmax, в JVM попадают только k кандидатов.
+ * Для ONNX Runtime, на котором работают модели проекта, это не так: в JVM копируется весь тензор.
+ * <p>
+ * Экземпляр не потокобезопасен и рассчитан на один запрос: у каждого запроса свой ГСЧ,
+ * поэтому с фиксированным seed генерация воспроизводима.
+ */
+public class TokenSampler {
+
+    // Начальный размер окна при поиске nucleus: при низкой температуре он почти всегда достаточен
+    private static final int NUCLEUS_WINDOW = 32;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final SamplingParams params;
+    private final SplittableRandom random;
+    private int[] indices = new int[0];
+    private float[] weights = new float[0];
+    // Логиты последней позиции, скопированные из тензора модели
+    private float[] lastLogits = new float[0];
+    // Границы диапазона элементов, равных опорному, после последнего partition
+    private int equalFrom;
+    private int equalTo;
+    // Суммарный вес кандидатов после последнего filter
+    private float mass;
+
+    public TokenSampler(SamplingParams params) {
+        this(params, new SplittableRandom());
+    }
+
+    public TokenSampler(SamplingParams params, long seed) {
+        this(params, new SplittableRandom(seed));
+    }
+
+    private TokenSampler(SamplingParams params, SplittableRandom random) {
+        this.params = params;
+        this.random = random;
+    }
+
+    public SamplingParams getParams() {
+        return params;
+    }
+
+    /**
+     * Новый сэмплер с теми же параметрами и независимым ГСЧ, порождённым от ГСЧ этого сэмплера:
+     * результат остаётся воспроизводимым, если воспроизводим исходный сэмплер.
+     */
+    public TokenSampler split() {
+        return new TokenSampler(params, random.split());
+    }
+
+    /**
+     * Выбирает следующий токен по логитам модели формы [1, seq_len, vocab] (или [seq_len, vocab]),
+     * используя только последнюю позицию.
+     * <p>
+     * Если массив принадлежит движку с собственными операциями (например, PyTorch), argmax и top-k
+     * выполняются на стороне движка, и в JVM переходят лишь k идентификаторов и логитов.
+     * Для тензоров ONNX Runtime таких операций нет, а Java API ONNX Runtime отдаёт содержимое тензора только
+     * целиком: {@code toByteBuffer()} копирует весь [1, seq_len, vocab]. Срез {@code logits.get(0, -1)}
+     * здесь не помогает – его выполняет запасной движок, в который тензор тоже копируется целиком.
+     * На шагах декодирования seq_len = 1, и копия равна одной строке; после prefill длинного prompt-а
+     * копируется весь выход, но один раз на запрос: у Llama 3.2 (vocab 128256) это около 0,5 ГБ
+     * на 1024 токена prompt-а. Избавиться от копии можно только выходом с последней позицией в самом
+     * ONNX-графе. В собственный буфер сэмплера переносится только строка последней позиции,
+     * float[] на весь выход не создаётся.
+     */
+    public int sampleLastPosition(NDArray logits) {
+        long[] dims = logits.getShape().getShape();
+        int vocab = (int) dims[dims.length - 1];
+        int seqLength = dims.length > 1 ? (int) dims[dims.length - 2] : 1;
+        if (!(logits instanceof NDArrayAdapter)) {
+            try (NDArray last = logits.reshape(-1, vocab).get(seqLength - 1)) {
+                if (params.isGreedy()) {
+                    return (int) last.argMax().getLong();
+                }
+                if (params.getTopK() > 0 && params.getTopK() < vocab) {
+                    NDList top = last.topK(params.getTopK(), 0, true, true);
+                    float[] values = top.get(0).toFloatArray();
+                    long[] ids = top.get(1).toLongArray();
+                    top.close();
+                    return (int) ids[sample(values, 0, values.length)];
+                }
+            }
+        }
+        if (lastLogits.length < vocab) {
+            lastLogits = new float[vocab];
+        }
+        logits.toByteBuffer()
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer()
+                .get((seqLength - 1) * vocab, lastLogits, 0, vocab);
+        return sample(lastLogits, 0, vocab);
+    }
+
+    /**
+     * Выбирает следующий токен по логитам всего словаря.
+     */
+    public int sample(float[] logits) {
+        return sample(logits, 0, logits.length);
+    }
+
+    /**
+     * Выбирает следующий токен по логитам logits[offset, offset + length).
+     *
+     * @return индекс токена в диапазоне [0, length).
+     */
+    public int sample(float[] logits, int offset, int length) {
+        if (params.isGreedy()) {
+            return argMax(logits, offset, length);
+        }
+        int count = filter(logits, offset, length);
+        float r = random.nextFloat() * mass;
+        float cumulative = 0f;
+        for (int i = 0; i < count; i++) {
+            cumulative += weights[indices[i]];
+            if (cumulative >= r) {
+                return indices[i];
+            }
+        }
+        return indices[count - 1];
+    }
+
+    /**
+     * Записывает в out нормированное распределение, из которого {@link #sample(float[], int, int)}
+     * выбрал бы токен: с учётом температуры, top-k, top-p и min-p (в жадном режиме – вырожденное).
+     *
+     * @param out массив длиной не меньше length.
+     */
+    public void distribution(float[] logits, int offset, int length, float[] out) {
+        Arrays.fill(out, 0, length, 0f);
+        if (params.isGreedy()) {
+            out[argMax(logits, offset, length)] = 1f;
+            return;
+        }
+        int count = filter(logits, offset, length);
+        for (int i = 0; i < count; i++) {
+            out[indices[i]] = weights[indices[i]] / mass;
+        }
+    }
+
+    /**
+     * Выбирает индекс из произвольного (не обязательно нормированного) распределения probs[0, length).
+     */
+    public int sampleFrom(float[] probs, int length) {
+        float sum = 0f;
+        for (int i = 0; i < length; i++) {
+            sum += probs[i];
+        }
+        float r = random.nextFloat() * sum;
+        float cumulative = 0f;
+        int last = 0;
+        for (int i = 0; i < length; i++) {
+            if (probs[i] > 0f) {
+                cumulative += probs[i];
+                last = i;
+                if (cumulative >= r) {
+                    return i;
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Равномерное случайное число из [0, 1) из ГСЧ запроса.
+     */
+    public float nextFloat() {
+        return random.nextFloat();
+    }
+
+    /**
+     * Оставляет в indices[0, count) кандидатов после температуры, top-k, min-p и top-p,
+     * их ненормированные веса – в weights, суммарный вес – в {@link #mass}.
+     *
+     * @return число кандидатов count.
+     */
+    private int filter(float[] logits, int offset, int length) {
+        ensureCapacity(length);
+
+        // Ненормированные вероятности exp((l - max) / T); у самого вероятного токена вес равен 1
+        float max = logits[offset + argMax(logits, offset, length)];
+        float invTemperature = 1f / params.getTemperature();
+        for (int i = 0; i < length; i++) {
+            float x = (logits[offset + i] - max) * invTemperature;
+            // Ниже этого порога exp всё равно даёт 0 во float – не тратим на него время
+            weights[i] = x < -88f ? 0f : (float) Math.exp(x);
+            indices[i] = i;
+        }
+        int count = length;
+
+        // top-k: частичный отбор k лучших без полной сортировки
+        if (params.getTopK() > 0 && params.getTopK() < count) {
+            select(0, count - 1, params.getTopK());
+            count = params.getTopK();
+        }
+
+        // min-p: порог относительно максимального веса, который равен 1
+        if (params.getMinP() > 0f) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (weights[indices[i]] >= params.getMinP()) {
+                    indices[kept++] = indices[i];
+                }
+            }
+            count = kept;
+        }
+
+        mass = 0f;
+        for (int i = 0; i < count; i++) {
+            mass += weights[indices[i]];
+        }
+
+        // top-p: упорядочиваем кандидатов окнами растущего размера, пока не наберём нужную массу
+        if (params.getTopP() < 1f) {
+            float target = params.getTopP() * mass;
+            float cumulative = 0f;
+            int from = 0;
+            int window = NUCLEUS_WINDOW;
+            int nucleus = count;
+            while (from < count) {
+                int to = Math.min(count, from + window);
+                if (to < count) {
+                    select(from, count - 1, to - from);
+                }
+                sortDescending(from, to - 1);
+                int i = from;
+                while (i < to && cumulative < target) {
+                    cumulative += weights[indices[i++]];
+                }
+                if (cumulative >= target) {
+                    nucleus = i;
+                    break;
+                }
+                from = to;
+                window *= 4;
+            }
+            count = nucleus;
+            mass = cumulative;
+        }
+        return count;
+    }
+
+    /**
+     * Индекс максимального логита (жадный выбор).
+     */
+    public static int argMax(float[] logits, int offset, int length) {
+        int best = 0;
+        float bestValue = logits[offset];
+        for (int i = 1; i < length; i++) {
+            if (logits[offset + i] > bestValue) {
+                bestValue = logits[offset + i];
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private void ensureCapacity(int length) {
+        if (indices.length < length) {
+            indices = new int[length];
+            weights = new float[length];
+        }
+    }
+
+    /**
+     * Quickselect: переставляет indices[lo..hi] так, что первые k позиций занимают k элементов
+     * с наибольшими весами (в произвольном порядке).
+     */
+    private void select(int lo, int hi, int k) {
+        int target = lo + k - 1;
+        while (lo < hi) {
+            partition(lo, hi);
+            if (target < equalFrom) {
+                hi = equalFrom - 1;
+            } else if (target > equalTo) {
+                lo = equalTo + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Трёхпутевое разбиение по убыванию веса с опорным элементом – медианой трёх.
+     * После вызова indices[equalFrom..equalTo] равны опорному, левее – больше, правее – меньше.
+     * При низкой температуре большинство весов равно нулю, и двухпутевое разбиение деградирует до O(n²).
+     */
+    private void partition(int lo, int hi) {
+        float a = weights[indices[lo]];
+        float b = weights[indices[(lo + hi) >>> 1]];
+        float c = weights[indices[hi]];
+        float pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+        int lt = lo;
+        int gt = hi;
+        int i = lo;
+        while (i <= gt) {
+            float w = weights[indices[i]];
+            if (w > pivot) {
+                swap(lt++, i++);
+            } else if (w < pivot) {
+                swap(i, gt--);
+            } else {
+                i++;
+            }
+        }
+        equalFrom = lt;
+        equalTo = gt;
+    }
+
+    /**
+     * Сортировка indices[lo..hi] по убыванию веса.
+     */
+    private void sortDescending(int lo, int hi) {
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            partition(lo, hi);
+            int leftHi = equalFrom - 1;
+            int rightLo = equalTo + 1;
+            // Рекурсия по меньшей части, цикл по большей – глубина стека O(log n)
+            if (leftHi - lo < hi - rightLo) {
+                sortDescending(lo, leftHi);
+                lo = rightLo;
+            } else {
+                sortDescending(rightLo, hi);
+                hi = leftHi;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            int current = indices[i];
+            float w = weights[current];
+            int j = i - 1;
+            while (j >= lo && weights[indices[j]] < w) {
+                indices[j + 1] = indices[j];
+                j--;
+            }
+            indices[j + 1] = current;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int tmp = indices[i];
+        indices[i] = indices[j];
+        indices[j] = tmp;
+    }
+}
@@ -0,0 +1,29 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Скалярное произведение на Vector API (jdk.incubator.vector).
+ * <p>
+ * Без подключённого модуля (--add-modules jdk.incubator.vector) класс не загружается, поэтому
+ * вызывающий код обращается к нему, только проверив наличие модуля.
+ */
+final class VectorDot {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private VectorDot() {
+    }
+
+    /**
+     * Произведение a[0..length) и b[offset..offset+length); length кратно 16 – числу полос
+     * самого широкого вида (512 бит), а значит и любого более узкого.
+     */
+    static float dot(float[] a, float[] b, int offset, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        for (int i = 0; i < length; i += SPECIES.length()) {
+            sum = FloatVector.fromArray(SPECIES, a, i).fma(FloatVector.fromArray(SPECIES, b, offset + i), sum);
+        }
+        return sum.reduceLanes(VectorOperators.ADD);
+    }
+}
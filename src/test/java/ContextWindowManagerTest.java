@@ -0,0 +1,73 @@
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContextWindowManagerTest {
+
+    private static HuggingFaceTokenizer tokenizer;
+
+    @BeforeAll
+    static void loadTokenizer() throws IOException {
+        tokenizer = HuggingFaceTokenizer.newInstance(Paths.get("src/main/resources/allmpnetbasev2/tokenizer.json"));
+    }
+
+    @AfterAll
+    static void closeTokenizer() {
+        tokenizer.close();
+    }
+
+    @Test
+    void dropsOldContextBeforeRecentTurns() {
+        ContextWindowManager window = new ContextWindowManager(tokenizer, 60, 1);
+        String context = "context " + "fact ".repeat(20);
+        window.nextPrompt(context + "first?", "first?");
+        window.completeTurn("one");
+        window.nextPrompt(context + "second?", "second?");
+        window.completeTurn("two");
+        List<ChatMessage> history = window.nextPrompt("third?", "third?");
+
+        assertTrue(window.getLastPromptTokens() <= 60, String.valueOf(window.getLastPromptTokens()));
+        // Старая реплика осталась без контекста, последняя завершённая – дословно
+        assertEquals("first?", ((UserMessage) history.get(0)).singleText());
+        assertEquals(context + "second?", ((UserMessage) history.get(2)).singleText());
+    }
+
+    // Вопрос длиннее бюджета: остаётся его конец, и prompt укладывается в бюджет
+    @Test
+    void truncatesQuestionLongerThanBudget() {
+        ContextWindowManager window = new ContextWindowManager(tokenizer, 40, 2);
+        window.nextPrompt("earlier?", "earlier?");
+        window.completeTurn("answer");
+        String question = "word ".repeat(100) + "what is the final question here?";
+        List<ChatMessage> history = window.nextPrompt("context " + question, question);
+
+        assertEquals(1, history.size());
+        String text = ((UserMessage) history.get(0)).singleText();
+        assertTrue(text.endsWith("what is the final question here?"), text);
+        assertTrue(text.length() < question.length());
+        assertTrue(window.getLastPromptTokens() <= 40, String.valueOf(window.getLastPromptTokens()));
+        assertEquals(window.getLastPromptTokens(), 1 + count("Assistant:") + count("User: " + text + "\n"));
+    }
+
+    @Test
+    void rejectsBudgetBelowTemplate() {
+        ContextWindowManager window = new ContextWindowManager(tokenizer, 3, 2);
+        assertThrows(IllegalArgumentException.class, () -> window.nextPrompt("question", "question"));
+        assertTrue(window.getPromptTokenCounts().isEmpty());
+    }
+
+    private static int count(String text) {
+        return tokenizer.encode(text, false, false).getIds().length;
+    }
+}
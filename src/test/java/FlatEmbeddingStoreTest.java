@@ -0,0 +1,118 @@
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlatEmbeddingStoreTest {
+
+    private static final int DIMENSION = 32;
+    private static final int SIZE = 500;
+
+    // Векторы произвольной длины: тот же порядок и оценки, что у InMemoryEmbeddingStore
+    @Test
+    void matchesInMemoryStore() {
+        Random random = new Random(1);
+        List<Embedding> embeddings = randomEmbeddings(random, SIZE, false);
+        List<TextSegment> segments = segments(SIZE);
+        FlatEmbeddingStore store = new FlatEmbeddingStore(false);
+        InMemoryEmbeddingStore<TextSegment> reference = new InMemoryEmbeddingStore<>();
+        store.addAll(embeddings, segments);
+        reference.addAll(embeddings, segments);
+
+        for (int q = 0; q < 20; q++) {
+            Embedding query = randomEmbeddings(random, 1, false).get(0);
+            assertSameMatches(search(reference, query, 10, 0), search(store, query, 10, 0));
+        }
+    }
+
+    // Единичные векторы сравниваются скалярным произведением, результат тот же
+    @Test
+    void unitLengthScoresByDotProduct() {
+        Random random = new Random(2);
+        List<Embedding> embeddings = randomEmbeddings(random, SIZE, true);
+        List<TextSegment> segments = segments(SIZE);
+        FlatEmbeddingStore unit = new FlatEmbeddingStore(true);
+        FlatEmbeddingStore general = new FlatEmbeddingStore(false);
+        unit.addAll(embeddings, segments);
+        general.addAll(embeddings, segments);
+
+        for (int q = 0; q < 20; q++) {
+            Embedding query = randomEmbeddings(random, 1, true).get(0);
+            assertSameMatches(search(general, query, 5, 0), search(unit, query, 5, 0));
+        }
+    }
+
+    @Test
+    void appliesMinScoreAndRemoveAll() {
+        FlatEmbeddingStore store = new FlatEmbeddingStore(true);
+        store.add(Embedding.from(new float[]{1, 0}), TextSegment.from("same"));
+        store.add(Embedding.from(new float[]{-1, 0}), TextSegment.from("opposite"));
+        Embedding query = Embedding.from(new float[]{1, 0});
+
+        List<EmbeddingMatch<TextSegment>> matches = search(store, query, 2, 0.9);
+        assertEquals(1, matches.size());
+        assertEquals("same", matches.get(0).embedded().text());
+        assertEquals(1.0, matches.get(0).score(), 1e-6);
+
+        store.removeAll();
+        assertEquals(0, store.size());
+        assertTrue(search(store, query, 2, 0).isEmpty());
+    }
+
+    private static void assertSameMatches(List<EmbeddingMatch<TextSegment>> expected,
+                                          List<EmbeddingMatch<TextSegment>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).embedded(), actual.get(i).embedded());
+            assertEquals(expected.get(i).score(), actual.get(i).score(), 1e-5);
+        }
+    }
+
+    private static List<EmbeddingMatch<TextSegment>> search(EmbeddingStore<TextSegment> store, Embedding query,
+                                                            int k, double minScore) {
+        return store.search(EmbeddingSearchRequest.builder()
+                .queryEmbedding(query)
+                .maxResults(k)
+                .minScore(minScore)
+                .build()).matches();
+    }
+
+    private static List<Embedding> randomEmbeddings(Random random, int count, boolean unitLength) {
+        List<Embedding> embeddings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] vector = new float[DIMENSION];
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] = (float) random.nextGaussian();
+            }
+            Embedding embedding = Embedding.from(vector);
+            if (unitLength) {
+                embedding.normalize();
+            } else {
+                // Разные длины: оценка не должна от них зависеть
+                for (int d = 0; d < DIMENSION; d++) {
+                    vector[d] *= 0.1f + 10 * random.nextFloat();
+                }
+            }
+            embeddings.add(embedding);
+        }
+        return embeddings;
+    }
+
+    private static List<TextSegment> segments(int count) {
+        List<TextSegment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            segments.add(TextSegment.from("segment " + i));
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,147 @@
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HnswEmbeddingStoreTest {
+
+    private static final int DIMENSION = 32;
+    private static final int SIZE = 5000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    // Большая пачка вставляется параллельно, поэтому тест проверяет и конкурентное построение графа
+    @Test
+    void recallAgainstExactSearch() {
+        Random random = new Random(1);
+        List<Embedding> embeddings = clusteredEmbeddings(random, SIZE);
+        List<String> ids = ids(SIZE);
+        HnswEmbeddingStore hnsw = new HnswEmbeddingStore(true);
+        FlatEmbeddingStore exact = new FlatEmbeddingStore(true);
+        hnsw.addAll(ids, embeddings, null);
+        exact.addAll(ids, embeddings, null);
+        assertEquals(SIZE, hnsw.size());
+
+        List<Embedding> queries = clusteredEmbeddings(random, QUERIES);
+        double recall = recall(hnsw, exact, queries);
+        assertTrue(recall >= 0.95, "recall@" + K + " = " + recall);
+    }
+
+    // Пачки меньше порога вставляются по одной в вызывающем потоке
+    @Test
+    void recallWithSequentialInsertsAndArbitraryLengths() {
+        Random random = new Random(2);
+        int size = 2000;
+        List<Embedding> embeddings = clusteredEmbeddings(random, size);
+        for (Embedding embedding : embeddings) {
+            float scale = 0.1f + 10 * random.nextFloat();
+            float[] vector = embedding.vector();
+            for (int d = 0; d < vector.length; d++) {
+                vector[d] *= scale;
+            }
+        }
+        List<String> ids = ids(size);
+        HnswEmbeddingStore hnsw = new HnswEmbeddingStore(false);
+        FlatEmbeddingStore exact = new FlatEmbeddingStore(false);
+        for (int i = 0; i < size; i += 10) {
+            hnsw.addAll(ids.subList(i, i + 10), embeddings.subList(i, i + 10), null);
+        }
+        exact.addAll(ids, embeddings, null);
+
+        double recall = recall(hnsw, exact, clusteredEmbeddings(random, QUERIES));
+        assertTrue(recall >= 0.95, "recall@" + K + " = " + recall);
+    }
+
+    // Пока вершин меньше efSearch, поиск просматривает их все и совпадает с точным
+    @Test
+    void smallStoreIsExact() {
+        Random random = new Random(3);
+        List<Embedding> embeddings = clusteredEmbeddings(random, 50);
+        List<TextSegment> segments = new ArrayList<>();
+        for (int i = 0; i < embeddings.size(); i++) {
+            segments.add(TextSegment.from("segment " + i));
+        }
+        HnswEmbeddingStore hnsw = new HnswEmbeddingStore(true);
+        FlatEmbeddingStore exact = new FlatEmbeddingStore(true);
+        hnsw.addAll(embeddings, segments);
+        exact.addAll(embeddings, segments);
+
+        Embedding query = clusteredEmbeddings(random, 1).get(0);
+        List<EmbeddingMatch<TextSegment>> expected = search(exact, query, 5);
+        List<EmbeddingMatch<TextSegment>> actual = search(hnsw, query, 5);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).embedded(), actual.get(i).embedded());
+            assertEquals(expected.get(i).score(), actual.get(i).score(), 1e-5);
+        }
+
+        hnsw.removeAll();
+        assertEquals(0, hnsw.size());
+        assertTrue(search(hnsw, query, 5).isEmpty());
+    }
+
+    private static double recall(EmbeddingStore<TextSegment> approximate, EmbeddingStore<TextSegment> exact,
+                                 List<Embedding> queries) {
+        long hits = 0;
+        long expected = 0;
+        for (Embedding query : queries) {
+            Set<String> truth = new HashSet<>();
+            search(exact, query, K).forEach(match -> truth.add(match.embeddingId()));
+            for (EmbeddingMatch<TextSegment> match : search(approximate, query, K)) {
+                if (truth.contains(match.embeddingId())) {
+                    hits++;
+                }
+            }
+            expected += truth.size();
+        }
+        return (double) hits / expected;
+    }
+
+    private static List<EmbeddingMatch<TextSegment>> search(EmbeddingStore<TextSegment> store, Embedding query, int k) {
+        return store.search(EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(k).build()).matches();
+    }
+
+    /**
+     * Единичные векторы вокруг 50 центров – похоже на эмбеддинги текстов на несколько тем.
+     */
+    private static List<Embedding> clusteredEmbeddings(Random random, int count) {
+        Random centers = new Random(0);
+        float[][] centroids = new float[50][DIMENSION];
+        for (float[] centroid : centroids) {
+            for (int d = 0; d < DIMENSION; d++) {
+                centroid[d] = (float) centers.nextGaussian();
+            }
+        }
+        List<Embedding> embeddings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] centroid = centroids[random.nextInt(centroids.length)];
+            float[] vector = new float[DIMENSION];
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] = centroid[d] + 0.5f * (float) random.nextGaussian();
+            }
+            Embedding embedding = Embedding.from(vector);
+            embedding.normalize();
+            embeddings.add(embedding);
+        }
+        return embeddings;
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add("id-" + i);
+        }
+        return ids;
+    }
+}
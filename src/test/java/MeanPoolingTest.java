@@ -0,0 +1,41 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MeanPoolingTest {
+
+    // Пакет из двух текстов длиной 3 позиции, скрытое состояние размерности 2
+    private static final int LENGTH = 3;
+    private static final int HIDDEN = 2;
+    private static final float[] STATES = {
+            1, 2, 3, 4, 100, 100,
+            -2, 6, 50, 50, 60, 60,
+    };
+    // У первого текста последняя позиция – дополнение, у второго – две последние
+    private static final long[] MASK = {1, 1, 0, 1, 0, 0};
+
+    @Test
+    void averagesOnlyUnmaskedPositions() {
+        assertArrayEquals(new float[]{2, 3},
+                LocalONNXEmbeddingModel.pool(STATES, MASK, 0, LENGTH, HIDDEN, false), 1e-6f);
+        assertArrayEquals(new float[]{-2, 6},
+                LocalONNXEmbeddingModel.pool(STATES, MASK, 1, LENGTH, HIDDEN, false), 1e-6f);
+    }
+
+    @Test
+    void normalizesToUnitLength() {
+        float[] vector = LocalONNXEmbeddingModel.pool(STATES, MASK, 0, LENGTH, HIDDEN, true);
+        float norm = (float) Math.sqrt(2 * 2 + 3 * 3);
+        assertArrayEquals(new float[]{2 / norm, 3 / norm}, vector, 1e-6f);
+        assertEquals(1f, vector[0] * vector[0] + vector[1] * vector[1], 1e-6f);
+    }
+
+    // Текст без настоящих токенов даёт нулевой вектор, а не NaN
+    @Test
+    void fullyMaskedTextGivesZeroVector() {
+        long[] mask = {0, 0, 0};
+        float[] states = {1, 2, 3, 4, 5, 6};
+        assertArrayEquals(new float[]{0, 0}, LocalONNXEmbeddingModel.pool(states, mask, 0, LENGTH, HIDDEN, true));
+    }
+}
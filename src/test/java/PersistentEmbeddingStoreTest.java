@@ -0,0 +1,235 @@
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentEmbeddingStoreTest {
+
+    private static final String MODEL = "test-model:mean-l2";
+    private static final int DIMENSION = 16;
+    private static final String[] FILES = {"vectors.bin", "offsets.bin", "segments.bin", "documents.log"};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopensWithSameContent() throws IOException {
+        Random random = new Random(1);
+        List<Embedding> embeddings = randomEmbeddings(random, 300);
+        List<TextSegment> segments = new ArrayList<>();
+        for (int i = 0; i < embeddings.size(); i++) {
+            segments.add(TextSegment.from("segment " + i, new Metadata()
+                    .put("index", i)
+                    .put("long", (long) i << 33)
+                    .put("double", i / 3.0)
+                    .put("uuid", new UUID(i, -i))
+                    .put("file_name", "doc.txt")));
+        }
+        Embedding query = randomEmbeddings(random, 1).get(0);
+        Path index = directory.resolve("index");
+
+        List<EmbeddingMatch<TextSegment>> before;
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            store.addAll(embeddings, segments);
+            before = search(store, query);
+        }
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            assertEquals(embeddings.size(), store.size());
+            List<EmbeddingMatch<TextSegment>> after = search(store, query);
+            assertEquals(before.size(), after.size());
+            for (int i = 0; i < before.size(); i++) {
+                assertEquals(before.get(i).embeddingId(), after.get(i).embeddingId());
+                assertEquals(before.get(i).embedded(), after.get(i).embedded());
+                assertEquals(before.get(i).score(), after.get(i).score(), 1e-6);
+                assertArrayEquals(before.get(i).embedding().vector(), after.get(i).embedding().vector());
+            }
+        }
+    }
+
+    // Сбой после записи строк, но до обновления заголовка: недописанные строки не видны и затираются
+    @Test
+    void ignoresRowsPastCommittedCount() throws IOException {
+        Random random = new Random(2);
+        Path index = directory.resolve("index");
+        Path crashed = directory.resolve("crashed");
+        List<Embedding> first = randomEmbeddings(random, 100);
+        List<Embedding> second = randomEmbeddings(random, 50);
+        byte[] committedHeader;
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            store.addAll(first, segments("first", first.size()));
+            committedHeader = readHeader(index);
+            store.addAll(second, segments("second", second.size()));
+            // Снимок файлов без close(), как после падения процесса
+            copyIndex(index, crashed);
+        }
+        // Заголовок до второй пачки и оборванная запись в конце segments.bin
+        try (SeekableByteChannel channel = Files.newByteChannel(crashed.resolve("vectors.bin"), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(committedHeader));
+        }
+        Files.write(crashed.resolve("segments.bin"), new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(crashed, MODEL, true)) {
+            assertEquals(first.size(), store.size());
+            for (EmbeddingMatch<TextSegment> match : search(store, second.get(0))) {
+                assertTrue(match.embedded().text().startsWith("first"), match.embedded().text());
+            }
+            // Новые строки пишутся поверх недописанных
+            store.addAll(second, segments("again", second.size()));
+        }
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(crashed, MODEL, true)) {
+            assertEquals(first.size() + second.size(), store.size());
+            EmbeddingMatch<TextSegment> best = search(store, second.get(7)).get(0);
+            assertEquals("again 7", best.embedded().text());
+            assertEquals(1.0, best.score(), 1e-6);
+        }
+    }
+
+    // Оборванная последняя строка documents.log не считается загруженным документом
+    @Test
+    void documentsSurviveRestartAndTornLineIsIgnored() throws IOException {
+        Path index = directory.resolve("index");
+        Path document = Files.writeString(directory.resolve("doc.txt"), "text", StandardCharsets.UTF_8);
+        Path other = Files.writeString(directory.resolve("other.txt"), "other", StandardCharsets.UTF_8);
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            store.addAll(randomEmbeddings(new Random(3), 3), segments("doc", 3));
+            store.addDocument(PersistentEmbeddingStore.documentKey(document));
+            assertTrue(store.containsDocument(document));
+        }
+        String torn = PersistentEmbeddingStore.documentKey(other);
+        Files.writeString(index.resolve("documents.log"), torn.substring(0, torn.length() - 2),
+                StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            assertTrue(store.containsDocument(document));
+            assertFalse(store.containsDocument(other));
+            store.addDocument(PersistentEmbeddingStore.documentKey(other));
+        }
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            assertTrue(store.containsDocument(document));
+            assertTrue(store.containsDocument(other));
+            // Изменённый файл – новая версия документа
+            Files.writeString(document, "changed text", StandardCharsets.UTF_8);
+            assertFalse(store.containsDocument(document));
+        }
+    }
+
+    @Test
+    void removeAllIsPersistent() throws IOException {
+        Path index = directory.resolve("index");
+        Path document = Files.writeString(directory.resolve("doc.txt"), "text", StandardCharsets.UTF_8);
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            store.addAll(randomEmbeddings(new Random(4), 10), segments("doc", 10));
+            store.addDocument(PersistentEmbeddingStore.documentKey(document));
+            store.removeAll();
+        }
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            assertEquals(0, store.size());
+            assertFalse(store.containsDocument(document));
+        }
+    }
+
+    @Test
+    void lockedWhileOpenAndBoundToModel() throws IOException {
+        Path index = directory.resolve("index");
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            assertThrows(IOException.class, () -> new PersistentEmbeddingStore(index, MODEL, true));
+            store.addAll(randomEmbeddings(new Random(5), 1), segments("doc", 1));
+        }
+        assertThrows(IOException.class, () -> new PersistentEmbeddingStore(index, "other-model", true));
+        // Неудачное открытие снимает блокировки
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, true)) {
+            assertEquals(1, store.size());
+        }
+    }
+
+    // Векторы произвольной длины: оценка – косинус, не зависящий от длины запроса, и minScore применяется к нему
+    @Test
+    void normalizesQueryWhenNotUnitLength() throws IOException {
+        Path index = directory.resolve("index");
+        try (PersistentEmbeddingStore store = new PersistentEmbeddingStore(index, MODEL, false)) {
+            float[] same = new float[DIMENSION];
+            float[] orthogonal = new float[DIMENSION];
+            same[0] = 2;
+            orthogonal[1] = 5;
+            store.add(Embedding.from(same), TextSegment.from("same"));
+            store.add(Embedding.from(orthogonal), TextSegment.from("orthogonal"));
+
+            float[] query = new float[DIMENSION];
+            query[0] = 3;
+            List<EmbeddingMatch<TextSegment>> matches = store.search(EmbeddingSearchRequest.builder()
+                    .queryEmbedding(Embedding.from(query))
+                    .maxResults(2)
+                    .minScore(0.9)
+                    .build()).matches();
+            assertEquals(1, matches.size());
+            assertEquals("same", matches.get(0).embedded().text());
+            assertEquals(1.0, matches.get(0).score(), 1e-6);
+            // Вектор запроса вызывающего не меняется
+            assertEquals(3f, query[0]);
+        }
+    }
+
+    private static byte[] readHeader(Path index) throws IOException {
+        byte[] header = new byte[64];
+        try (InputStream in = Files.newInputStream(index.resolve("vectors.bin"))) {
+            assertEquals(header.length, in.readNBytes(header, 0, header.length));
+        }
+        return header;
+    }
+
+    private static void copyIndex(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        for (String file : FILES) {
+            Files.copy(from.resolve(file), to.resolve(file), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static List<EmbeddingMatch<TextSegment>> search(PersistentEmbeddingStore store, Embedding query) {
+        return store.search(EmbeddingSearchRequest.builder().queryEmbedding(query).maxResults(5).build()).matches();
+    }
+
+    private static List<TextSegment> segments(String prefix, int count) {
+        List<TextSegment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            segments.add(TextSegment.from(prefix + " " + i));
+        }
+        return segments;
+    }
+
+    private static List<Embedding> randomEmbeddings(Random random, int count) {
+        List<Embedding> embeddings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] vector = new float[DIMENSION];
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] = (float) random.nextGaussian();
+            }
+            Embedding embedding = Embedding.from(vector);
+            embedding.normalize();
+            embeddings.add(embedding);
+        }
+        return embeddings;
+    }
+}
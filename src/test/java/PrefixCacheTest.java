@@ -0,0 +1,157 @@
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PrefixCacheTest {
+
+    // Число float на позицию в кэше-заглушке
+    private static final int POSITION_FLOATS = 2;
+    private static final long POSITION_BYTES = POSITION_FLOATS * Float.BYTES;
+
+    @Test
+    void restoresAllButLastToken() {
+        PrefixCache prefixCache = new PrefixCache(1 << 20);
+        List<Long> prompt = List.of(1L, 2L, 3L, 4L, 5L);
+        prefixCache.insert(prompt, computed(prompt, 100));
+
+        ArrayKVCache cache = new ArrayKVCache();
+        assertEquals(4, prefixCache.restore(prompt, cache));
+        assertArrayEquals(computed(prompt.subList(0, 4), 100).data(), cache.data());
+        assertEquals(5 * POSITION_BYTES, prefixCache.getUsedBytes());
+    }
+
+    @Test
+    void restoresLongestCommonPrefix() {
+        PrefixCache prefixCache = new PrefixCache(1 << 20);
+        List<Long> first = List.of(1L, 2L, 3L, 4L, 5L);
+        prefixCache.insert(first, computed(first, 100));
+
+        List<Long> second = List.of(1L, 2L, 3L, 9L, 9L, 9L);
+        ArrayKVCache cache = new ArrayKVCache();
+        assertEquals(3, prefixCache.restore(second, cache));
+        assertArrayEquals(computed(first.subList(0, 3), 100).data(), cache.data());
+
+        assertEquals(0, prefixCache.restore(List.of(7L, 1L, 2L), new ArrayKVCache()));
+        assertEquals(3.0 / (5 + 2), prefixCache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    void splitEdgeKeepsBothBranches() {
+        PrefixCache prefixCache = new PrefixCache(1 << 20);
+        List<Long> first = List.of(1L, 2L, 3L, 4L, 5L);
+        List<Long> second = List.of(1L, 2L, 3L, 7L, 8L);
+        prefixCache.insert(first, computed(first, 100));
+        prefixCache.insert(second, computed(second, 100));
+        // Общий префикс хранится один раз
+        assertEquals(7 * POSITION_BYTES, prefixCache.getUsedBytes());
+
+        for (List<Long> tokens : List.of(first, second)) {
+            ArrayKVCache cache = new ArrayKVCache();
+            assertEquals(4, prefixCache.restore(tokens, cache));
+            assertArrayEquals(computed(tokens.subList(0, 4), 100).data(), cache.data());
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedLeaf() {
+        // Вмещает две последовательности по 4 позиции, но не три
+        PrefixCache prefixCache = new PrefixCache(8 * POSITION_BYTES + 1);
+        List<Long> first = List.of(1L, 2L, 3L, 4L);
+        List<Long> second = List.of(5L, 6L, 7L, 8L);
+        List<Long> third = List.of(9L, 10L, 11L, 12L);
+        prefixCache.insert(first, computed(first, 0));
+        prefixCache.insert(second, computed(second, 0));
+        // Обращение к first делает вытесняемой second
+        prefixCache.restore(first, new ArrayKVCache());
+        prefixCache.insert(third, computed(third, 0));
+
+        assertEquals(1, prefixCache.getEvictions());
+        assertTrue(prefixCache.getUsedBytes() <= prefixCache.getMemoryBudgetBytes());
+        assertEquals(3, prefixCache.restore(first, new ArrayKVCache()));
+        assertEquals(0, prefixCache.restore(second, new ArrayKVCache()));
+        assertEquals(3, prefixCache.restore(third, new ArrayKVCache()));
+    }
+
+    @Test
+    void rejectsNonEmptyCache() {
+        PrefixCache prefixCache = new PrefixCache(1 << 20);
+        ArrayKVCache cache = computed(List.of(1L), 0);
+        assertThrows(IllegalArgumentException.class, () -> prefixCache.restore(List.of(1L, 2L), cache));
+    }
+
+    /**
+     * Кэш, как будто посчитанный моделью для tokens: позиция i хранит (token, salt + i).
+     */
+    private static ArrayKVCache computed(List<Long> tokens, int salt) {
+        float[] data = new float[tokens.size() * POSITION_FLOATS];
+        for (int i = 0; i < tokens.size(); i++) {
+            data[i * POSITION_FLOATS] = tokens.get(i);
+            data[i * POSITION_FLOATS + 1] = salt + i;
+        }
+        ArrayKVCache cache = new ArrayKVCache();
+        cache.appendPositions(data, tokens.size());
+        return cache;
+    }
+
+    /**
+     * KV-кэш в массиве: только позиции в раскладке readPositions, без тензоров.
+     */
+    private static final class ArrayKVCache implements KVCache {
+
+        private float[] data = new float[0];
+        private int length;
+
+        float[] data() {
+            return Arrays.copyOf(data, length * POSITION_FLOATS);
+        }
+
+        @Override
+        public NDList pastKeyValues(NDManager manager) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void update(NDList presents) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public void truncate(int length) {
+            this.length = Math.min(this.length, length);
+        }
+
+        @Override
+        public float[] readPositions(int from, int to) {
+            return Arrays.copyOfRange(data, from * POSITION_FLOATS, to * POSITION_FLOATS);
+        }
+
+        @Override
+        public void appendPositions(float[] positions, int count) {
+            data = Arrays.copyOf(data, (length + count) * POSITION_FLOATS);
+            System.arraycopy(positions, 0, data, length * POSITION_FLOATS, count * POSITION_FLOATS);
+            length += count;
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return (long) length * POSITION_FLOATS * Float.BYTES;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StopSequenceMatcherTest {
+
+    @Test
+    void passesTextThroughWithoutStopSequences() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(List.of());
+        List<String> out = new ArrayList<>();
+        assertFalse(matcher.offer("Hello", out::add));
+        assertFalse(matcher.offer(" world", out::add));
+        assertEquals(List.of("Hello", " world"), out);
+        assertFalse(matcher.hasStopSequences());
+    }
+
+    @Test
+    void stopsOnSequenceSplitAcrossPieces() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(List.of("\nUser:"));
+        List<String> out = new ArrayList<>();
+        assertFalse(matcher.offer("Hello\nUs", out::add));
+        assertEquals(List.of("Hello"), out);
+        assertTrue(matcher.offer("er: next", out::add));
+        assertEquals(List.of("Hello"), out);
+        assertEquals("\nUser:", matcher.getMatched());
+        assertEquals("Hello", matcher.getText());
+        // После остановки текст больше не принимается
+        assertTrue(matcher.offer("more", out::add));
+        matcher.flush(out::add);
+        assertEquals(List.of("Hello"), out);
+    }
+
+    @Test
+    void releasesHeldTailWhenItDiverges() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(List.of("\nUser:"));
+        List<String> out = new ArrayList<>();
+        matcher.offer("abc\n", out::add);
+        assertEquals(List.of("abc"), out);
+        matcher.offer("Note", out::add);
+        assertEquals(List.of("abc", "\nNote"), out);
+        assertFalse(matcher.isStopped());
+    }
+
+    @Test
+    void flushEmitsHeldTail() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(List.of("###"));
+        List<String> out = new ArrayList<>();
+        matcher.offer("end ##", out::add);
+        matcher.flush(out::add);
+        assertEquals(List.of("end ", "##"), out);
+        assertNull(matcher.getMatched());
+        assertEquals("end ##", matcher.getText());
+    }
+
+    @Test
+    void picksEarliestOfSeveralSequences() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(List.of("STOP", "\n\n"));
+        assertTrue(matcher.offer("a\n\nb STOP", null));
+        assertEquals("\n\n", matcher.getMatched());
+        assertEquals("a", matcher.getText());
+    }
+
+    @Test
+    void rejectsEmptySequence() {
+        assertThrows(IllegalArgumentException.class, () -> new StopSequenceMatcher(List.of("")));
+    }
+
+    // Результат не зависит от того, как текст порезан на фрагменты
+    @Test
+    void matchesReferenceForRandomSplits() {
+        List<String> stops = List.of("<|end|>", "\nUser:", "aab");
+        String alphabet = "aab<|end>\nUser: ";
+        Random random = new Random(1);
+        for (int round = 0; round < 2000; round++) {
+            StringBuilder generated = new StringBuilder();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                generated.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String text = generated.toString();
+
+            StopSequenceMatcher matcher = new StopSequenceMatcher(stops);
+            StringBuilder out = new StringBuilder();
+            int from = 0;
+            boolean stopped = false;
+            while (from < text.length() && !stopped) {
+                int to = Math.min(text.length(), from + 1 + random.nextInt(5));
+                stopped = matcher.offer(text.substring(from, to), out::append);
+                from = to;
+            }
+            matcher.flush(out::append);
+
+            int end = text.length();
+            for (String stop : stops) {
+                int index = text.indexOf(stop);
+                if (index >= 0) {
+                    end = Math.min(end, index);
+                }
+            }
+            assertEquals(text.substring(0, end), out.toString(), text);
+            assertEquals(end < text.length(), matcher.isStopped(), text);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.loader.FileSystemDocumentLoader;
+import dev.langchain4j.data.document.parser.TextDocumentParser;
+import dev.langchain4j.data.document.splitter.DocumentByParagraphSplitter;
+import dev.langchain4j.data.segment.TextSegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamingDocumentSplitterTest {
+
+    private static final int CHUNK_SIZE = 150;
+    private static final int CHUNK_OVERLAP = 50;
+    private static final Path SEA_GIRL = Paths.get("src/main/resources/books/The sea girl.txt");
+    private static final Path CARBUNCLE = Paths.get("src/main/resources/the_adventure_of_the_blue_carbuncle.txt");
+
+    @TempDir
+    Path directory;
+
+    // Маленькие окна режут абзацы, предложения и символы UTF-8 на границах порций
+    @ParameterizedTest
+    @ValueSource(ints = {16, 257, 4096, StreamingDocumentSplitter.MAP_BYTES})
+    void matchesParagraphSplitter(int mapBytes) throws IOException {
+        assertMatchesParagraphSplitter(SEA_GIRL, mapBytes);
+        assertMatchesParagraphSplitter(CARBUNCLE, mapBytes);
+    }
+
+    // Текст без пустых строк – один абзац, который делится по предложениям по мере чтения
+    @ParameterizedTest
+    @ValueSource(ints = {16, 4096, StreamingDocumentSplitter.MAP_BYTES})
+    void matchesParagraphSplitterWithoutBlankLines(int mapBytes) throws IOException {
+        String text = Files.readString(CARBUNCLE, StandardCharsets.UTF_8).replaceAll("\\s*\\R\\s*\\R\\s*", " ");
+        Path file = directory.resolve("single_paragraph.txt");
+        Files.writeString(file, text, StandardCharsets.UTF_8);
+        assertMatchesParagraphSplitter(file, mapBytes);
+    }
+
+    // Текст без концов предложений делится принудительно, фрагменты не превышают chunkSize
+    @Test
+    void splitsTextWithoutSentenceEnds() throws IOException {
+        String text = "word ".repeat(4 * StreamingDocumentSplitter.LONG_SENTENCE_CHARS / 5);
+        Path file = directory.resolve("no_sentences.txt");
+        Files.writeString(file, text, StandardCharsets.UTF_8);
+
+        List<TextSegment> segments = split(file, StreamingDocumentSplitter.MAP_BYTES);
+        assertFalse(segments.isEmpty());
+        for (TextSegment segment : segments) {
+            assertTrue(segment.text().length() <= CHUNK_SIZE, segment.text());
+        }
+    }
+
+    private static void assertMatchesParagraphSplitter(Path file, int mapBytes) throws IOException {
+        Document document = FileSystemDocumentLoader.loadDocument(file, new TextDocumentParser());
+        List<TextSegment> expected = new DocumentByParagraphSplitter(CHUNK_SIZE, CHUNK_OVERLAP).split(document);
+        List<TextSegment> actual = split(file, mapBytes);
+        assertEquals(expected.size(), actual.size(), file + ": число фрагментов");
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), actual.get(i), file + ": фрагмент " + i);
+        }
+    }
+
+    private static List<TextSegment> split(Path file, int mapBytes) throws IOException {
+        List<TextSegment> segments = new ArrayList<>();
+        try (StreamingDocumentSplitter.Segments reader =
+                     new StreamingDocumentSplitter(CHUNK_SIZE, CHUNK_OVERLAP, mapBytes).open(file)) {
+            reader.forEachRemaining(segments::add);
+        }
+        return segments;
+    }
+}
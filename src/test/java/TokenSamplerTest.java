@@ -0,0 +1,135 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenSamplerTest {
+
+    // Больше окна nucleus (32) и порога сортировки вставками, чтобы пройти все ветви отбора
+    private static final int VOCAB = 2000;
+
+    @Test
+    void greedyReturnsArgMaxWithinRange() {
+        float[] logits = randomLogits(VOCAB, 1);
+        int offset = 300;
+        int length = 500;
+        int expected = 0;
+        for (int i = 1; i < length; i++) {
+            if (logits[offset + i] > logits[offset + expected]) {
+                expected = i;
+            }
+        }
+        assertEquals(expected, new TokenSampler(SamplingParams.greedy()).sample(logits, offset, length));
+        assertEquals(expected, new TokenSampler(new SamplingParams(0f, 0, 1f, 0f)).sample(logits, offset, length));
+    }
+
+    @Test
+    void distributionMatchesReferenceFilters() {
+        SamplingParams[] cases = {
+                new SamplingParams(1f, 0, 1f, 0f),
+                new SamplingParams(0.7f, 50, 1f, 0f),
+                SamplingParams.topP(0.8f, 0.9f),
+                SamplingParams.topP(2f, 0.95f),
+                new SamplingParams(1f, 0, 1f, 0.05f),
+                new SamplingParams(0.9f, 400, 0.8f, 0.01f),
+        };
+        for (int seed = 0; seed < 5; seed++) {
+            float[] logits = randomLogits(VOCAB, seed);
+            for (SamplingParams params : cases) {
+                float[] actual = new float[VOCAB];
+                new TokenSampler(params, seed).distribution(logits, 0, VOCAB, actual);
+                assertArrayEquals(reference(logits, params), actual, 1e-5f, params.toString());
+            }
+        }
+    }
+
+    @Test
+    void samplesOnlyTokensWithNonZeroProbability() {
+        float[] logits = randomLogits(VOCAB, 7);
+        SamplingParams params = new SamplingParams(1f, 20, 0.9f, 0f);
+        float[] expected = reference(logits, params);
+        TokenSampler sampler = new TokenSampler(params, 42);
+        for (int i = 0; i < 1000; i++) {
+            int token = sampler.sample(logits);
+            assertTrue(expected[token] > 0f, "токен вне top-k/top-p: " + token);
+        }
+    }
+
+    @Test
+    void sameSeedGivesSameTokens() {
+        float[] logits = randomLogits(VOCAB, 3);
+        SamplingParams params = SamplingParams.topP(1f, 0.95f);
+        TokenSampler first = new TokenSampler(params, 11);
+        TokenSampler second = new TokenSampler(params, 11);
+        TokenSampler firstSplit = first.split();
+        TokenSampler secondSplit = second.split();
+        for (int i = 0; i < 200; i++) {
+            assertEquals(first.sample(logits), second.sample(logits));
+            assertEquals(firstSplit.sample(logits), secondSplit.sample(logits));
+        }
+    }
+
+    @Test
+    void sampleFromSkipsZeroWeights() {
+        float[] probs = {0f, 0.5f, 0f, 1.5f, 0f};
+        TokenSampler sampler = new TokenSampler(SamplingParams.topP(1f, 1f), 5);
+        int[] counts = new int[probs.length];
+        for (int i = 0; i < 4000; i++) {
+            counts[sampler.sampleFrom(probs, probs.length)]++;
+        }
+        assertEquals(0, counts[0] + counts[2] + counts[4]);
+        // Ожидаемое соотношение 1:3
+        assertTrue(counts[3] > 2 * counts[1], Arrays.toString(counts));
+    }
+
+    /**
+     * Распределение по определению: веса exp((l - max) / T) по убыванию, затем top-k, min-p и top-p.
+     */
+    private static float[] reference(float[] logits, SamplingParams params) {
+        int length = logits.length;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float logit : logits) {
+            max = Math.max(max, logit);
+        }
+        double[] weights = new double[length];
+        for (int i = 0; i < length; i++) {
+            weights[i] = Math.exp((logits[i] - max) / params.getTemperature());
+        }
+        Integer[] order = IntStream.range(0, length).boxed().sorted(
+                Comparator.comparingDouble((Integer i) -> weights[i]).reversed()).toArray(Integer[]::new);
+        int count = params.getTopK() > 0 ? Math.min(params.getTopK(), length) : length;
+        int kept = 0;
+        while (kept < count && weights[order[kept]] >= params.getMinP()) {
+            kept++;
+        }
+        double mass = 0;
+        for (int i = 0; i < kept; i++) {
+            mass += weights[order[i]];
+        }
+        double cumulative = 0;
+        int nucleus = 0;
+        while (nucleus < kept && cumulative < params.getTopP() * mass) {
+            cumulative += weights[order[nucleus++]];
+        }
+        float[] out = new float[length];
+        for (int i = 0; i < nucleus; i++) {
+            out[order[i]] = (float) (weights[order[i]] / cumulative);
+        }
+        return out;
+    }
+
+    private static float[] randomLogits(int length, long seed) {
+        Random random = new Random(seed);
+        float[] logits = new float[length];
+        for (int i = 0; i < length; i++) {
+            logits[i] = (float) (random.nextGaussian() * 3);
+        }
+        return logits;
+    }
+}